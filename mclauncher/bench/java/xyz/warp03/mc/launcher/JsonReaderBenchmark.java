@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import xyz.warp03.mc.launcher.install.AssetSync;
+
+/**
+ * Compares reading asset indexes and version JSON files with {@link JsonReader} against building a full {@link JSONObject} first, as was done before.
+ * <p>
+ * By default, a generated asset index with {@link #objects} objects and a generated version JSON are used. Real files can be used with the <code>assetIndexFile</code>
+ * and <code>versionJsonFile</code> parameters, for example <code>-p assetIndexFile=$HOME/.minecraft/assets/indexes/5.json</code>. Compile this file together with the
+ * launcher sources and run it with the JMH annotation processor and runtime on the classpath:
+ *
+ * <pre>
+ * javac -cp jmh-core.jar:jmh-generator-annprocess.jar:json.jar:omz-java-lib.jar -d bench-classes $(find mclauncher/main/java mclauncher/bench/java -name "*.java")
+ * java -cp bench-classes:jmh-core.jar:jopt-simple.jar:commons-math3.jar:json.jar:omz-java-lib.jar org.openjdk.jmh.Main JsonReaderBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonReaderBenchmark {
+
+	private static final String[] VERSION_FIELDS = { "assetIndex", "downloads", "libraries" };
+
+	@Param({ "4000" })
+	public int objects;
+
+	@Param({ "" })
+	public String assetIndexFile;
+
+	@Param({ "" })
+	public String versionJsonFile;
+
+	private Path assetIndex;
+	private Path versionJson;
+	private byte[] versionJsonData;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if(this.assetIndexFile.isEmpty()){
+			this.assetIndex = Files.createTempFile("JsonReaderBenchmark-index", ".json");
+			Files.write(this.assetIndex, generateAssetIndex(this.objects));
+		}else
+			this.assetIndex = Paths.get(this.assetIndexFile);
+		if(this.versionJsonFile.isEmpty()){
+			this.versionJson = Files.createTempFile("JsonReaderBenchmark-version", ".json");
+			Files.write(this.versionJson, generateVersionJson());
+		}else
+			this.versionJson = Paths.get(this.versionJsonFile);
+		this.versionJsonData = Files.readAllBytes(this.versionJson);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if(this.assetIndexFile.isEmpty())
+			Files.deleteIfExists(this.assetIndex);
+		if(this.versionJsonFile.isEmpty())
+			Files.deleteIfExists(this.versionJson);
+	}
+
+
+	@Benchmark
+	public AssetSync.Index assetIndexJsonJava() throws IOException {
+		JSONObject objects = new JSONObject(new String(Files.readAllBytes(this.assetIndex))).getJSONObject("objects");
+		return new AssetSync.Index("bench", "0", objects);
+	}
+
+	@Benchmark
+	public AssetSync.Index assetIndexJsonReader() throws IOException {
+		return AssetSync.Index.read("bench", "0", this.assetIndex);
+	}
+
+	@Benchmark
+	public void versionJsonJsonJava(Blackhole bh) {
+		JSONObject json = new JSONObject(new String(this.versionJsonData));
+		for(String f : VERSION_FIELDS)
+			bh.consume(json.opt(f));
+	}
+
+	@Benchmark
+	public void versionJsonReader(Blackhole bh) throws IOException {
+		JSONObject json = JsonReader.readFields(this.versionJsonData, VERSION_FIELDS);
+		for(String f : VERSION_FIELDS)
+			bh.consume(json.opt(f));
+	}
+
+
+	private static byte[] generateAssetIndex(int count) {
+		StringBuilder sb = new StringBuilder("{\"objects\": {");
+		java.util.Random random = new java.util.Random(count);
+		for(int i = 0; i < count; i++){
+			if(i > 0)
+				sb.append(", ");
+			StringBuilder hash = new StringBuilder(40);
+			for(int j = 0; j < 40; j++)
+				hash.append(Character.forDigit(random.nextInt(16), 16));
+			sb.append("\"minecraft/sounds/block/generated/object_").append(i).append(".ogg\": {\"hash\": \"").append(hash).append("\", \"size\": ")
+					.append(random.nextInt(1 << 20)).append('}');
+		}
+		sb.append("}}");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] generateVersionJson() {
+		// roughly the shape of a current version JSON: large argument, library and logging sections, of which installing uses only a part
+		StringBuilder sb = new StringBuilder("{\"arguments\": {\"game\": [");
+		for(int i = 0; i < 40; i++)
+			sb.append(i > 0 ? ", " : "").append("{\"rules\": [{\"action\": \"allow\", \"features\": {\"f").append(i).append("\": true}}], \"value\": [\"--a\", \"${b}\"]}");
+		sb.append("], \"jvm\": []}, \"assetIndex\": {\"id\": \"5\", \"sha1\": \"0000000000000000000000000000000000000000\", \"size\": 400000, \"totalSize\": 600000000, ")
+				.append("\"url\": \"https://example.com/5.json\"}, \"downloads\": {\"client\": {\"sha1\": \"0000000000000000000000000000000000000000\", \"size\": 20000000, ")
+				.append("\"url\": \"https://example.com/client.jar\"}}, \"libraries\": [");
+		for(int i = 0; i < 100; i++){
+			sb.append(i > 0 ? ", " : "").append("{\"downloads\": {\"artifact\": {\"path\": \"org/example/lib").append(i).append("/1.0/lib").append(i)
+					.append("-1.0.jar\", \"sha1\": \"0000000000000000000000000000000000000000\", \"size\": 100000, \"url\": \"https://example.com/lib").append(i)
+					.append(".jar\"}}, \"name\": \"org.example:lib").append(i).append(":1.0\", \"rules\": [{\"action\": \"allow\", \"os\": {\"name\": \"linux\"}}]}");
+		}
+		sb.append("], \"logging\": {\"client\": {\"argument\": \"-Dlog4j.configurationFile=${path}\", \"file\": {\"id\": \"client-1.12.xml\", ")
+				.append("\"sha1\": \"0000000000000000000000000000000000000000\", \"size\": 888, \"url\": \"https://example.com/client-1.12.xml\"}, \"type\": \"log4j2-xml\"}}, ")
+				.append("\"mainClass\": \"net.minecraft.client.main.Main\", \"type\": \"release\"}");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -8,10 +8,11 @@ package xyz.warp03.mc.launcher;
 
 import java.awt.Component;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import javax.swing.DefaultListModel;
@@ -24,13 +25,22 @@ import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.omegazero.common.event.Tasks;
 import org.omegazero.common.logging.Logger;
 
+import xyz.warp03.mc.launcher.download.ArtifactStore;
+import xyz.warp03.mc.launcher.download.Downloader;
+import xyz.warp03.mc.launcher.download.MetadataCache;
+import xyz.warp03.mc.launcher.install.InstallJournal;
+import xyz.warp03.mc.launcher.install.VersionInstaller;
+import xyz.warp03.mc.launcher.install.VersionManifest;
+import xyz.warp03.mc.launcher.install.VersionManifest.Version;
+import xyz.warp03.mc.launcher.launch.GameInstance;
+
 public class GameProfileWizard {
 
 	private static final Logger logger = Logger.create();
@@ -39,10 +49,9 @@ public class GameProfileWizard {
 	private static final String SETTING_INSTALL_DIR = "GameProfileWizard.installDir";
 
 
-	private String latestVersion;
-	private String latestSnapshot;
-	private List<Version> versions;
+	private VersionManifest manifest;
 
+	private SettingsManager settings;
 	private JPanel newInstallPanel;
 	private JLabel versionLatestUI;
 	private JList<Version> versionListUI;
@@ -55,11 +64,21 @@ public class GameProfileWizard {
 	private JLabel installProgressLabel;
 	private Consumer<GameProfile> onInstallComplete;
 
+	private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor((r) -> {
+		Thread t = new Thread(r, "VersionPrefetch");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+	private Version prefetchVersion;
+	private Future<?> prefetchTask;
+
 
 	public void initNewInstallPanel(JPanel panel, SettingsManager settings) {
 		if(this.newInstallPanel != null)
 			throw new IllegalStateException("Already has a newInstallPanel");
 		this.newInstallPanel = panel;
+		this.settings = settings;
 
 		int x1 = panel.getWidth() / 3;
 
@@ -70,6 +89,10 @@ public class GameProfileWizard {
 		this.versionListUI = new JList<Version>();
 		this.versionListUI.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 		JScrollPane versionListSP = new JScrollPane(this.versionListUI);
+		this.versionListUI.addListSelectionListener((e) -> {
+			if(!e.getValueIsAdjusting())
+				GameProfileWizard.this.startPrefetch(GameProfileWizard.this.versionListUI.getSelectedValue());
+		});
 		versionListSP.setBounds(20, 40, x1 - 40, panel.getHeight() - 70);
 		panel.add(versionListSP);
 
@@ -98,14 +121,11 @@ public class GameProfileWizard {
 		panel.add(this.configInstallName);
 		panel.add(this.configInstanceDir);
 		panel.add(this.configInstallDir);
-		Util.addLabel(panel, "Profile Name", x1, panel.getHeight() - 265, 200);
-		Util.addLabel(panel, "Instance directory", x1, panel.getHeight() - 205, 200);
-		Util.addLabel(panel, "Install directory", x1, panel.getHeight() - 145, 200);
-
-		String defaultDir = System.getenv("APPDATA");
-		if(defaultDir == null)
-			defaultDir = System.getProperty("user.home");
-		defaultDir += "/.minecraft";
+		UIUtil.addLabel(panel, "Profile Name", x1, panel.getHeight() - 265, 200);
+		UIUtil.addLabel(panel, "Instance directory", x1, panel.getHeight() - 205, 200);
+		UIUtil.addLabel(panel, "Install directory", x1, panel.getHeight() - 145, 200);
+
+		String defaultDir = VersionInstaller.getDefaultDirectory();
 		String instanceDir = settings.getString(SETTING_INSTANCE_DIR);
 		if(instanceDir == null)
 			instanceDir = defaultDir;
@@ -115,24 +135,46 @@ public class GameProfileWizard {
 		this.configInstanceDir.setText(instanceDir);
 		this.configInstallDir.setText(installDir);
 
-		this.installProgressLabel = Util.addLabel(panel, "", 20, panel.getHeight() - 30, panel.getWidth() - 40);
+		this.installProgressLabel = UIUtil.addLabel(panel, "", 20, panel.getHeight() - 30, panel.getWidth() - 40);
 		this.installProgressLabel.setVisible(false);
 		this.installProgress = new JProgressBar();
 		this.installProgress.setBounds(20, panel.getHeight() - 15, panel.getWidth() - 40, 10);
 		this.installProgress.setVisible(false);
 		panel.add(this.installProgress);
 
-		Util.addButton(panel, "OK", panel.getWidth() - 200, panel.getHeight() - 60, 80, 30, false, () -> {
+		UIUtil.addButton(panel, "OK", panel.getWidth() - 200, panel.getHeight() - 60, 80, 30, false, () -> {
 			settings.set(SETTING_INSTANCE_DIR, GameProfileWizard.this.configInstanceDir.getText());
 			settings.set(SETTING_INSTALL_DIR, GameProfileWizard.this.configInstallDir.getText());
 			GameProfileWizard.this.completeInstall(true);
 		});
-		Util.addButton(panel, "Cancel", panel.getWidth() - 100, panel.getHeight() - 60, 80, 30, false, () -> {
+		UIUtil.addButton(panel, "Cancel", panel.getWidth() - 100, panel.getHeight() - 60, 80, 30, false, () -> {
 			GameProfileWizard.this.completeInstall(false);
 		});
 	}
 
 	public void showNewInstallUI(Consumer<GameProfile> profileCallback) {
+		this.onInstallComplete = profileCallback;
+		byte[] cached = null;
+		MetadataCache cache = MetadataCache.getDefault();
+		if(cache != null){
+			try{
+				cached = cache.getCached(VersionManifest.URL);
+				if(cached != null)
+					this.updateVersions(cached);
+			}catch(IOException | JSONException e){
+				logger.warn("Failed to load cached version list: ", e);
+				cached = null;
+			}
+		}
+		if(cached != null){
+			// show the cached list immediately and only update it if the manifest changed
+			this.listVersionsFiltered();
+			byte[] cachedData = cached;
+			Tasks.timeout((a) -> {
+				GameProfileWizard.this.refreshVersions(cachedData);
+			}, 0);
+			return;
+		}
 		try{
 			this.setNewInstallUIProgress(0, "Loading metadata");
 			this.setNewInstallUIState(false);
@@ -145,10 +187,15 @@ public class GameProfileWizard {
 			this.setNewInstallUIState(true);
 		}
 		this.listVersionsFiltered();
-		this.onInstallComplete = profileCallback;
 	}
 
 	private void setNewInstallUIState(boolean idle) {
+		if(!SwingUtilities.isEventDispatchThread()){
+			SwingUtilities.invokeLater(() -> {
+				GameProfileWizard.this.setNewInstallUIState(idle);
+			});
+			return;
+		}
 		for(Component c : this.newInstallPanel.getComponents()){
 			if(c == this.installProgress || c == this.installProgressLabel)
 				continue;
@@ -160,6 +207,12 @@ public class GameProfileWizard {
 	}
 
 	private void setNewInstallUIProgress(int progress, String msg) {
+		if(!SwingUtilities.isEventDispatchThread()){
+			SwingUtilities.invokeLater(() -> {
+				GameProfileWizard.this.setNewInstallUIProgress(progress, msg);
+			});
+			return;
+		}
 		if(progress >= 0)
 			this.installProgress.setValue(progress);
 		if(msg != null)
@@ -167,34 +220,112 @@ public class GameProfileWizard {
 	}
 
 	private void updateVersions() throws IOException {
-		JSONObject versionMeta = new JSONObject(new String(Util.get200("https://launchermeta.mojang.com/mc/game/version_manifest.json")));
-		JSONObject latest = versionMeta.getJSONObject("latest");
-		this.latestVersion = latest.getString("release");
-		this.latestSnapshot = latest.getString("snapshot");
-		JSONArray versions = versionMeta.getJSONArray("versions");
-		List<Version> versionList = new java.util.ArrayList<>();
-		for(Object o : versions){
-			if(!(o instanceof JSONObject))
-				throw new JSONException("Expected JSON objects in 'versions' array");
-			versionList.add(Version.from((JSONObject) o));
+		this.updateVersions(MetadataCache.fetch(VersionManifest.URL));
+	}
+
+	private void refreshVersions(byte[] cached) {
+		byte[] data;
+		try{
+			data = MetadataCache.fetch(VersionManifest.URL);
+		}catch(IOException e){
+			logger.warn("Failed to refresh version list, using cached list: ", e);
+			return;
 		}
-		this.versions = versionList;
+		if(java.util.Arrays.equals(data, cached))
+			return;
+		logger.info("Version list changed, updating");
+		SwingUtilities.invokeLater(() -> {
+			Version selected = GameProfileWizard.this.versionListUI.getSelectedValue();
+			try{
+				GameProfileWizard.this.updateVersions(data);
+			}catch(JSONException e){
+				logger.error("Received invalid version list: ", e);
+				return;
+			}
+			GameProfileWizard.this.listVersionsFiltered();
+			if(selected != null){
+				javax.swing.ListModel<Version> model = GameProfileWizard.this.versionListUI.getModel();
+				for(int i = 0; i < model.getSize(); i++){
+					if(model.getElementAt(i).name.equals(selected.name)){
+						GameProfileWizard.this.versionListUI.setSelectedIndex(i);
+						break;
+					}
+				}
+			}
+		});
+	}
+
+	private void updateVersions(byte[] data) {
+		this.manifest = VersionManifest.parse(data);
 	}
 
 	private void listVersionsFiltered() {
-		if(this.versions == null)
+		if(this.manifest == null)
 			return;
-		this.versionLatestUI.setText("Latest version/snapshot: " + this.latestVersion + "/" + this.latestSnapshot);
+		this.versionLatestUI.setText("Latest version/snapshot: " + this.manifest.getLatestRelease() + "/" + this.manifest.getLatestSnapshot());
 		boolean oldVersions = this.showOldVersionsCB.isSelected();
 		boolean snapshots = this.showSnapshotsCB.isSelected();
 		DefaultListModel<Version> uiListModel = new DefaultListModel<Version>();
-		for(Version v : this.versions){
+		for(Version v : this.manifest.getVersions()){
 			if(v.type.equals("release") || (snapshots && v.type.equals("snapshot")) || (oldVersions && v.type.startsWith("old_")))
 				uiListModel.addElement(v);
 		}
 		this.versionListUI.setModel(uiListModel);
 	}
 
+	/**
+	 * Starts prefetching the metadata and artifacts of the given <b>version</b> in the background, cancelling the prefetch of any other version.
+	 *
+	 * @param version The version to prefetch, or <code>null</code> to only cancel the current prefetch
+	 */
+	private synchronized void startPrefetch(Version version) {
+		if(version != null && this.prefetchVersion != null && version.name.equals(this.prefetchVersion.name))
+			return;
+		this.cancelPrefetch();
+		if(version == null)
+			return;
+		this.prefetchVersion = version;
+		this.prefetchTask = this.prefetchExecutor.submit(() -> {
+			GameProfileWizard.this.prefetch(version);
+		});
+	}
+
+	private synchronized void cancelPrefetch() {
+		if(this.prefetchTask != null){
+			this.prefetchTask.cancel(true);
+			this.prefetchTask = null;
+		}
+		this.prefetchVersion = null;
+	}
+
+	private void prefetch(Version version) {
+		try{
+			logger.debug("Prefetching version ", version.name);
+			JSONObject metaJson = JsonReader.readFields(MetadataCache.fetch(version.metaUrl, version.sha1), "assetIndex", "downloads", "libraries");
+			if(ArtifactStore.getDefault() == null) // artifacts are prefetched into the store, which is then used by the install
+				return;
+			long bytes = prefetchArtifact(metaJson.getJSONObject("assetIndex"));
+			JSONObject downloads = metaJson.optJSONObject("downloads");
+			if(downloads != null && downloads.has("client"))
+				bytes += prefetchArtifact(downloads.getJSONObject("client"));
+			for(GameInstance.Library lib : GameInstance.resolveLibraries("libraries", metaJson)){
+				if(lib.artifact != null)
+					bytes += prefetchArtifact(lib.artifact);
+			}
+			logger.debug("Prefetched version ", version.name, " (", bytes, " bytes downloaded)");
+		}catch(java.io.InterruptedIOException e){
+			logger.debug("Prefetch of version ", version.name, " cancelled");
+		}catch(Exception e){
+			logger.warn("Prefetch of version ", version.name, " failed: ", e);
+		}
+	}
+
+	private static long prefetchArtifact(JSONObject desc) throws IOException {
+		if(Thread.currentThread().isInterrupted())
+			throw new java.io.InterruptedIOException();
+		return Downloader.prefetchArtifact(desc.getString("url"), desc.optLong("size", -1), desc.getString("sha1"));
+	}
+
 	private void completeInstall(boolean confirm) {
 		Tasks.timeout((a) -> {
 			if(confirm){
@@ -204,6 +335,7 @@ public class GameProfileWizard {
 					GameProfileWizard.this.onInstallComplete = null;
 				}
 			}else{
+				GameProfileWizard.this.cancelPrefetch();
 				GameProfileWizard.this.onInstallComplete.accept(null);
 				GameProfileWizard.this.onInstallComplete = null;
 			}
@@ -217,120 +349,69 @@ public class GameProfileWizard {
 			JOptionPane.showMessageDialog(null, "Name must not be empty and version must be selected", "Invalid configuration", JOptionPane.INFORMATION_MESSAGE, null);
 			return null;
 		}
+		// a prefetch of the selected version keeps running, downloads of artifacts it is already fetching wait for it instead of starting again
+		this.startPrefetch(version);
 		String instanceDir = this.configInstanceDir.getText();
 		String installDir = this.configInstallDir.getText();
-		logger.info("Installing version: " + version + " in " + installDir);
-		this.setNewInstallUIProgress(1, "Starting installation");
+		List<GameProfile> profiles = this.runInstall(java.util.Collections.singletonList(new VersionInstaller.Request(version, name, instanceDir)), installDir);
+		return profiles.isEmpty() ? null : profiles.get(0);
+	}
+
+	/**
+	 * Returns the versions of an install into the configured install directory that was interrupted, for example because the launcher was closed.
+	 *
+	 * @return The interrupted install requests, possibly empty
+	 */
+	public List<VersionInstaller.Request> getInterruptedInstall() {
+		try(InstallJournal journal = InstallJournal.open(Paths.get(this.configInstallDir.getText()))){
+			return journal.getPendingRequests();
+		}catch(IOException e){
+			logger.warn("Failed to read install journal: ", e);
+			return java.util.Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Resumes an interrupted install returned by {@link #getInterruptedInstall()}. Steps completed before the interruption are not repeated.
+	 *
+	 * @param requests The interrupted install requests
+	 * @return The game profiles of the successfully installed versions
+	 */
+	public List<GameProfile> resumeInstall(List<VersionInstaller.Request> requests) {
+		return this.runInstall(requests, this.configInstallDir.getText());
+	}
+
+	private List<GameProfile> runInstall(List<VersionInstaller.Request> requests, String installDir) {
+		String versions = requests.stream().map((r) -> r.version.toString()).collect(java.util.stream.Collectors.joining(", "));
+		ProgressTracker progress = new ProgressTracker();
+		progress.setStage(1, "Starting installation");
 		this.setNewInstallUIState(false);
-		GameProfile gp = null;
+		SwingProgressPublisher progressPublisher = new SwingProgressPublisher(progress, (snapshot) -> {
+			GameProfileWizard.this.setNewInstallUIProgress(snapshot.percentage, snapshot.format());
+		});
+		ProgressLogger progressLogger = new ProgressLogger(progress, 5000);
+		List<GameProfile> profiles = new java.util.ArrayList<>();
 		try{
-			Files.createDirectories(Paths.get(instanceDir));
-			Path versionPath = Paths.get(installDir, "versions", version.name);
-			Files.createDirectories(versionPath);
-
-			this.setNewInstallUIProgress(5, "Downloading version JSON");
-			logger.info("Downloading metadata JSON from '" + version.metaUrl + "'");
-			byte[] jsonData = Util.get200(version.metaUrl);
-			JSONObject metaJson = new JSONObject(new String(jsonData));
-			Path jsonPath = versionPath.resolve(version.name + ".json");
-			Files.write(jsonPath, jsonData);
-
-			this.setNewInstallUIProgress(10, "Downloading asset index");
-			JSONObject assetDesc = metaJson.getJSONObject("assetIndex");
-			Path assetsDir = Paths.get(installDir, "assets");
-			Path assetIndexDir = assetsDir.resolve("indexes");
-			Files.createDirectories(assetIndexDir);
-			Path assetIndexFilePath = assetIndexDir.resolve(assetDesc.getString("id") + ".json");
-			byte[] assetData;
-			if(!Files.exists(assetIndexFilePath) || !Util.sha1Hex(assetData = Files.readAllBytes(assetIndexFilePath)).equals(assetDesc.getString("sha1"))){
-				logger.info("Downloading assets JSON from '" + assetDesc.getString("url") + "'");
-				assetData = Util.downloadAndVerifyArtifact(assetDesc);
-				Files.write(assetIndexFilePath, assetData);
-			}else{
-				logger.info("Assets JSON '" + assetIndexFilePath + "' already exists with correct hash");
+			StringBuilder errors = new StringBuilder();
+			for(VersionInstaller.Result result : new VersionInstaller(this.settings).installAll(requests, installDir, progress)){
+				if(result.error == null)
+					profiles.add(result.profile);
+				else
+					errors.append("Error while installing '").append(result.request.version).append("': ").append(result.error).append('\n');
 			}
-
-			JSONObject objects = new JSONObject(new String(assetData)).getJSONObject("objects");
-			java.util.Set<String> objectNames = objects.keySet();
-			int objectCount = objectNames.size();
-			logger.info("Downloading asset objects (" + objectCount + ")");
-			int objectP = 0;
-			int objectDL = 0;
-			for(String path : objectNames){
-				String hash = objects.getJSONObject(path).getString("hash");
-				String progstr = " assets [" + objectP + "/" + objectCount + "] " + path + " (" + hash + ")";
-				this.setNewInstallUIProgress(15 + (objectP * 70 / objectCount), "Processing" + progstr);
-				String opath = hash.substring(0, 2) + "/" + hash;
-				Path destPath = assetsDir.resolve("objects/" + opath);
-				if(!Files.exists(destPath)){
-					this.setNewInstallUIProgress(-1, "Downloading" + progstr);
-					byte[] data = Util.get200("https://resources.download.minecraft.net/" + opath);
-					Files.createDirectories(destPath.getParent());
-					Files.write(destPath, data);
-					objectDL++;
-				}
-				objectP++;
-			}
-			logger.info("Finished processing " + objectCount + " asset objects (" + objectDL + " downloaded)");
-
-			this.setNewInstallUIProgress(85, "Downloading game JAR");
-			Path jarPath = versionPath.resolve(version.name + ".jar");
-			JSONObject clientJarDesc = metaJson.getJSONObject("downloads").getJSONObject("client");
-			if(!Files.exists(jarPath) || !Util.sha1Hex(Files.readAllBytes(jarPath)).equals(clientJarDesc.getString("sha1"))){
-				logger.info("Downloading client JAR from '" + clientJarDesc.getString("url") + "'");
-				byte[] clientJar = Util.downloadAndVerifyArtifact(clientJarDesc);
-				Files.write(jarPath, clientJar);
-			}else{
-				logger.info("Client JAR '" + jarPath + "' already exists with correct hash");
-			}
-
-			this.setNewInstallUIProgress(99, "Finishing up");
-			gp = new GameProfile();
-			gp.name = this.configInstallName.getText();
-			gp.versionName = version.name;
-			gp.gameJar = jarPath.toString();
-			gp.libraryData = jsonPath.toString();
-			gp.libraryDir = installDir + "/libraries";
-			gp.assetsDir = assetsDir.toString();
-			gp.nativesDir = null;
-			gp.gameDir = instanceDir;
-			gp.jvmCommand = "java";
-			gp.jvmArgs = "";
-
-			logger.info("Installation of '" + version + "' complete");
-			JOptionPane.showMessageDialog(null, "Successfully installed version '" + version + "'", "Installation complete", JOptionPane.INFORMATION_MESSAGE, null);
+			if(errors.length() > 0)
+				JOptionPane.showMessageDialog(null, errors.toString(), "Install failed", JOptionPane.ERROR_MESSAGE, null);
+			else
+				JOptionPane.showMessageDialog(null, "Successfully installed version '" + versions + "'", "Installation complete", JOptionPane.INFORMATION_MESSAGE, null);
 		}catch(Exception e){
-			logger.error("Error while installing new version '", version, "': ", e);
-			JOptionPane.showMessageDialog(null, "Error while installing '" + version + "': " + e, "Install failed", JOptionPane.ERROR_MESSAGE, null);
+			logger.error("Error while installing '", versions, "': ", e);
+			JOptionPane.showMessageDialog(null, "Error while installing '" + versions + "': " + e, "Install failed", JOptionPane.ERROR_MESSAGE, null);
 		}finally{
-			this.setNewInstallUIProgress(100, "Done");
+			progress.setStage(100, "Done");
+			progressLogger.close();
+			progressPublisher.close();
 			this.setNewInstallUIState(true);
 		}
-		return gp;
-	}
-
-
-	private static class Version {
-
-		public final String name;
-		public final String type;
-		public final String metaUrl;
-
-		public Version(String name, String type, String metaUrl) {
-			this.name = name;
-			this.type = type;
-			this.metaUrl = metaUrl;
-		}
-
-
-		@Override
-		public String toString() {
-			return this.name + " (" + this.type.replace('_', ' ') + ")";
-		}
-
-
-		public static Version from(JSONObject json) {
-			return new Version(json.getString("id"), json.getString("type"), json.getString("url"));
-		}
+		return profiles;
 	}
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+import org.omegazero.common.logging.Logger;
+
+/**
+ * A persistent cache of SHA-1 hashes of files in an install directory, keyed by path, size and modification time.
+ * <p>
+ * A file whose size and modification time did not change since it was last hashed is assumed to be unchanged, and its cached hash is returned without reading the file.
+ * The cache is stored in the file {@value #CACHE_FILE_NAME} in the install directory and is loaded on first use.
+ */
+public class HashCache {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String SETTING_FORCE_REHASH = "HashCache.forceRehash";
+
+	private static final String CACHE_FILE_NAME = "hashcache.bin";
+	private static final int MAGIC = 0x75394843;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final Map<Path, HashCache> caches = new java.util.HashMap<>();
+	private static volatile boolean forceRehash = false;
+
+
+	private final Path cacheFile;
+	private Map<String, Entry> entries;
+	private boolean dirty = false;
+
+	private HashCache(Path cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+
+	/**
+	 * Returns the SHA-1 hash of the given <b>file</b>, either from the cache if the file did not change or by hashing the file.
+	 *
+	 * @param file The file
+	 * @return The SHA-1 hash as a lowercase hexadecimal string
+	 * @throws IOException If an IO error occurs
+	 */
+	public String sha1(Path file) throws IOException {
+		String key = file.toAbsolutePath().normalize().toString();
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		long size = attrs.size();
+		long mtime = attrs.lastModifiedTime().toMillis();
+		Map<String, Entry> entries = this.getEntries();
+		if(!forceRehash){
+			Entry e = entries.get(key);
+			if(e != null && e.size == size && e.mtime == mtime)
+				return Util.byteArrayToHex(e.sha1);
+		}
+		String hash = Util.sha1Hex(file);
+		synchronized(this){
+			entries.put(key, new Entry(size, mtime, Util.hexToByteArray(hash)));
+			this.dirty = true;
+		}
+		return hash;
+	}
+
+	/**
+	 * Records the hash of the given <b>file</b>, which was just written and verified by the caller.
+	 *
+	 * @param file The file
+	 * @param sha1 The SHA-1 hash of the file
+	 * @throws IOException If an IO error occurs
+	 */
+	public void put(Path file, String sha1) throws IOException {
+		String key = file.toAbsolutePath().normalize().toString();
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		Map<String, Entry> entries = this.getEntries();
+		synchronized(this){
+			entries.put(key, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), Util.hexToByteArray(sha1)));
+			this.dirty = true;
+		}
+	}
+
+	private synchronized Map<String, Entry> getEntries() throws IOException {
+		if(this.entries == null){
+			this.entries = new java.util.concurrent.ConcurrentHashMap<>();
+			if(Files.isRegularFile(this.cacheFile)){
+				try{
+					this.load();
+				}catch(IOException e){
+					logger.warn("Discarding unreadable hash cache ", this.cacheFile, ": ", e);
+					this.entries.clear();
+				}
+			}
+		}
+		return this.entries;
+	}
+
+	private void load() throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.cacheFile)))){
+			if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("Invalid header");
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				String path = in.readUTF();
+				long size = in.readLong();
+				long mtime = in.readLong();
+				byte[] sha1 = new byte[20];
+				in.readFully(sha1);
+				this.entries.put(path, new Entry(size, mtime, sha1));
+			}
+		}
+		logger.debug("Loaded ", this.entries.size(), " entries from hash cache ", this.cacheFile);
+	}
+
+	/**
+	 * Writes the cache to disk, if it was modified.
+	 *
+	 * @throws IOException If an IO error occurs
+	 */
+	public synchronized void save() throws IOException {
+		if(!this.dirty)
+			return;
+		Util.writeAtomic(this.cacheFile, (stream) -> {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(this.entries.size());
+			for(Map.Entry<String, Entry> e : this.entries.entrySet()){
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().mtime);
+				out.write(e.getValue().sha1);
+			}
+			out.flush();
+		});
+		this.dirty = false;
+		logger.debug("Saved ", this.entries.size(), " entries to hash cache ", this.cacheFile);
+	}
+
+
+	/**
+	 * Returns the hash cache of the given install directory.
+	 *
+	 * @param installDir The install directory
+	 * @return The hash cache
+	 */
+	public static HashCache forDirectory(Path installDir) {
+		Path cacheFile = installDir.toAbsolutePath().normalize().resolve(CACHE_FILE_NAME);
+		synchronized(caches){
+			return caches.computeIfAbsent(cacheFile, HashCache::new);
+		}
+	}
+
+	/**
+	 * Writes all modified hash caches to disk.
+	 */
+	public static void saveAll() {
+		synchronized(caches){
+			for(HashCache cache : caches.values()){
+				try{
+					cache.save();
+				}catch(IOException e){
+					logger.warn("Failed to save hash cache ", cache.cacheFile, ": ", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets whether cached hashes should be ignored, causing every file to be hashed again (the cache is still updated with the new hashes).
+	 *
+	 * @param forceRehash Whether to ignore cached hashes
+	 */
+	public static void setForceRehash(boolean forceRehash) {
+		HashCache.forceRehash = forceRehash;
+	}
+
+
+	private static class Entry {
+
+		public final long size;
+		public final long mtime;
+		public final byte[] sha1;
+
+		public Entry(long size, long mtime, byte[] sha1) {
+			this.size = size;
+			this.mtime = mtime;
+			this.sha1 = sha1;
+		}
+	}
+}
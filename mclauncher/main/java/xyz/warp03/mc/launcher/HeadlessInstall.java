@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.omegazero.common.event.Tasks;
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.util.Args;
+
+import xyz.warp03.mc.launcher.install.InstallBundle;
+import xyz.warp03.mc.launcher.install.InstallJournal;
+import xyz.warp03.mc.launcher.install.VersionInstaller;
+import xyz.warp03.mc.launcher.install.VersionManifest;
+
+/**
+ * Installs one or more versions without any user interface and adds game profiles for them to the state file. Versions can also be installed from, or exported to, an
+ * {@linkplain InstallBundle offline install bundle}.
+ * <p>
+ * Progress is written as one JSON object per line, with an <code>event</code> field of <code>start</code>, <code>progress</code>, <code>installed</code>,
+ * <code>exported</code>, <code>failed</code>, <code>error</code> or <code>done</code>. Log messages are never valid JSON objects, so events can be separated from the log by taking only the lines
+ * starting with <code>{</code>.
+ * <p>
+ * Neither this class nor anything it uses may reference AWT, Swing or JavaFX classes.
+ */
+public class HeadlessInstall {
+
+	private static final Logger logger = Logger.create();
+
+	public static final int STATUS_OK = 0;
+	public static final int STATUS_FAILED = 1;
+	public static final int STATUS_USAGE = 2;
+
+	private static final long PROGRESS_INTERVAL = 500;
+
+
+	private final Args args;
+	private final PrintStream out;
+
+	private long lastChanges = -1;
+
+	/**
+	 * Creates a new headless install.
+	 *
+	 * @param args The command line arguments
+	 * @param out The stream to write events to. This must be the original standard output, not the one redirected to the logger
+	 */
+	public HeadlessInstall(Args args, PrintStream out) {
+		this.args = args;
+		this.out = out;
+	}
+
+
+	/**
+	 * Runs the install, or the bundle import or export if requested with the <code>importBundle</code> or <code>exportBundle</code> arguments.
+	 *
+	 * @return The exit status: {@link #STATUS_OK} if all versions were installed, {@link #STATUS_FAILED} if any install or the setup failed, or {@link #STATUS_USAGE} if the
+	 *         arguments are invalid
+	 */
+	public int run() {
+		if(this.args.getValue("exportBundle") != null)
+			return this.runExport();
+		else if(this.args.getValue("importBundle") != null)
+			return this.runImport();
+		else
+			return this.runInstall();
+	}
+
+	private int runInstall() {
+		String[] ids = this.args.getValue("install").split(",");
+		String name = this.args.getValue("name");
+		if(name != null && ids.length > 1){
+			this.emit(event("error").put("message", "'name' can only be given when installing a single version"));
+			return STATUS_USAGE;
+		}
+		String installDir = this.args.getValueOrDefault("installDir", VersionInstaller.getDefaultDirectory());
+		String instanceDir = this.args.getValueOrDefault("instanceDir", installDir);
+		File stateFile = LauncherEnvironment.getStateFile(this.args);
+
+		boolean resume = ids.length == 1 && ids[0].trim().equals("resume");
+
+		LauncherData data;
+		List<VersionInstaller.Request> requests = new java.util.ArrayList<>();
+		try{
+			data = LauncherData.load(stateFile);
+			LauncherEnvironment.init(this.args, data.settings);
+			if(resume){
+				try(InstallJournal journal = InstallJournal.open(Paths.get(installDir))){
+					requests.addAll(journal.getPendingRequests());
+				}
+			}else{
+				VersionManifest manifest = VersionManifest.fetch();
+				for(String id : ids){
+					VersionManifest.Version version = manifest.find(id.trim());
+					if(version == null){
+						this.emit(event("error").put("message", "Unknown version: " + id.trim()));
+						return STATUS_USAGE;
+					}
+					requests.add(new VersionInstaller.Request(version, name != null ? name : version.name, instanceDir));
+				}
+			}
+		}catch(Exception e){
+			logger.error("Error during setup: ", e);
+			this.emit(event("error").put("message", String.valueOf(e)));
+			return STATUS_FAILED;
+		}
+		if(resume && requests.isEmpty())
+			logger.info("No interrupted install in ", installDir);
+
+		for(VersionInstaller.Request r : requests)
+			this.emit(event("start").put("version", r.version.name).put("profile", r.name));
+		// all versions are installed as one batch, so that shared artifacts are only downloaded once
+		ProgressTracker progress = new ProgressTracker();
+		long taskId = Tasks.interval((a) -> {
+			HeadlessInstall.this.emitProgress(progress);
+		}, PROGRESS_INTERVAL);
+		List<VersionInstaller.Result> results;
+		try{
+			results = new VersionInstaller(data.settings).installAll(requests, installDir, progress);
+		}catch(Exception e){
+			logger.error("Error during install: ", e);
+			this.emit(event("error").put("message", String.valueOf(e)));
+			return STATUS_FAILED;
+		}finally{
+			Tasks.clear(taskId);
+		}
+		this.emitProgress(progress);
+
+		int failed = 0;
+		for(VersionInstaller.Result result : results){
+			String version = result.request.version.name;
+			if(result.error != null){
+				this.emit(event("failed").put("version", version).put("message", String.valueOf(result.error)));
+				failed++;
+				continue;
+			}
+			// running the same provisioning script again updates the profiles instead of adding duplicates
+			data.profiles.removeIf((p) -> p.name.equals(result.profile.name));
+			data.profiles.add(result.profile);
+			this.emit(event("installed").put("version", version).put("profile", result.profile.name));
+		}
+		try{
+			data.save(stateFile);
+		}catch(IOException e){
+			logger.error("Error while saving data to '", stateFile, "': ", e);
+			this.emit(event("error").put("message", "Failed to save state file: " + e));
+			return STATUS_FAILED;
+		}
+		this.emit(event("done").put("installed", results.size() - failed).put("failed", failed));
+		return failed > 0 ? STATUS_FAILED : STATUS_OK;
+	}
+
+	private int runExport() {
+		Path bundleFile = Paths.get(this.args.getValue("exportBundle"));
+		String profileName = this.args.getValue("profile");
+		if(profileName == null){
+			this.emit(event("error").put("message", "'profile' is required when exporting a bundle"));
+			return STATUS_USAGE;
+		}
+		File stateFile = LauncherEnvironment.getStateFile(this.args);
+		GameProfile profile = null;
+		try{
+			LauncherData data = LauncherData.load(stateFile);
+			LauncherEnvironment.init(this.args, data.settings);
+			for(GameProfile p : data.profiles){
+				if(p.name.equals(profileName))
+					profile = p;
+			}
+		}catch(Exception e){
+			logger.error("Error during setup: ", e);
+			this.emit(event("error").put("message", String.valueOf(e)));
+			return STATUS_FAILED;
+		}
+		if(profile == null){
+			this.emit(event("error").put("message", "Unknown profile: " + profileName));
+			return STATUS_USAGE;
+		}
+
+		this.emit(event("start").put("version", profile.versionName).put("profile", profile.name));
+		ProgressTracker progress = new ProgressTracker();
+		long taskId = Tasks.interval((a) -> {
+			HeadlessInstall.this.emitProgress(progress);
+		}, PROGRESS_INTERVAL);
+		try{
+			InstallBundle.export(profile, bundleFile, progress);
+		}catch(Exception e){
+			logger.error("Error during export: ", e);
+			this.emit(event("failed").put("version", profile.versionName).put("message", String.valueOf(e)));
+			return STATUS_FAILED;
+		}finally{
+			Tasks.clear(taskId);
+		}
+		this.emitProgress(progress);
+		this.emit(event("exported").put("version", profile.versionName).put("file", bundleFile.toString()));
+		this.emit(event("done").put("exported", 1).put("failed", 0));
+		return STATUS_OK;
+	}
+
+	private int runImport() {
+		Path bundleFile = Paths.get(this.args.getValue("importBundle"));
+		String installDir = this.args.getValueOrDefault("installDir", VersionInstaller.getDefaultDirectory());
+		String instanceDir = this.args.getValueOrDefault("instanceDir", installDir);
+		File stateFile = LauncherEnvironment.getStateFile(this.args);
+
+		LauncherData data;
+		GameProfile profile;
+		try(InstallBundle bundle = InstallBundle.open(bundleFile)){
+			data = LauncherData.load(stateFile);
+			LauncherEnvironment.init(this.args, data.settings);
+			String name = this.args.getValueOrDefault("name", bundle.getVersionName());
+			this.emit(event("start").put("version", bundle.getVersionName()).put("profile", name));
+			ProgressTracker progress = new ProgressTracker();
+			long taskId = Tasks.interval((a) -> {
+				HeadlessInstall.this.emitProgress(progress);
+			}, PROGRESS_INTERVAL);
+			try{
+				profile = bundle.install(installDir, name, instanceDir, progress);
+			}catch(Exception e){
+				logger.error("Error during import: ", e);
+				this.emit(event("failed").put("version", bundle.getVersionName()).put("message", String.valueOf(e)));
+				return STATUS_FAILED;
+			}finally{
+				Tasks.clear(taskId);
+			}
+			this.emitProgress(progress);
+		}catch(Exception e){
+			logger.error("Error during setup: ", e);
+			this.emit(event("error").put("message", String.valueOf(e)));
+			return STATUS_FAILED;
+		}
+
+		GameProfile installed = profile;
+		data.profiles.removeIf((p) -> p.name.equals(installed.name));
+		data.profiles.add(profile);
+		this.emit(event("installed").put("version", profile.versionName).put("profile", profile.name));
+		try{
+			data.save(stateFile);
+		}catch(IOException e){
+			logger.error("Error while saving data to '", stateFile, "': ", e);
+			this.emit(event("error").put("message", "Failed to save state file: " + e));
+			return STATUS_FAILED;
+		}
+		this.emit(event("done").put("installed", 1).put("failed", 0));
+		return STATUS_OK;
+	}
+
+	private synchronized void emitProgress(ProgressTracker progress) {
+		long changes = progress.getChanges();
+		if(changes == this.lastChanges)
+			return;
+		this.lastChanges = changes;
+		ProgressTracker.Snapshot snapshot = progress.snapshot();
+		JSONObject json = event("progress").put("percentage", snapshot.percentage).put("message", snapshot.message);
+		if(snapshot.itemsTotal > 0)
+			json.put("items", snapshot.items).put("itemsTotal", snapshot.itemsTotal);
+		if(snapshot.bytesTotal > 0)
+			json.put("bytes", snapshot.bytes).put("bytesTotal", snapshot.bytesTotal);
+		if(snapshot.bytesPerSecond > 0)
+			json.put("bytesPerSecond", snapshot.bytesPerSecond);
+		if(snapshot.etaSeconds >= 0)
+			json.put("etaSeconds", snapshot.etaSeconds);
+		this.emit(json);
+	}
+
+	private synchronized void emit(JSONObject json) {
+		this.out.println(json.toString());
+		this.out.flush();
+	}
+
+
+	private static JSONObject event(String type) {
+		return new JSONObject().put("event", type);
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A streaming pull parser for UTF-8 encoded JSON documents.
+ * <p>
+ * Tokens are read straight from the byte stream, and only strings that are actually requested are decoded. Values that are not needed are skipped with
+ * {@link #skipValue()} without allocating anything, and subtrees that are needed as a whole can be read into <code>org.json</code> objects with {@link #readValue()}. This
+ * is used for large documents like asset indexes, of which only a few fields per entry are used, where parsing the entire document into a {@link JSONObject} first would
+ * be much more expensive.
+ * <p>
+ * Syntax errors are reported as {@link IOException}s including the position of the error, which is the number of bytes read when the error was detected.
+ */
+public class JsonReader implements AutoCloseable {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int SCOPE_DOCUMENT_EMPTY = 0;
+	private static final int SCOPE_DOCUMENT_DONE = 1;
+	private static final int SCOPE_ARRAY_EMPTY = 2;
+	private static final int SCOPE_ARRAY = 3;
+	private static final int SCOPE_OBJECT_EMPTY = 4;
+	private static final int SCOPE_OBJECT = 5;
+	private static final int SCOPE_OBJECT_NAME = 6;
+
+
+	private final InputStream in;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private long bufOffset = 0;
+
+	private int[] scopes = new int[32];
+	private int depth = 1;
+	private Token peeked;
+
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Creates a new reader for the given stream. The stream is not buffered further and is closed when this reader is closed.
+	 *
+	 * @param in The input stream
+	 */
+	public JsonReader(InputStream in) {
+		this.in = in;
+		this.scopes[0] = SCOPE_DOCUMENT_EMPTY;
+	}
+
+
+	/**
+	 * Returns the type of the next token without consuming it.
+	 *
+	 * @return The type of the next token
+	 * @throws IOException If an IO error occurs or the document is invalid
+	 */
+	public Token peek() throws IOException {
+		if(this.peeked != null)
+			return this.peeked;
+		int c;
+		switch(this.scopes[this.depth - 1]){
+			case SCOPE_ARRAY_EMPTY:
+				c = this.nextNonWhitespace();
+				if(c == ']')
+					return this.peeked = Token.END_ARRAY;
+				this.scopes[this.depth - 1] = SCOPE_ARRAY;
+				break;
+			case SCOPE_ARRAY:
+				c = this.nextNonWhitespace();
+				if(c == ']')
+					return this.peeked = Token.END_ARRAY;
+				if(c != ',')
+					throw this.syntaxError("Expected ',' or ']'");
+				c = this.nextNonWhitespace();
+				break;
+			case SCOPE_OBJECT_EMPTY:
+			case SCOPE_OBJECT:
+				c = this.nextNonWhitespace();
+				if(c == '}')
+					return this.peeked = Token.END_OBJECT;
+				if(this.scopes[this.depth - 1] == SCOPE_OBJECT){
+					if(c != ',')
+						throw this.syntaxError("Expected ',' or '}'");
+					c = this.nextNonWhitespace();
+				}
+				if(c != '"')
+					throw this.syntaxError("Expected name");
+				this.scopes[this.depth - 1] = SCOPE_OBJECT_NAME;
+				return this.peeked = Token.NAME;
+			case SCOPE_OBJECT_NAME:
+				if(this.nextNonWhitespace() != ':')
+					throw this.syntaxError("Expected ':'");
+				this.scopes[this.depth - 1] = SCOPE_OBJECT;
+				c = this.nextNonWhitespace();
+				break;
+			case SCOPE_DOCUMENT_EMPTY:
+				c = this.nextNonWhitespace();
+				this.scopes[this.depth - 1] = SCOPE_DOCUMENT_DONE;
+				break;
+			default:
+				if(this.nextNonWhitespaceOrEnd() != -1)
+					throw this.syntaxError("Unexpected data after end of document");
+				return this.peeked = Token.END_DOCUMENT;
+		}
+		switch(c){
+			case '{':
+				return this.peeked = Token.BEGIN_OBJECT;
+			case '[':
+				return this.peeked = Token.BEGIN_ARRAY;
+			case '"':
+				return this.peeked = Token.STRING;
+			case 't':
+			case 'f':
+				this.pos--;
+				return this.peeked = Token.BOOLEAN;
+			case 'n':
+				this.pos--;
+				return this.peeked = Token.NULL;
+			default:
+				if(c == '-' || (c >= '0' && c <= '9')){
+					this.pos--;
+					return this.peeked = Token.NUMBER;
+				}
+				throw this.syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the current array or object has another element.
+	 *
+	 * @return Whether there is another element
+	 * @throws IOException If an IO error occurs or the document is invalid
+	 */
+	public boolean hasNext() throws IOException {
+		Token t = this.peek();
+		return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+	}
+
+	public void beginObject() throws IOException {
+		this.expect(Token.BEGIN_OBJECT);
+		this.push(SCOPE_OBJECT_EMPTY);
+	}
+
+	public void endObject() throws IOException {
+		this.expect(Token.END_OBJECT);
+		this.depth--;
+	}
+
+	public void beginArray() throws IOException {
+		this.expect(Token.BEGIN_ARRAY);
+		this.push(SCOPE_ARRAY_EMPTY);
+	}
+
+	public void endArray() throws IOException {
+		this.expect(Token.END_ARRAY);
+		this.depth--;
+	}
+
+	/**
+	 * Consumes the end of the document, ensuring there is no further data.
+	 *
+	 * @throws IOException If an IO error occurs or the document is not at its end
+	 */
+	public void endDocument() throws IOException {
+		if(this.depth != 1 || this.peek() != Token.END_DOCUMENT)
+			throw this.syntaxError("Expected end of document");
+	}
+
+	public String nextName() throws IOException {
+		this.expect(Token.NAME);
+		return this.readString();
+	}
+
+	public String nextString() throws IOException {
+		this.expect(Token.STRING);
+		return this.readString();
+	}
+
+	/**
+	 * Consumes the next number, which must be an integer in the range of a <code>long</code>.
+	 *
+	 * @return The number
+	 * @throws IOException If an IO error occurs, the document is invalid or the next value is not an integer
+	 */
+	public long nextLong() throws IOException {
+		this.expect(Token.NUMBER);
+		String num = this.readNumber();
+		try{
+			return Long.parseLong(num);
+		}catch(NumberFormatException e){
+			throw this.syntaxError("Expected integer but got " + num);
+		}
+	}
+
+	public boolean nextBoolean() throws IOException {
+		this.expect(Token.BOOLEAN);
+		if(this.buf[this.pos] == 't'){
+			this.readLiteral("true");
+			return true;
+		}else{
+			this.readLiteral("false");
+			return false;
+		}
+	}
+
+	public void nextNull() throws IOException {
+		this.expect(Token.NULL);
+		this.readLiteral("null");
+	}
+
+	/**
+	 * Skips the next value, including all nested values if it is an array or object. Strings are validated, but skipped without being decoded.
+	 *
+	 * @throws IOException If an IO error occurs or the document is invalid
+	 */
+	public void skipValue() throws IOException {
+		int level = 0;
+		do{
+			Token t = this.peek();
+			if(level == 0 && (t == Token.END_OBJECT || t == Token.END_ARRAY))
+				throw this.syntaxError("Expected value");
+			switch(t){
+				case BEGIN_OBJECT:
+					this.beginObject();
+					level++;
+					break;
+				case BEGIN_ARRAY:
+					this.beginArray();
+					level++;
+					break;
+				case END_OBJECT:
+					this.endObject();
+					level--;
+					break;
+				case END_ARRAY:
+					this.endArray();
+					level--;
+					break;
+				case NAME:
+				case STRING:
+					this.peeked = null;
+					this.skipString();
+					break;
+				case NUMBER:
+					this.peeked = null;
+					this.readNumber();
+					break;
+				case BOOLEAN:
+					this.nextBoolean();
+					break;
+				case NULL:
+					this.nextNull();
+					break;
+				default:
+					throw this.syntaxError("Expected value");
+			}
+		}while(level > 0);
+	}
+
+	/**
+	 * Reads the next value into the types used by <code>org.json</code>: {@link JSONObject}, {@link JSONArray}, {@link String}, {@link Number}, {@link Boolean} or
+	 * {@link JSONObject#NULL}.
+	 *
+	 * @return The value
+	 * @throws IOException If an IO error occurs or the document is invalid
+	 */
+	public Object readValue() throws IOException {
+		switch(this.peek()){
+			case BEGIN_OBJECT:
+				JSONObject obj = new JSONObject();
+				this.beginObject();
+				while(this.hasNext()){
+					String name = this.nextName();
+					obj.put(name, this.readValue());
+				}
+				this.endObject();
+				return obj;
+			case BEGIN_ARRAY:
+				JSONArray arr = new JSONArray();
+				this.beginArray();
+				while(this.hasNext())
+					arr.put(this.readValue());
+				this.endArray();
+				return arr;
+			case STRING:
+				return this.nextString();
+			case NUMBER:
+				this.peeked = null;
+				return parseNumber(this.readNumber());
+			case BOOLEAN:
+				return this.nextBoolean();
+			case NULL:
+				this.nextNull();
+				return JSONObject.NULL;
+			default:
+				throw this.syntaxError("Expected value");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+
+	private void expect(Token token) throws IOException {
+		Token t = this.peek();
+		if(t != token)
+			throw this.syntaxError("Expected " + token + " but got " + t);
+		this.peeked = null;
+	}
+
+	private void push(int scope) {
+		if(this.depth == this.scopes.length)
+			this.scopes = java.util.Arrays.copyOf(this.scopes, this.depth * 2);
+		this.scopes[this.depth++] = scope;
+	}
+
+	private boolean fill() throws IOException {
+		this.bufOffset += this.limit;
+		this.pos = 0;
+		this.limit = 0;
+		int n;
+		do{
+			n = this.in.read(this.buf);
+		}while(n == 0);
+		if(n < 0)
+			return false;
+		this.limit = n;
+		return true;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c = this.nextNonWhitespaceOrEnd();
+		if(c == -1)
+			throw this.syntaxError("Unexpected end of document");
+		return c;
+	}
+
+	private int nextNonWhitespaceOrEnd() throws IOException {
+		while(true){
+			if(this.pos == this.limit && !this.fill())
+				return -1;
+			// bytes are unsigned, so that a 0xFF byte is not mistaken for the end of the document
+			int c = this.buf[this.pos++] & 0xff;
+			if(c != ' ' && c != '\n' && c != '\r' && c != '\t')
+				return c;
+		}
+	}
+
+	private String readString() throws IOException {
+		StringBuilder sb = null;
+		int len = 0;
+		while(true){
+			if(this.pos == this.limit && !this.fill())
+				throw this.syntaxError("Unterminated string");
+			int start = this.pos;
+			int end = start;
+			byte b = 0;
+			while(end < this.limit){
+				b = this.buf[end];
+				if(b == '"' || b == '\\' || (b >= 0 && b < 0x20))
+					break;
+				end++;
+			}
+			len = this.appendScratch(len, start, end - start);
+			this.pos = end;
+			if(end == this.limit)
+				continue;
+			this.pos++;
+			if(b == '"')
+				break;
+			if(b != '\\')
+				throw this.syntaxError("Unescaped control character in string");
+			if(sb == null)
+				sb = new StringBuilder(len + 16);
+			sb.append(new String(this.scratch, 0, len, StandardCharsets.UTF_8));
+			len = 0;
+			sb.append(this.readEscape());
+		}
+		String tail = new String(this.scratch, 0, len, StandardCharsets.UTF_8);
+		return sb != null ? sb.append(tail).toString() : tail;
+	}
+
+	private int appendScratch(int len, int start, int count) {
+		if(len + count > this.scratch.length)
+			this.scratch = java.util.Arrays.copyOf(this.scratch, Math.max(this.scratch.length * 2, len + count));
+		System.arraycopy(this.buf, start, this.scratch, len, count);
+		return len + count;
+	}
+
+	private char readEscape() throws IOException {
+		int c = this.nextByte();
+		switch(c){
+			case '"':
+			case '\\':
+			case '/':
+				return (char) c;
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				int value = 0;
+				for(int i = 0; i < 4; i++){
+					int d = Character.digit(this.nextByte(), 16);
+					if(d < 0)
+						throw this.syntaxError("Invalid unicode escape");
+					value = (value << 4) | d;
+				}
+				return (char) value;
+			default:
+				throw this.syntaxError("Invalid escape sequence");
+		}
+	}
+
+	private void skipString() throws IOException {
+		while(true){
+			if(this.pos == this.limit && !this.fill())
+				throw this.syntaxError("Unterminated string");
+			byte b = this.buf[this.pos++];
+			if(b == '"')
+				return;
+			if(b == '\\')
+				this.readEscape();
+			else if(b >= 0 && b < 0x20)
+				throw this.syntaxError("Unescaped control character in string");
+		}
+	}
+
+	private String readNumber() throws IOException {
+		StringBuilder sb = new StringBuilder(20);
+		while(true){
+			if(this.pos == this.limit && !this.fill())
+				break;
+			byte b = this.buf[this.pos];
+			if((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E'){
+				sb.append((char) b);
+				this.pos++;
+			}else
+				break;
+		}
+		return sb.toString();
+	}
+
+	private void readLiteral(String literal) throws IOException {
+		for(int i = 0; i < literal.length(); i++){
+			if(this.nextByte() != literal.charAt(i))
+				throw this.syntaxError("Expected '" + literal + "'");
+		}
+	}
+
+	private int nextByte() throws IOException {
+		if(this.pos == this.limit && !this.fill())
+			throw this.syntaxError("Unexpected end of document");
+		return this.buf[this.pos++] & 0xff;
+	}
+
+	private IOException syntaxError(String msg) {
+		return new IOException(msg + " at byte " + (this.bufOffset + this.pos));
+	}
+
+	private Number parseNumber(String num) throws IOException {
+		try{
+			if(num.indexOf('.') < 0 && num.indexOf('e') < 0 && num.indexOf('E') < 0){
+				long l = Long.parseLong(num);
+				if(l == (int) l)
+					return (int) l;
+				return l;
+			}
+			return Double.parseDouble(num);
+		}catch(NumberFormatException e){
+			try{
+				return new java.math.BigInteger(num);
+			}catch(NumberFormatException e2){
+				throw this.syntaxError("Invalid number " + num);
+			}
+		}
+	}
+
+
+	/**
+	 * Reads only the given top-level <b>fields</b> of the JSON object in the given <b>file</b>. All other fields are skipped without being parsed into objects.
+	 *
+	 * @param file The file
+	 * @param fields The names of the fields to read
+	 * @return A {@link JSONObject} containing the fields that are present in the file
+	 * @throws IOException If an IO error occurs or the file does not contain a valid JSON object
+	 */
+	public static JSONObject readFields(Path file, String... fields) throws IOException {
+		try(JsonReader reader = new JsonReader(Files.newInputStream(file))){
+			return reader.readFields(fields);
+		}catch(IOException e){
+			throw new IOException("Failed to parse " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads only the given top-level <b>fields</b> of the JSON object in the given UTF-8 encoded <b>data</b>, like {@link #readFields(Path, String...)}. This is used
+	 * where the data is already in memory, for example because it was just downloaded or hashed.
+	 *
+	 * @param data The JSON data
+	 * @param fields The names of the fields to read
+	 * @return A {@link JSONObject} containing the fields that are present in the data
+	 * @throws IOException If the data is not a valid JSON object
+	 */
+	public static JSONObject readFields(byte[] data, String... fields) throws IOException {
+		try(JsonReader reader = new JsonReader(new ByteArrayInputStream(data))){
+			return reader.readFields(fields);
+		}
+	}
+
+	private JSONObject readFields(String... fields) throws IOException {
+		java.util.Set<String> names = new java.util.HashSet<>(java.util.Arrays.asList(fields));
+		JSONObject json = new JSONObject();
+		this.beginObject();
+		while(this.hasNext()){
+			String name = this.nextName();
+			if(names.contains(name))
+				json.put(name, this.readValue());
+			else
+				this.skipValue();
+		}
+		this.endObject();
+		this.endDocument();
+		return json;
+	}
+
+
+	public static enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT;
+	}
+}
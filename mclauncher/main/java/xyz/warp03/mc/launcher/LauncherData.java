@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+/**
+ * The persistent state of the launcher: game profiles, accounts and settings.
+ * <p>
+ * All three are written to the state file in a single object stream, so that settings referring to a profile or account (for example the previously selected one) still
+ * refer to the same object after loading.
+ */
+public class LauncherData {
+
+	public List<GameProfile> profiles = new java.util.ArrayList<>();
+	public List<AccountProfile> accounts = new java.util.ArrayList<>();
+	public SettingsManager settings = new SettingsManager();
+
+
+	/**
+	 * Writes this data to the given <b>file</b>, replacing it atomically.
+	 *
+	 * @param file The state file
+	 * @throws IOException If an IO error occurs
+	 */
+	public void save(File file) throws IOException {
+		Util.writeAtomic(file.toPath(), (out) -> {
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(this.profiles);
+			oos.writeObject(this.accounts);
+			oos.writeObject(this.settings);
+			oos.flush();
+		});
+	}
+
+
+	/**
+	 * Reads launcher data from the given <b>file</b>.
+	 *
+	 * @param file The state file
+	 * @return The data, which is empty if the file does not exist
+	 * @throws IOException If an IO error occurs or the file is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	public static LauncherData load(File file) throws IOException {
+		LauncherData data = new LauncherData();
+		if(!file.exists())
+			return data;
+		try(ObjectInputStream ois = new ObjectInputStream(new java.io.FileInputStream(file))){
+			data.profiles = (List<GameProfile>) ois.readObject();
+			data.accounts = (List<AccountProfile>) ois.readObject();
+			data.settings = (SettingsManager) ois.readObject();
+		}catch(ClassNotFoundException | ClassCastException e){
+			throw new IOException("Invalid state file", e);
+		}
+		return data;
+	}
+}
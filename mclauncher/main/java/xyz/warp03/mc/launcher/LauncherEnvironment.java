@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.util.Args;
+
+import xyz.warp03.mc.launcher.download.ArtifactStore;
+import xyz.warp03.mc.launcher.download.BandwidthLimiter;
+import xyz.warp03.mc.launcher.download.DownloadScheduler;
+import xyz.warp03.mc.launcher.download.LanShare;
+import xyz.warp03.mc.launcher.download.MetadataCache;
+import xyz.warp03.mc.launcher.download.Mirrors;
+import xyz.warp03.mc.launcher.download.SharedHttpClient;
+import xyz.warp03.mc.launcher.install.VersionInstaller;
+
+/**
+ * Process-wide setup shared by the launcher window and the headless commands.
+ */
+public final class LauncherEnvironment {
+
+	private static final Logger logger = Logger.create();
+
+	/**
+	 * The name of the default artifact store directory in the install directory.
+	 */
+	public static final String DEFAULT_STORE_DIR = "mclauncher_store";
+
+	private static List<String> lanPeers = java.util.Collections.emptyList();
+	private static boolean lanDiscover = false;
+
+
+	private LauncherEnvironment() {
+	}
+
+
+	/**
+	 * Configures the HTTP client, download limits, artifact store, metadata cache, local network sharing and mirrors from the given command line <b>args</b> and
+	 * <b>settings</b>.
+	 * <p>
+	 * The artifact store and metadata cache are configured before the mirror configuration is loaded, so they are usable even if this method throws.
+	 *
+	 * @param args The command line arguments
+	 * @param settings The launcher settings
+	 * @throws IOException If the mirror configuration could not be loaded
+	 */
+	public static void init(Args args, SettingsManager settings) throws IOException {
+		SharedHttpClient.configure(SharedHttpClient.Config.fromSettings(settings));
+		lanPeers = LanShare.parsePeers(args.getValue("lanPeers"));
+		lanDiscover = args.getBooleanOrDefault("lanDiscover", false);
+		// the store must be on the same file system as the install directory for hardlinks to work, and must not depend on the working directory
+		String storeDir = args.getValueOrDefault("storeDir", Paths.get(args.getValueOrDefault("installDir", VersionInstaller.getDefaultDirectory()), DEFAULT_STORE_DIR).toString());
+		if(!storeDir.equals("null")){
+			logger.info("Using artifact store in ", storeDir);
+			ArtifactStore.setDefault(ArtifactStore.open(Paths.get(storeDir)));
+		}
+		String cacheDir = args.getValueOrDefault("cacheDir", "mclauncher_cache");
+		if(!cacheDir.equals("null")){
+			logger.info("Using metadata cache in ", cacheDir);
+			MetadataCache.setDefault(new MetadataCache(Paths.get(cacheDir)));
+		}
+		// the artifact store must be configured before sharing it is started
+		applySettings(settings);
+		Path mirrorsFile = Paths.get(args.getValueOrDefault("mirrorsFile", "mclauncher_mirrors.json"));
+		if(Files.exists(mirrorsFile)){
+			logger.info("Loading mirror configuration from ", mirrorsFile);
+			try{
+				Mirrors.load(mirrorsFile);
+			}catch(IOException | org.json.JSONException e){
+				throw new IOException("Error while loading mirror configuration from " + mirrorsFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Applies the given <b>settings</b> that affect process-wide components. Called again after settings change.
+	 *
+	 * @param settings The launcher settings
+	 */
+	public static void applySettings(SettingsManager settings) {
+		HashCache.setForceRehash(settings.getBoolean(HashCache.SETTING_FORCE_REHASH, false));
+		DownloadScheduler.setMaxActive(settings.getInt(DownloadScheduler.SETTING_MAX_ACTIVE, DownloadScheduler.DEFAULT_MAX_ACTIVE));
+		BandwidthLimiter.setLimits(settings.getInt(BandwidthLimiter.SETTING_FOREGROUND_LIMIT, 0) * 1024L, settings.getInt(BandwidthLimiter.SETTING_BACKGROUND_LIMIT, 0) * 1024L);
+		List<String> peers = LanShare.parsePeers(settings.getString(LanShare.SETTING_PEERS));
+		peers.addAll(lanPeers);
+		LanShare.configure(settings.getBoolean(LanShare.SETTING_SERVE, false), settings.getInt(LanShare.SETTING_PORT, LanShare.DEFAULT_PORT),
+				settings.getBoolean(LanShare.SETTING_DISCOVER, false) || lanDiscover, peers);
+	}
+
+	/**
+	 * Returns the state file given in the command line <b>args</b>.
+	 *
+	 * @param args The command line arguments
+	 * @return The state file
+	 */
+	public static java.io.File getStateFile(Args args) {
+		return new java.io.File(args.getValueOrDefault("stateFile", "mclauncher_data.ser"));
+	}
+}
@@ -10,26 +10,33 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.omegazero.common.event.Tasks;
 import org.omegazero.common.logging.Logger;
 import org.omegazero.common.logging.LoggerUtil;
 import org.omegazero.common.util.Args;
 
+import xyz.warp03.mc.launcher.download.BandwidthLimiter;
+import xyz.warp03.mc.launcher.download.LanShare;
+import xyz.warp03.mc.launcher.install.InstallBundle;
+import xyz.warp03.mc.launcher.install.InstallVerifier;
+import xyz.warp03.mc.launcher.install.VersionInstaller;
 import xyz.warp03.mc.launcher.launch.GameInstance;
 import xyz.warp03.mc.launcher.launch.LaunchHandler;
 import xyz.warp03.mc.launcher.login.LoginManager;
@@ -51,6 +58,7 @@ public final class MCLauncher {
 
 	private State state = State.NEW;
 
+	private final Args args;
 	private final File dataFile;
 	private List<LoginManager> loginManagers = new java.util.ArrayList<>();
 
@@ -69,22 +77,23 @@ public final class MCLauncher {
 	private GameProfileWizard gpManager;
 
 	public MCLauncher(Args args) {
-		this.dataFile = new File(args.getValueOrDefault("stateFile", "mclauncher_data.ser"));
+		this.args = args;
+		this.dataFile = LauncherEnvironment.getStateFile(args);
 		this.loginManagers.add(new xyz.warp03.mc.launcher.login.MSAuthenticator());
 		this.loginManagers.add(new xyz.warp03.mc.launcher.login.YggdrasilAuthenticator());
 		this.loginManagers.add(new xyz.warp03.mc.launcher.login.OfflineAuthenticator());
 	}
 
 
-	@SuppressWarnings("unchecked")
 	private void loadState() {
 		if(!this.dataFile.canRead())
 			return;
 		logger.info("Loading data from ", this.dataFile);
-		try(ObjectInputStream ois = new ObjectInputStream(new java.io.FileInputStream(this.dataFile))){
-			this.profiles = (List<GameProfile>) ois.readObject();
-			this.accounts = (List<AccountProfile>) ois.readObject();
-			this.settings = (SettingsManager) ois.readObject();
+		try{
+			LauncherData data = LauncherData.load(this.dataFile);
+			this.profiles = data.profiles;
+			this.accounts = data.accounts;
+			this.settings = data.settings;
 		}catch(Exception e){
 			logger.error("Error while loading data from '", this.dataFile, "': ", e);
 			this.showError("IO error", "Error while loading data from " + this.dataFile);
@@ -93,10 +102,12 @@ public final class MCLauncher {
 
 	private void saveState() {
 		logger.info("Saving data to ", this.dataFile);
-		try(ObjectOutputStream oos = new ObjectOutputStream(new java.io.FileOutputStream(this.dataFile))){
-			oos.writeObject(this.profiles);
-			oos.writeObject(this.accounts);
-			oos.writeObject(this.settings);
+		LauncherData data = new LauncherData();
+		data.profiles = this.profiles;
+		data.accounts = this.accounts;
+		data.settings = this.settings;
+		try{
+			data.save(this.dataFile);
 		}catch(Exception e){
 			logger.error("Error while saving data to '", this.dataFile, "': ", e);
 			this.showError("IO error", "Error while saving data to " + this.dataFile);
@@ -110,6 +121,12 @@ public final class MCLauncher {
 		logger.info(BRAND + " v" + VERSION);
 		this.loadState();
 		logger.info("Configuration: " + this.profiles.size() + " game profiles, " + this.accounts.size() + " accounts");
+		try{
+			LauncherEnvironment.init(this.args, this.settings);
+		}catch(IOException e){
+			logger.error("Error during setup: ", e);
+			this.showError("Configuration error", e.getMessage());
+		}
 
 		logger.info("Initializing launcher window");
 		this.mainFrame = new JFrame(BRAND + " v" + VERSION);
@@ -142,6 +159,33 @@ public final class MCLauncher {
 
 		logger.info("Initialization complete");
 		this.updateState(State.WAITING);
+
+		Tasks.timeout((a) -> {
+			MCLauncher.this.resumeInterruptedInstall();
+		}, 0);
+	}
+
+	private void resumeInterruptedInstall() {
+		List<VersionInstaller.Request> requests = this.gpManager.getInterruptedInstall();
+		if(requests.isEmpty())
+			return;
+		StringBuilder msg = new StringBuilder("The installation of the following versions was interrupted:\n");
+		for(VersionInstaller.Request r : requests)
+			msg.append(r.version).append(" (profile '").append(r.name).append("')\n");
+		msg.append("\nResume it now?");
+		if(JOptionPane.showConfirmDialog(null, msg.toString(), "Resume installation", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION)
+			return;
+		this.updateState(State.INSTALL);
+		for(GameProfile profile : this.gpManager.resumeInstall(requests))
+			this.addInstalledProfile(profile);
+		this.updateState(State.WAITING);
+	}
+
+	private void addInstalledProfile(GameProfile profile) {
+		this.profiles.add(profile);
+		logger.info("Added newly installed game profile from GameProfileWizard: name='" + profile.name + "' versionName='" + profile.versionName + "'");
+		this.settings.set(SETTING_SELECTED_GAME_PROFILE, profile);
+		this.updateComboBoxContents();
 	}
 
 	private JPanel newStatePanel(State state) {
@@ -163,15 +207,17 @@ public final class MCLauncher {
 		if(jp == null)
 			return;
 
-		Util.addLabel(jp, "Game Profile", 40, jp.getHeight() - 140, 100);
+		UIUtil.addButton(jp, "Settings", jp.getWidth() - 110, 10, 100, 25, true, this::settingsPopup);
+
+		UIUtil.addLabel(jp, "Game Profile", 40, jp.getHeight() - 140, 100);
 		this.selectGameProfile = new JComboBox<>();
 		this.selectGameProfile.setBounds(40, jp.getHeight() - 120, 200, 25);
 		jp.add(this.selectGameProfile);
-		Util.addButton(jp, "Edit", 250, jp.getHeight() - 120, 50, 25, true, () -> {
+		UIUtil.addButton(jp, "Edit", 250, jp.getHeight() - 120, 50, 25, true, () -> {
 			GameProfile profile = (GameProfile) MCLauncher.this.selectGameProfile.getSelectedItem();
 			MCLauncher.this.editGameProfilePopup(profile);
 		});
-		Util.addButton(jp, "x", 310, jp.getHeight() - 120, 25, 25, true, () -> {
+		UIUtil.addButton(jp, "x", 310, jp.getHeight() - 120, 25, 25, true, () -> {
 			GameProfile profile = (GameProfile) MCLauncher.this.selectGameProfile.getSelectedItem();
 			if(JOptionPane.showConfirmDialog(null, "Are you sure you would like to delete profile '" + profile + "'", "Delete game profile",
 					JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION){
@@ -182,17 +228,17 @@ public final class MCLauncher {
 				MCLauncher.this.updateComboBoxContents();
 			}
 		});
-		Util.addButton(jp, "+", 345, jp.getHeight() - 120, 25, 25, true, this::addGameProfilePopup);
+		UIUtil.addButton(jp, "+", 345, jp.getHeight() - 120, 25, 25, true, this::addGameProfilePopup);
 
-		Util.addLabel(jp, "Account", jp.getWidth() / 2, jp.getHeight() - 140, 100);
+		UIUtil.addLabel(jp, "Account", jp.getWidth() / 2, jp.getHeight() - 140, 100);
 		this.selectAccount = new JComboBox<>();
 		this.selectAccount.setBounds(jp.getWidth() / 2, jp.getHeight() - 120, 200, 25);
 		jp.add(this.selectAccount);
-		Util.addButton(jp, "Edit", jp.getWidth() / 2 + 210, jp.getHeight() - 120, 50, 25, true, () -> {
+		UIUtil.addButton(jp, "Edit", jp.getWidth() / 2 + 210, jp.getHeight() - 120, 50, 25, true, () -> {
 			AccountProfile account = (AccountProfile) MCLauncher.this.selectAccount.getSelectedItem();
 			MCLauncher.this.editAccountPopup(account);
 		});
-		Util.addButton(jp, "x", jp.getWidth() / 2 + 270, jp.getHeight() - 120, 25, 25, true, () -> {
+		UIUtil.addButton(jp, "x", jp.getWidth() / 2 + 270, jp.getHeight() - 120, 25, 25, true, () -> {
 			AccountProfile account = (AccountProfile) MCLauncher.this.selectAccount.getSelectedItem();
 			if(JOptionPane.showConfirmDialog(null, "Are you sure you would like to delete account '" + account + "'", "Delete account",
 					JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION){
@@ -203,7 +249,7 @@ public final class MCLauncher {
 				MCLauncher.this.updateComboBoxContents();
 			}
 		});
-		Util.addButton(jp, "+", jp.getWidth() / 2 + 305, jp.getHeight() - 120, 25, 25, true, this::addAccountPopup);
+		UIUtil.addButton(jp, "+", jp.getWidth() / 2 + 305, jp.getHeight() - 120, 25, 25, true, this::addAccountPopup);
 
 		this.updateComboBoxContents();
 
@@ -211,7 +257,24 @@ public final class MCLauncher {
 		this.keepLauncherOpen.setBounds(40, jp.getHeight() - 70, 150, 25);
 		jp.add(this.keepLauncherOpen);
 
-		Util.addButton(jp, "Launch", jp.getWidth() / 2 - 150, jp.getHeight() - 70, 300, 50, false, () -> {
+		UIUtil.addButton(jp, "Verify installation", jp.getWidth() - 190, jp.getHeight() - 70, 150, 25, true, () -> {
+			GameProfile profile = (GameProfile) MCLauncher.this.selectGameProfile.getSelectedItem();
+			if(profile == null){
+				MCLauncher.this.showError("Invalid configuration", "Game Profile must be selected");
+				return;
+			}
+			MCLauncher.this.verifyProfilePopup(profile);
+		});
+		UIUtil.addButton(jp, "Export bundle", jp.getWidth() - 190, jp.getHeight() - 40, 150, 25, true, () -> {
+			GameProfile profile = (GameProfile) MCLauncher.this.selectGameProfile.getSelectedItem();
+			if(profile == null){
+				MCLauncher.this.showError("Invalid configuration", "Game Profile must be selected");
+				return;
+			}
+			MCLauncher.this.exportBundlePopup(profile);
+		});
+
+		UIUtil.addButton(jp, "Launch", jp.getWidth() / 2 - 150, jp.getHeight() - 70, 300, 50, false, () -> {
 			GameProfile profile = (GameProfile) MCLauncher.this.selectGameProfile.getSelectedItem();
 			AccountProfile account = (AccountProfile) MCLauncher.this.selectAccount.getSelectedItem();
 			if(profile == null || account == null){
@@ -238,15 +301,17 @@ public final class MCLauncher {
 		if(jp == null)
 			return;
 
-		this.loadingLabel = Util.addLabel(jp, "", 10, jp.getHeight() - 90, jp.getWidth());
+		this.loadingLabel = UIUtil.addLabel(jp, "", 10, jp.getHeight() - 90, jp.getWidth());
 		this.loadingBar = new JProgressBar();
 		this.loadingBar.setBounds(10, jp.getHeight() - 70, jp.getWidth() - 20, 20);
 		jp.add(this.loadingBar);
+		this.statePanels.put(State.VERIFYING, jp);
 	}
 
 
 	private void addGameProfilePopup() {
-		JComboBox<String> selectAction = new JComboBox<>(new String[] { "Install new version", "Manually import existing installation" });
+		JComboBox<String> selectAction = new JComboBox<>(new String[] { "Install new version", "Manually import existing installation",
+				"Install from offline bundle" });
 		Object[] message = { "Select action: ", selectAction };
 		if(JOptionPane.showConfirmDialog(null, message, "Add game profile", JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION){
 			int action = selectAction.getSelectedIndex();
@@ -254,17 +319,15 @@ public final class MCLauncher {
 				this.updateState(State.INSTALL);
 				Tasks.timeout((a) -> {
 					this.gpManager.showNewInstallUI((profile) -> {
-						if(profile != null){
-							this.profiles.add(profile);
-							logger.info("Added newly installed game profile from GameProfileWizard: name='" + profile.name + "' versionName='" + profile.versionName + "'");
-							MCLauncher.this.settings.set(SETTING_SELECTED_GAME_PROFILE, profile);
-							this.updateComboBoxContents();
-						}
+						if(profile != null)
+							MCLauncher.this.addInstalledProfile(profile);
 						MCLauncher.this.updateState(State.WAITING);
 					});
 				}, 0);
 			}else if(action == 1){
 				this.editGameProfilePopup(null);
+			}else if(action == 2){
+				this.importBundlePopup();
 			}else{
 				this.showError("Add game profile", "Invalid action: " + action);
 			}
@@ -345,6 +408,141 @@ public final class MCLauncher {
 		}
 	}
 
+	private void verifyProfilePopup(GameProfile profile) {
+		Object[] options = { "Verify and repair", "Verify only", "Cancel" };
+		int action = JOptionPane.showOptionDialog(null, "Check all files of game profile '" + profile + "' against the version metadata?", "Verify installation",
+				JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+		if(action != 0 && action != 1)
+			return;
+		boolean repair = action == 0;
+		Tasks.timeout((a) -> {
+			this.initLoadingPanel();
+			this.requireState(State.WAITING);
+			this.updateState(State.VERIFYING);
+			ProgressTracker progress = new ProgressTracker();
+			try(SwingProgressPublisher progressPublisher = this.publishLoadingProgress(progress)){
+				InstallVerifier.Report report = new InstallVerifier(profile).verify(repair, progress.range(0, 100));
+				progressPublisher.close();
+				StringBuilder msg = new StringBuilder();
+				msg.append(report.isIntact() ? "All files are valid" : "Some files are missing or corrupt").append("\n\n");
+				for(String line : report.toString().split("; "))
+					msg.append(line).append('\n');
+				List<InstallVerifier.Entry> problems = report.getProblems();
+				if(problems.size() > 0){
+					msg.append('\n');
+					for(int i = 0; i < problems.size() && i < 10; i++)
+						msg.append(problems.get(i)).append('\n');
+					if(problems.size() > 10)
+						msg.append("... and " + (problems.size() - 10) + " more (see log)\n");
+					for(InstallVerifier.Entry e : problems)
+						logger.info("Verification: ", e);
+				}
+				JOptionPane.showMessageDialog(null, msg.toString(), "Verification complete",
+						report.isIntact() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE, null);
+			}catch(Exception e){
+				logger.error("Error while verifying game profile '", profile, "': ", e);
+				this.showError("Verification failed", "An error occurred while verifying '" + profile + "': " + e);
+			}finally{
+				this.updateState(State.WAITING);
+			}
+		}, 0);
+	}
+
+	private void importBundlePopup() {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setFileFilter(new FileNameExtensionFilter("Install bundles", InstallBundle.FILE_EXTENSION.substring(1)));
+		if(chooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
+			return;
+		Path bundleFile = chooser.getSelectedFile().toPath();
+		InstallBundle bundle;
+		try{
+			bundle = InstallBundle.open(bundleFile);
+		}catch(IOException e){
+			logger.error("Error while opening install bundle '", bundleFile, "': ", e);
+			this.showError("Import failed", "Could not open install bundle: " + e);
+			return;
+		}
+		JTextField profileName = new JTextField(bundle.getVersionName());
+		JTextField installDir = new JTextField(VersionInstaller.getDefaultDirectory());
+		JTextField gameDir = new JTextField(VersionInstaller.getDefaultDirectory());
+		Object[] message = { "Bundle contains version " + bundle.getVersionName() + " for " + bundle.getPlatform() + " (" + bundle.getFileCount() + " files, "
+				+ bundle.getDataSize() / 1024 / 1024 + " MiB)", "Profile Name: ", profileName, "Install Directory:", installDir, "Game Directory:", gameDir };
+		if(JOptionPane.showConfirmDialog(null, message, "Install from offline bundle", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION){
+			try{
+				bundle.close();
+			}catch(IOException e){
+				logger.warn("Error while closing install bundle: ", e);
+			}
+			return;
+		}
+		Tasks.timeout((a) -> {
+			this.initLoadingPanel();
+			this.requireState(State.WAITING);
+			this.updateState(State.VERIFYING);
+			ProgressTracker progress = new ProgressTracker();
+			try(InstallBundle b = bundle; SwingProgressPublisher progressPublisher = this.publishLoadingProgress(progress)){
+				GameProfile profile = b.install(installDir.getText(), profileName.getText(), gameDir.getText(), progress);
+				this.addInstalledProfile(profile);
+			}catch(Exception e){
+				logger.error("Error while installing from bundle '", bundleFile, "': ", e);
+				this.showError("Import failed", "An error occurred while installing from the bundle: " + e);
+			}finally{
+				this.updateState(State.WAITING);
+			}
+		}, 0);
+	}
+
+	private void exportBundlePopup(GameProfile profile) {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setSelectedFile(new File(profile.versionName + InstallBundle.FILE_EXTENSION));
+		if(chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
+			return;
+		Path bundleFile = chooser.getSelectedFile().toPath();
+		Tasks.timeout((a) -> {
+			this.initLoadingPanel();
+			this.requireState(State.WAITING);
+			this.updateState(State.VERIFYING);
+			ProgressTracker progress = new ProgressTracker();
+			try(SwingProgressPublisher progressPublisher = this.publishLoadingProgress(progress)){
+				InstallBundle.export(profile, bundleFile, progress);
+				progressPublisher.close();
+				JOptionPane.showMessageDialog(null, "Exported '" + profile + "' to " + bundleFile, "Export complete", JOptionPane.INFORMATION_MESSAGE, null);
+			}catch(Exception e){
+				logger.error("Error while exporting game profile '", profile, "': ", e);
+				this.showError("Export failed", "An error occurred while exporting '" + profile + "': " + e);
+			}finally{
+				this.updateState(State.WAITING);
+			}
+		}, 0);
+	}
+
+	private void settingsPopup() {
+		JCheckBox forceRehash = new JCheckBox("Always rehash files when verifying (ignore hash cache)", this.settings.getBoolean(HashCache.SETTING_FORCE_REHASH, false));
+		JTextField foregroundLimit = new JTextField(String.valueOf(this.settings.getInt(BandwidthLimiter.SETTING_FOREGROUND_LIMIT, 0)));
+		JTextField backgroundLimit = new JTextField(String.valueOf(this.settings.getInt(BandwidthLimiter.SETTING_BACKGROUND_LIMIT, 0)));
+		JCheckBox lanServe = new JCheckBox("Share downloaded files with other launchers on the local network", this.settings.getBoolean(LanShare.SETTING_SERVE, false));
+		JCheckBox lanDiscover = new JCheckBox("Download from other launchers on the local network", this.settings.getBoolean(LanShare.SETTING_DISCOVER, false));
+		String peers = this.settings.getString(LanShare.SETTING_PEERS);
+		JTextField lanPeers = new JTextField(peers != null ? peers : "");
+		Object[] message = { forceRehash, "Download limit when launching (KiB/s, 0 for unlimited):", foregroundLimit,
+				"Download limit for installs and other downloads (KiB/s, 0 for unlimited):", backgroundLimit, "Current throughput: " + BandwidthLimiter.getStats(), lanServe,
+				lanDiscover, "Additional launchers to download from (comma-separated URLs, e.g. http://10.0.0.5:" + LanShare.DEFAULT_PORT + "):", lanPeers };
+		if(JOptionPane.showConfirmDialog(null, message, "Settings", JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION){
+			this.settings.set(HashCache.SETTING_FORCE_REHASH, forceRehash.isSelected());
+			this.settings.set(LanShare.SETTING_SERVE, lanServe.isSelected());
+			this.settings.set(LanShare.SETTING_DISCOVER, lanDiscover.isSelected());
+			this.settings.set(LanShare.SETTING_PEERS, lanPeers.getText().trim());
+			try{
+				this.settings.set(BandwidthLimiter.SETTING_FOREGROUND_LIMIT, Math.max(0, Integer.parseInt(foregroundLimit.getText().trim())));
+				this.settings.set(BandwidthLimiter.SETTING_BACKGROUND_LIMIT, Math.max(0, Integer.parseInt(backgroundLimit.getText().trim())));
+			}catch(NumberFormatException e){
+				this.showError("Invalid value", "Download limits must be whole numbers");
+			}
+			LauncherEnvironment.applySettings(this.settings);
+			logger.info("Updated settings");
+		}
+	}
+
 	private void updateComboBoxContents() {
 		this.profiles.sort((gp1, gp2) -> {
 			return gp1.toString().compareTo(gp2.toString());
@@ -360,7 +558,19 @@ public final class MCLauncher {
 			this.selectAccount.setSelectedItem(this.settings.get(SETTING_SELECTED_ACCOUNT_PROFILE));
 	}
 
+	private SwingProgressPublisher publishLoadingProgress(ProgressTracker progress) {
+		return new SwingProgressPublisher(progress, (snapshot) -> {
+			MCLauncher.this.updateLoadingState(snapshot.percentage, snapshot.format());
+		});
+	}
+
 	private void updateLoadingState(int percentage, String msg) {
+		if(!SwingUtilities.isEventDispatchThread()){
+			SwingUtilities.invokeLater(() -> {
+				MCLauncher.this.updateLoadingState(percentage, msg);
+			});
+			return;
+		}
 		if(percentage >= 0)
 			this.loadingBar.setValue(percentage);
 		if(msg != null)
@@ -370,12 +580,19 @@ public final class MCLauncher {
 
 
 	public void launch(GameProfile profile, AccountProfile account) {
+		ProgressTracker progress = new ProgressTracker();
+		try(SwingProgressPublisher progressPublisher = this.publishLoadingProgress(progress)){
+			this.launch(profile, account, progress, progressPublisher);
+		}
+	}
+
+	private void launch(GameProfile profile, AccountProfile account, ProgressTracker progress, SwingProgressPublisher progressPublisher) {
 		this.initLoadingPanel();
 		this.requireState(State.WAITING);
 		this.updateState(State.LAUNCHING);
 
 		logger.info("Logging in with account '", account, "'");
-		this.updateLoadingState(2, "Logging in");
+		progress.setStage(2, "Logging in");
 		LoginManager authenticator = this.resolveLoginManager(account.getAuthenticator());
 
 		PlayerSession session;
@@ -411,21 +628,20 @@ public final class MCLauncher {
 
 		logger.info("Launching minecraft with game profile '", profile, "' and player '", session.getPlayerName(), "'");
 		try{
-			GameInstance instance = GameInstance.loadFromJSON(profile.libraryDir, profile.libraryData.split("::"), (frac, msg) -> {
-				MCLauncher.this.updateLoadingState((int) (10 + frac * 80), msg);
-			});
+			GameInstance instance = GameInstance.loadFromJSON(profile.libraryDir, profile.libraryData.split("::"), progress.range(10, 90));
 
 			if(profile.nativesDir == null || profile.nativesDir.length() < 1){
 				java.nio.file.Path destPath = java.nio.file.Paths.get(profile.gameJar).getParent().resolve(profile.versionName + "-natives");
-				this.updateLoadingState(91, "Extracting natives");
+				progress.setStage(91, "Extracting natives");
 				instance.extractNatives(destPath);
 				profile.nativesDir = destPath.toString();
 			}
 
-			this.updateLoadingState(96, "Launching minecraft");
+			progress.setStage(96, "Launching minecraft");
 			Process p = LaunchHandler.launchMinecraft(instance, profile, session);
 			logger.info("Minecraft process started");
-			this.updateLoadingState(100, "Done");
+			progress.setStage(100, "Done");
+			progressPublisher.close();
 			if(!this.keepLauncherOpen.isSelected()){
 				this.mainFrame.dispose();
 				int status = p.waitFor();
@@ -465,6 +681,8 @@ public final class MCLauncher {
 		this.updateState(State.CLOSING);
 		logger.info("Shutting down");
 		this.saveState();
+		HashCache.saveAll();
+		LanShare.stop();
 		if(this.mainFrame != null){
 			this.mainFrame.dispose();
 		}
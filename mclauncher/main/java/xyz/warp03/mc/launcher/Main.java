@@ -6,6 +6,7 @@
  */
 package xyz.warp03.mc.launcher;
 
+import java.io.PrintStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 
 import org.omegazero.common.OmzLib;
@@ -21,6 +22,11 @@ public class Main {
 	public static void main(String[] pargs) {
 		Args args = Args.parse(pargs);
 
+		boolean headless = args.getValue("install") != null || args.getValue("importBundle") != null || args.getValue("exportBundle") != null;
+		if(headless)
+			System.setProperty("java.awt.headless", "true");
+
+		PrintStream stdout = System.out;
 		LoggerUtil.redirectStandardOutputStreams();
 
 		String logFile = args.getValueOrDefault("logFile", "log");
@@ -36,10 +42,29 @@ public class Main {
 			}
 		});
 
+		if(headless)
+			runHeadless(args, stdout);
+		else
+			startLauncher(args);
+	}
+
+	private static void startLauncher(Args args) {
 		try{
 			new MCLauncher(args).init();
 		}catch(Exception e){
 			logger.fatal("Error during initialization: ", e);
 		}
 	}
+
+	private static void runHeadless(Args args, PrintStream stdout) {
+		int status;
+		try{
+			status = new HeadlessInstall(args, stdout).run();
+		}catch(Exception e){
+			logger.fatal("Error during headless install: ", e);
+			status = 3;
+		}
+		LoggerUtil.close();
+		System.exit(status);
+	}
 }
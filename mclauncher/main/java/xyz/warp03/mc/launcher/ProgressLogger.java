@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import org.omegazero.common.event.Tasks;
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Periodically writes snapshots of a {@link ProgressTracker} to the log, if the progress changed since the last one was written.
+ */
+public class ProgressLogger implements AutoCloseable {
+
+	private static final Logger logger = Logger.create();
+
+
+	private final ProgressTracker tracker;
+	private final long taskId;
+	private long lastChanges = -1;
+
+	public ProgressLogger(ProgressTracker tracker, long intervalMillis) {
+		this.tracker = tracker;
+		this.taskId = Tasks.interval((a) -> {
+			this.log();
+		}, intervalMillis);
+	}
+
+
+	private synchronized void log() {
+		long changes = this.tracker.getChanges();
+		if(changes == this.lastChanges)
+			return;
+		this.lastChanges = changes;
+		logger.info(this.tracker.snapshot());
+	}
+
+	/**
+	 * Stops logging, after logging the final state of the tracker.
+	 */
+	@Override
+	public void close() {
+		Tasks.clear(this.taskId);
+		this.log();
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The progress of a long-running operation, such as an install or a launch.
+ * <p>
+ * Worker threads only update counters and fields of this object, which is cheap and never blocks. Views, such as a {@link SwingProgressPublisher} or a
+ * {@link ProgressLogger}, periodically take a {@link #snapshot() snapshot} and display it, so the rate at which a worker reports progress does not affect how often the
+ * view is updated.
+ * <p>
+ * The throughput of an item-based stage is sampled by the worker threads as items are completed, at most once every {@value #SAMPLE_INTERVAL_NANOS} nanoseconds, so it
+ * does not depend on how many views take snapshots or how often they do. Taking a snapshot has no side effects.
+ */
+public class ProgressTracker {
+
+	private static final long SAMPLE_INTERVAL_NANOS = 500000000L;
+	private static final double THROUGHPUT_WEIGHT = 0.3;
+
+
+	private final AtomicLong changes = new AtomicLong();
+
+	private volatile int percentage = 0;
+	private volatile String message = "";
+
+	private volatile int itemsFrom = -1;
+	private volatile int itemsTo;
+	private volatile int itemsTotal;
+	private volatile long bytesTotal;
+	private final AtomicInteger items = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+
+	private volatile long sampleTime = System.nanoTime();
+	private long sampleBytes = 0;
+	private double throughput = 0;
+
+
+	/**
+	 * Sets the overall percentage and status message, ending any item-based stage started by {@link #beginItems(int, int, int, long, String)}.
+	 *
+	 * @param percentage The percentage
+	 * @param message The status message
+	 */
+	public void setStage(int percentage, String message) {
+		this.itemsFrom = -1;
+		this.percentage = percentage;
+		this.message = message;
+		this.changes.incrementAndGet();
+	}
+
+	/**
+	 * Sets the status message without changing the percentage.
+	 *
+	 * @param message The status message
+	 */
+	public void setMessage(String message) {
+		this.message = message;
+		this.changes.incrementAndGet();
+	}
+
+	/**
+	 * Starts a stage consisting of <b>itemsTotal</b> items with a total size of <b>bytesTotal</b> bytes. While this stage is active, the overall percentage moves from
+	 * <b>from</b> to <b>to</b> as items are {@linkplain #itemCompleted(long) completed}.
+	 *
+	 * @param from The percentage at the start of this stage
+	 * @param to The percentage at the end of this stage
+	 * @param itemsTotal The number of items
+	 * @param bytesTotal The total size of all items in bytes, or <code>0</code> if unknown
+	 * @param message The status message
+	 */
+	public void beginItems(int from, int to, int itemsTotal, long bytesTotal, String message) {
+		synchronized(this){
+			this.items.set(0);
+			this.bytes.set(0);
+			this.sampleTime = System.nanoTime();
+			this.sampleBytes = 0;
+			this.throughput = 0;
+		}
+		this.itemsTo = to;
+		this.itemsTotal = itemsTotal;
+		this.bytesTotal = bytesTotal;
+		this.message = message;
+		this.itemsFrom = from;
+		this.changes.incrementAndGet();
+	}
+
+	/**
+	 * Records that an item of the current item-based stage was completed.
+	 *
+	 * @param bytes The number of bytes of the item
+	 */
+	public void itemCompleted(long bytes) {
+		long total = this.bytes.addAndGet(bytes);
+		this.items.incrementAndGet();
+		long now = System.nanoTime();
+		if(now - this.sampleTime >= SAMPLE_INTERVAL_NANOS){
+			synchronized(this){
+				long dt = now - this.sampleTime;
+				if(dt >= SAMPLE_INTERVAL_NANOS){
+					this.throughput = nextThroughput(this.throughput, total - this.sampleBytes, dt);
+					this.sampleTime = now;
+					this.sampleBytes = total;
+				}
+			}
+		}
+		this.changes.incrementAndGet();
+	}
+
+	/**
+	 * Returns a callback which maps progress values between 0 and 1 to a percentage between <b>from</b> and <b>to</b>, for passing to methods taking a progress callback.
+	 *
+	 * @param from The percentage for a progress value of 0
+	 * @param to The percentage for a progress value of 1
+	 * @return The callback
+	 */
+	public BiConsumer<Float, String> range(int from, int to) {
+		return (frac, msg) -> {
+			this.setStage(from + (int) (frac * (to - from)), msg);
+		};
+	}
+
+	/**
+	 * Returns a number that changes every time this progress is updated.
+	 *
+	 * @return The change counter
+	 */
+	public long getChanges() {
+		return this.changes.get();
+	}
+
+	/**
+	 * Returns the current progress, including the throughput and estimated remaining time of the current item-based stage.
+	 *
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot() {
+		int from = this.itemsFrom;
+		if(from < 0)
+			return new Snapshot(this.percentage, this.message, 0, 0, 0, 0, 0, -1);
+		int itemsTotal = this.itemsTotal;
+		long bytesTotal = this.bytesTotal;
+		int items = this.items.get();
+		long bytes = this.bytes.get();
+		double throughput;
+		synchronized(this){
+			throughput = this.throughput;
+			// no item was completed for over two sampling intervals, so the last sample is stale: include the current interval without recording it as a sample
+			long dt = System.nanoTime() - this.sampleTime;
+			if(dt >= SAMPLE_INTERVAL_NANOS * 2)
+				throughput = nextThroughput(throughput, bytes - this.sampleBytes, dt);
+		}
+		double frac;
+		if(bytesTotal > 0)
+			frac = Math.min(1, (double) bytes / bytesTotal);
+		else if(itemsTotal > 0)
+			frac = Math.min(1, (double) items / itemsTotal);
+		else
+			frac = 0;
+		long eta = bytesTotal > 0 && throughput > 0 ? (long) ((bytesTotal - bytes) / throughput) : -1;
+		return new Snapshot(from + (int) (frac * (this.itemsTo - from)), this.message, items, itemsTotal, bytes, bytesTotal, (long) throughput, eta);
+	}
+
+
+	private static double nextThroughput(double throughput, long bytes, long dt) {
+		double current = bytes * 1e9 / dt;
+		return throughput > 0 ? throughput * (1 - THROUGHPUT_WEIGHT) + current * THROUGHPUT_WEIGHT : current;
+	}
+
+
+	public static class Snapshot {
+
+		public final int percentage;
+		public final String message;
+		public final int items;
+		public final int itemsTotal;
+		public final long bytes;
+		public final long bytesTotal;
+		public final long bytesPerSecond;
+		public final long etaSeconds;
+
+		public Snapshot(int percentage, String message, int items, int itemsTotal, long bytes, long bytesTotal, long bytesPerSecond, long etaSeconds) {
+			this.percentage = percentage;
+			this.message = message;
+			this.items = items;
+			this.itemsTotal = itemsTotal;
+			this.bytes = bytes;
+			this.bytesTotal = bytesTotal;
+			this.bytesPerSecond = bytesPerSecond;
+			this.etaSeconds = etaSeconds;
+		}
+
+
+		/**
+		 * Returns the status message, followed by the item count, throughput and estimated remaining time if this is an item-based stage.
+		 *
+		 * @return The formatted status
+		 */
+		public String format() {
+			if(this.itemsTotal <= 0)
+				return this.message;
+			StringBuilder sb = new StringBuilder(this.message);
+			sb.append(" [").append(this.items).append('/').append(this.itemsTotal).append(']');
+			if(this.bytesTotal > 0)
+				sb.append(' ').append(formatBytes(this.bytes)).append(" of ").append(formatBytes(this.bytesTotal));
+			if(this.bytesPerSecond > 0)
+				sb.append(", ").append(formatBytes(this.bytesPerSecond)).append("/s");
+			if(this.etaSeconds >= 0)
+				sb.append(", ").append(this.etaSeconds / 60).append(':').append(String.format("%02d", this.etaSeconds % 60)).append(" left");
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return "[" + this.percentage + "%] " + this.format();
+		}
+
+
+		private static String formatBytes(long bytes) {
+			if(bytes < 1024 * 1024)
+				return (bytes / 1024) + " KiB";
+			else
+				return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+		}
+	}
+}
@@ -39,4 +39,12 @@ public class SettingsManager implements java.io.Serializable {
 			return def;
 		}
 	}
+
+	public boolean getBoolean(String name, boolean def) {
+		Object o = this.settings.get(name);
+		if(o == null)
+			return def;
+		else
+			return Boolean.parseBoolean(o.toString());
+	}
 }
@@ -7,7 +7,7 @@
 package xyz.warp03.mc.launcher;
 
 public enum State {
-	NEW(0), INITIALIZING(1), WAITING(2), INSTALL(3), LAUNCHING(4), RUNNING(5), CLOSING(6);
+	NEW(0), INITIALIZING(1), WAITING(2), INSTALL(3), VERIFYING(4), LAUNCHING(5), RUNNING(6), CLOSING(7);
 
 	private final int value;
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Publishes snapshots of a {@link ProgressTracker} to a Swing view at a fixed frame rate. The view is always called on the event dispatch thread, and only if the progress
+ * changed since the last frame.
+ */
+public class SwingProgressPublisher implements AutoCloseable {
+
+	private static final int FRAME_INTERVAL_MILLIS = 1000 / 15;
+
+
+	private final ProgressTracker tracker;
+	private final Consumer<ProgressTracker.Snapshot> view;
+	private final Timer timer;
+	private long lastChanges = -1;
+	private boolean closed = false;
+
+	public SwingProgressPublisher(ProgressTracker tracker, Consumer<ProgressTracker.Snapshot> view) {
+		this.tracker = tracker;
+		this.view = view;
+		this.timer = new Timer(FRAME_INTERVAL_MILLIS, (e) -> {
+			this.publish();
+		});
+		this.timer.setCoalesce(true);
+		this.timer.start();
+	}
+
+
+	private void publish() {
+		long changes = this.tracker.getChanges();
+		if(changes == this.lastChanges)
+			return;
+		this.lastChanges = changes;
+		this.view.accept(this.tracker.snapshot());
+	}
+
+	/**
+	 * Stops publishing, after publishing the final state of the tracker. Does nothing if this publisher was already closed.
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.closed)
+			return;
+		this.closed = true;
+		this.timer.stop();
+		SwingUtilities.invokeLater(this::publish);
+	}
+}
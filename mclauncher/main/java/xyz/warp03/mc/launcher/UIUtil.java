@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+
+/**
+ * Swing helpers. These are kept separate from {@link Util} so that headless code never loads AWT.
+ */
+public final class UIUtil {
+
+	private UIUtil() {
+	}
+
+
+	public static JLabel addLabel(java.awt.Container parent, String text, int x, int y, int width) {
+		JLabel label = new JLabel(text);
+		label.setBounds(x, y, width, 15);
+		parent.add(label);
+		return label;
+	}
+
+	public static JButton addButton(java.awt.Container parent, String text, int x, int y, int width, int height, boolean compact, Runnable onClick) {
+		JButton button = new JButton(text);
+		button.setBounds(x, y, width, height);
+		button.setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.HAND_CURSOR));
+		if(compact){
+			button.setBorder(null);
+			button.setBackground(java.awt.Color.LIGHT_GRAY);
+		}
+		if(onClick != null){
+			button.addActionListener(new ActionListener(){
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					onClick.run();
+				}
+			});
+		}
+		parent.add(button);
+		return button;
+	}
+}
@@ -6,27 +6,45 @@
  */
 package xyz.warp03.mc.launcher;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-
-import javax.swing.JButton;
-import javax.swing.JLabel;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONObject;
 import org.omegazero.common.logging.Logger;
 
+import xyz.warp03.mc.launcher.download.DownloadScheduler;
+import xyz.warp03.mc.launcher.download.Downloader;
+import xyz.warp03.mc.launcher.download.HostStats;
+import xyz.warp03.mc.launcher.download.HttpStatusException;
+import xyz.warp03.mc.launcher.download.Retry;
+import xyz.warp03.mc.launcher.download.SharedHttpClient;
+
 public final class Util {
 
 	private static final Logger logger = Logger.create();
 
+	private static final boolean IS_WINDOWS = System.getProperty("os.name").toLowerCase().contains("windows");
+	private static final long DIGEST_MAP_THRESHOLD = 4 * 1024 * 1024;
+	private static final long DIGEST_MAP_WINDOW = 64 * 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> digestBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(256 * 1024));
+	private static final String TMP_INFIX = "." + ProcessHandle.current().pid() + "-";
+	private static final AtomicLong tmpCounter = new AtomicLong();
+
 
 	private Util() {
 	}
@@ -43,12 +61,12 @@ public final class Util {
 	public static HttpResponse<String> post(String url, String contentType, String accept, String payload) throws IOException {
 		try{
 			logger.debug("POST " + url + " (" + payload.length() + " chars)");
-			HttpRequest.Builder hb = HttpRequest.newBuilder(new URI(url));
+			HttpRequest.Builder hb = SharedHttpClient.newRequest(new URI(url));
 			hb.header("Content-Type", contentType);
 			if(accept != null)
 				hb.header("Accept", accept);
 			HttpRequest request = hb.POST(HttpRequest.BodyPublishers.ofString(payload)).build();
-			return HttpClient.newBuilder().build().send(request, HttpResponse.BodyHandlers.ofString());
+			return SharedHttpClient.send(request, HttpResponse.BodyHandlers.ofString());
 		}catch(InterruptedException | URISyntaxException e){
 			throw new RuntimeException(e);
 		}
@@ -57,11 +75,11 @@ public final class Util {
 	public static HttpResponse<byte[]> get(String url, String accept) throws IOException {
 		try{
 			logger.debug("GET " + url);
-			HttpRequest.Builder hb = HttpRequest.newBuilder(new URI(url));
+			HttpRequest.Builder hb = SharedHttpClient.newRequest(new URI(url));
 			if(accept != null)
 				hb.header("Accept", accept);
 			HttpRequest request = hb.GET().build();
-			return HttpClient.newBuilder().build().send(request, HttpResponse.BodyHandlers.ofByteArray());
+			return SharedHttpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
 		}catch(InterruptedException | URISyntaxException e){
 			throw new RuntimeException(e);
 		}
@@ -72,20 +90,37 @@ public final class Util {
 	}
 
 	public static byte[] get200(String url, String accept) throws IOException {
-		HttpResponse<byte[]> res = get(url, accept);
-		if(res.statusCode() != 200)
-			throw new IOException("Non-200 status code: " + res.statusCode());
-		return res.body();
+		URI uri;
+		try{
+			uri = new URI(url);
+		}catch(URISyntaxException e){
+			throw new IOException("Invalid URL: " + url, e);
+		}
+		HostStats hostStats = HostStats.get(uri);
+		return Retry.run(uri, () -> hostStats.request(() -> {
+			HttpResponse<byte[]> res = get(url, accept);
+			if(res.statusCode() != 200)
+				throw new HttpStatusException(res.statusCode(), res.headers());
+			return res.body();
+		}));
 	}
 
 
-	public static byte[] downloadAndVerifyArtifact(JSONObject desc) throws IOException {
-		String sha1 = desc.getString("sha1");
-		byte[] data = Util.get200(desc.getString("url"), null);
-		String calcHash = sha1Hex(data);
-		if(!calcHash.equals(sha1))
-			throw new IOException("Hash values do not match: expected " + sha1 + " calculated " + calcHash);
-		return data;
+	/**
+	 * Downloads the artifact described by <b>desc</b> (an object with <code>url</code>, <code>sha1</code> and optionally <code>size</code>) to <b>dest</b>, verifying its
+	 * size and hash.
+	 *
+	 * @param desc The artifact descriptor
+	 * @param dest The destination file
+	 * @throws IOException If an IO error occurs or verification fails
+	 * @see Downloader#downloadArtifact(String, Path, long, String, java.util.concurrent.Semaphore, DownloadScheduler.Priority)
+	 */
+	public static void downloadAndVerifyArtifact(JSONObject desc, Path dest) throws IOException {
+		downloadAndVerifyArtifact(desc, dest, DownloadScheduler.Priority.CRITICAL);
+	}
+
+	public static void downloadAndVerifyArtifact(JSONObject desc, Path dest, DownloadScheduler.Priority priority) throws IOException {
+		Downloader.downloadArtifact(desc.getString("url"), dest, desc.optLong("size", -1), desc.getString("sha1"), null, priority);
 	}
 
 
@@ -99,40 +134,166 @@ public final class Util {
 		}
 	}
 
-	public static String byteArrayToHex(byte[] data) {
-		final StringBuilder builder = new StringBuilder(data.length * 2);
-		for(byte b : data)
-			builder.append(String.format("%02x", b));
-		return builder.toString();
+	/**
+	 * Calculates the SHA-1 hash of the given <b>file</b> without reading it into a heap array.
+	 *
+	 * @param file The file
+	 * @return The SHA-1 hash as a lowercase hexadecimal string
+	 * @throws IOException If an IO error occurs
+	 * @see #digestChannel(MessageDigest, FileChannel, long)
+	 */
+	public static String sha1Hex(Path file) throws IOException {
+		try{
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+				digestChannel(md, ch, ch.size());
+			}
+			return byteArrayToHex(md.digest());
+		}catch(NoSuchAlgorithmException e){
+			throw new RuntimeException(e);
+		}
 	}
 
+	/**
+	 * Updates <b>md</b> with the first <b>length</b> bytes of the given file channel.
+	 * <p>
+	 * Large files are memory-mapped in windows of {@value #DIGEST_MAP_WINDOW} bytes. Smaller files, and all files on Windows (where a file cannot be replaced or deleted until
+	 * its mapping is garbage collected), are read through a per-thread direct buffer.
+	 *
+	 * @param md The message digest
+	 * @param ch The file channel
+	 * @param length The number of bytes to digest, starting at position 0
+	 * @throws IOException If an IO error occurs or the file is shorter than <b>length</b>
+	 */
+	public static void digestChannel(MessageDigest md, FileChannel ch, long length) throws IOException {
+		if(length >= DIGEST_MAP_THRESHOLD && !IS_WINDOWS){
+			long pos = 0;
+			while(pos < length){
+				long len = Math.min(DIGEST_MAP_WINDOW, length - pos);
+				md.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, len));
+				pos += len;
+			}
+		}else{
+			ByteBuffer buf = digestBuffer.get();
+			long pos = 0;
+			while(pos < length){
+				buf.clear();
+				if(length - pos < buf.capacity())
+					buf.limit((int) (length - pos));
+				int n = ch.read(buf, pos);
+				if(n < 0)
+					throw new IOException("Unexpected end of file");
+				buf.flip();
+				md.update(buf);
+				pos += n;
+			}
+		}
+	}
 
-	public static JLabel addLabel(java.awt.Container parent, String text, int x, int y, int width) {
-		JLabel label = new JLabel(text);
-		label.setBounds(x, y, width, 15);
-		parent.add(label);
-		return label;
+	/**
+	 * Writes <b>data</b> to <b>dest</b> atomically.
+	 *
+	 * @param dest The destination file
+	 * @param data The data
+	 * @throws IOException If an IO error occurs
+	 * @see #writeAtomic(Path, StreamWriter)
+	 */
+	public static void writeAtomic(Path dest, byte[] data) throws IOException {
+		writeAtomic(dest, (out) -> {
+			out.write(data);
+		});
 	}
 
-	public static JButton addButton(java.awt.Container parent, String text, int x, int y, int width, int height, boolean compact, Runnable onClick) {
-		JButton button = new JButton(text);
-		button.setBounds(x, y, width, height);
-		button.setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.HAND_CURSOR));
-		if(compact){
-			button.setBorder(null);
-			button.setBackground(java.awt.Color.LIGHT_GRAY);
-		}
-		if(onClick != null){
-			button.addActionListener(new ActionListener(){
+	/**
+	 * Writes a file atomically: the <b>writer</b> writes to a temporary file next to <b>dest</b>, which is synced to disk and then renamed to <b>dest</b>. After a crash,
+	 * <b>dest</b> is therefore either absent, the previous version, or the complete new version, but never truncated.
+	 *
+	 * @param dest The destination file
+	 * @param writer Writes the contents of the file. Closing the stream passed to it has no effect
+	 * @throws IOException If an IO error occurs
+	 */
+	public static void writeAtomic(Path dest, StreamWriter writer) throws IOException {
+		Path tmp = tmpPath(dest.toAbsolutePath());
+		Files.createDirectories(tmp.getParent());
+		try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch)){
 
 				@Override
-				public void actionPerformed(ActionEvent e) {
-					onClick.run();
+				public void close() throws IOException {
+					super.flush();
 				}
-			});
+			};
+			writer.write(out);
+			out.flush();
+			ch.force(true);
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tmp);
+			throw e;
 		}
-		parent.add(button);
-		return button;
+		moveAtomic(tmp, dest);
+	}
+
+	/**
+	 * Returns a path for a temporary file next to <b>dest</b>, which is later moved to <b>dest</b>. The name is unique to this process and call, so that concurrent writers
+	 * of the same destination, also in other processes, do not overwrite or delete each other's temporary files.
+	 *
+	 * @param dest The destination file
+	 * @return The path of the temporary file, in the same directory as <b>dest</b>
+	 */
+	public static Path tmpPath(Path dest) {
+		return dest.resolveSibling(dest.getFileName().toString() + TMP_INFIX + tmpCounter.incrementAndGet() + ".tmp");
+	}
+
+	/**
+	 * Renames <b>source</b> to <b>dest</b> atomically, replacing <b>dest</b> if it exists, and syncs the directory so that the rename survives a crash. The contents of
+	 * <b>source</b> must already be synced to disk.
+	 *
+	 * @param source The source file
+	 * @param dest The destination file
+	 * @throws IOException If an IO error occurs
+	 */
+	public static void moveAtomic(Path source, Path dest) throws IOException {
+		Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory(dest.toAbsolutePath().getParent());
+	}
+
+	/**
+	 * Syncs the contents of the given <b>file</b> to disk.
+	 *
+	 * @param file The file
+	 * @throws IOException If an IO error occurs
+	 */
+	public static void syncFile(Path file) throws IOException {
+		try(FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)){
+			ch.force(true);
+		}
+	}
+
+	private static void syncDirectory(Path dir) {
+		// directories cannot be opened on Windows, where renames are journaled by the file system anyway
+		if(IS_WINDOWS || dir == null)
+			return;
+		try(FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)){
+			ch.force(true);
+		}catch(IOException e){
+			logger.trace("Failed to sync directory ", dir, ": ", e);
+		}
+	}
+
+	public static String byteArrayToHex(byte[] data) {
+		final StringBuilder builder = new StringBuilder(data.length * 2);
+		for(byte b : data)
+			builder.append(String.format("%02x", b));
+		return builder.toString();
+	}
+
+	public static byte[] hexToByteArray(String hex) {
+		if(hex.length() % 2 != 0)
+			throw new IllegalArgumentException("Hex string has odd length");
+		byte[] data = new byte[hex.length() / 2];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		return data;
 	}
 
 
@@ -145,4 +306,11 @@ public final class Util {
 			return System.getProperty("os.arch").contains("64");
 		}
 	}
+
+
+	@FunctionalInterface
+	public static interface StreamWriter {
+
+		public void write(OutputStream out) throws IOException;
+	}
 }
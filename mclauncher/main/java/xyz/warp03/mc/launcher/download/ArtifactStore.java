@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.HashCache;
+import xyz.warp03.mc.launcher.Util;
+
+/**
+ * A content-addressed store of downloaded artifacts, shared by all install directories.
+ * <p>
+ * Artifacts are stored as <code>objects/&lt;first 2 hex digits&gt;/&lt;sha1&gt;</code> in the store directory. Artifacts are downloaded into the store, and an
+ * artifact that is already in the store is hardlinked (or copied, if linking is not possible, for example because the destination is on a different file system) to
+ * its destination instead of being downloaded again.
+ * <p>
+ * Stored artifacts are verified before they are placed, using a {@link HashCache} of the store directory so that each artifact is only hashed again if it changed on
+ * disk. Temporary files have names unique to the process and placement, so that concurrent placements of the same artifact or destination do not interfere. Temporary
+ * files left behind in the store by processes that no longer run, and partial downloads that were not resumed for {@value #STALE_PART_DAYS} days, are removed when the
+ * store is {@linkplain #open(Path) opened}.
+ */
+public class ArtifactStore {
+
+	private static final Logger logger = Logger.create();
+
+	private static final String TMP_PREFIX = "." + ProcessHandle.current().pid() + "-";
+	private static final AtomicLong tmpCounter = new AtomicLong();
+	private static final Pattern TMP_NAME = Pattern.compile("\\.(\\d+)-\\d+\\.(?:link|tmp)$");
+	private static final int STALE_PART_DAYS = 7;
+
+	private static ArtifactStore defaultStore;
+
+
+	private final Path dir;
+	private final HashCache hashCache;
+
+	private final AtomicLong linkedCount = new AtomicLong();
+	private final AtomicLong linkedBytes = new AtomicLong();
+	private final AtomicLong copiedCount = new AtomicLong();
+	private final AtomicLong copiedBytes = new AtomicLong();
+
+	public ArtifactStore(Path dir) {
+		this.dir = dir;
+		this.hashCache = HashCache.forDirectory(dir);
+	}
+
+
+	/**
+	 * Opens the store in the given directory and removes stale temporary files from it. Errors while removing them are logged and otherwise ignored.
+	 *
+	 * @param dir The store directory
+	 * @return The store
+	 */
+	public static ArtifactStore open(Path dir) {
+		ArtifactStore store = new ArtifactStore(dir);
+		try{
+			int removed = store.removeStaleFiles();
+			if(removed > 0)
+				logger.info("Removed ", removed, " stale temporary files from artifact store ", dir);
+		}catch(IOException e){
+			logger.warn("Failed to remove stale temporary files from artifact store ", dir, ": ", e);
+		}
+		return store;
+	}
+
+
+	/**
+	 * Places the artifact with the given hash at <b>dest</b> if it exists in the store.
+	 *
+	 * @param sha1 The SHA-1 hash of the artifact
+	 * @param size The size of the artifact, or <code>-1</code> if unknown
+	 * @param dest The destination path
+	 * @return <code>true</code> if the artifact was placed at <b>dest</b>, <code>false</code> if it is not in the store
+	 * @throws IOException If an IO error occurs
+	 */
+	public boolean provide(String sha1, long size, Path dest) throws IOException {
+		Path stored = this.objectPath(sha1);
+		if(!Files.isRegularFile(stored))
+			return false;
+		long storedSize = Files.size(stored);
+		if((size >= 0 && storedSize != size) || !this.hashCache.sha1(stored).equals(sha1)){
+			logger.warn("Removing corrupt artifact ", sha1, " from store");
+			Files.deleteIfExists(stored);
+			return false;
+		}
+		this.place(stored, storedSize, dest);
+		return true;
+	}
+
+	/**
+	 * Places the artifact with the given hash at <b>dest</b> without verifying it. The artifact must be in the store and must have been verified by the caller.
+	 *
+	 * @param sha1 The SHA-1 hash of the artifact
+	 * @param dest The destination path
+	 * @throws IOException If an IO error occurs, for example because the artifact is not in the store
+	 */
+	public void link(String sha1, Path dest) throws IOException {
+		Path stored = this.objectPath(sha1);
+		this.place(stored, Files.size(stored), dest);
+	}
+
+	private void place(Path stored, long storedSize, Path dest) throws IOException {
+		Path tmp = tmpPath(dest.toAbsolutePath());
+		Files.createDirectories(tmp.getParent());
+		try{
+			Files.createLink(tmp, stored);
+			this.linkedCount.incrementAndGet();
+			this.linkedBytes.addAndGet(storedSize);
+		}catch(IOException | UnsupportedOperationException e){
+			logger.debug("Hardlinking ", stored, " to ", dest, " failed, copying instead: ", e);
+			try{
+				Files.copy(stored, tmp, StandardCopyOption.REPLACE_EXISTING);
+				Util.syncFile(tmp);
+			}catch(IOException | RuntimeException e2){
+				Files.deleteIfExists(tmp);
+				throw e2;
+			}
+			this.copiedCount.incrementAndGet();
+			this.copiedBytes.addAndGet(storedSize);
+		}
+		Util.moveAtomic(tmp, dest);
+	}
+
+	/**
+	 * Adds the verified artifact at <b>file</b> to the store, if the store does not already contain it.
+	 *
+	 * @param sha1 The SHA-1 hash of the artifact
+	 * @param file The artifact
+	 * @throws IOException If an IO error occurs
+	 */
+	public void add(String sha1, Path file) throws IOException {
+		Path stored = this.objectPath(sha1);
+		if(Files.exists(stored))
+			return;
+		Files.createDirectories(stored.getParent());
+		Path tmp = tmpPath(stored);
+		try{
+			Files.createLink(tmp, file);
+		}catch(IOException | UnsupportedOperationException e){
+			try{
+				Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+				Util.syncFile(tmp);
+			}catch(IOException | RuntimeException e2){
+				Files.deleteIfExists(tmp);
+				throw e2;
+			}
+		}
+		Util.moveAtomic(tmp, stored);
+		this.hashCache.put(stored, sha1);
+	}
+
+	/**
+	 * Returns the path of the artifact with the given hash in the store. The file may not exist.
+	 *
+	 * @param sha1 The SHA-1 hash
+	 * @return The path
+	 */
+	public Path objectPath(String sha1) {
+		return this.dir.resolve("objects").resolve(sha1.substring(0, 2)).resolve(sha1);
+	}
+
+	public Path getDirectory() {
+		return this.dir;
+	}
+
+	/**
+	 * Returns the hash cache of the store directory, which contains the hashes of stored artifacts.
+	 *
+	 * @return The hash cache
+	 */
+	public HashCache getHashCache() {
+		return this.hashCache;
+	}
+
+	private static Path tmpPath(Path file) {
+		return file.resolveSibling(file.getFileName().toString() + TMP_PREFIX + tmpCounter.incrementAndGet() + ".link");
+	}
+
+
+	/**
+	 * Removes temporary files of processes that are no longer running and partial downloads that were not modified for {@value #STALE_PART_DAYS} days. Temporary files of
+	 * running processes, which may share this store, are kept.
+	 *
+	 * @return The number of removed files
+	 * @throws IOException If an IO error occurs
+	 */
+	public int removeStaleFiles() throws IOException {
+		Path objects = this.dir.resolve("objects");
+		if(!Files.isDirectory(objects))
+			return 0;
+		long partCutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(STALE_PART_DAYS);
+		int removed = 0;
+		try(Stream<Path> files = Files.walk(objects)){
+			for(Path p : (Iterable<Path>) files::iterator){
+				String fileName = p.getFileName().toString();
+				boolean stale;
+				Matcher m = TMP_NAME.matcher(fileName);
+				if(m.find())
+					stale = !isRunning(Long.parseLong(m.group(1)));
+				else if(fileName.endsWith(".part"))
+					stale = Files.getLastModifiedTime(p).toMillis() < partCutoff;
+				else
+					continue;
+				if(stale && Files.deleteIfExists(p)){
+					logger.debug("Removed stale temporary file ", p);
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+
+	private static boolean isRunning(long pid) {
+		try{
+			return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+		}catch(SecurityException | UnsupportedOperationException e){
+			return true;
+		}
+	}
+
+
+	/**
+	 * Walks the store and calculates its storage usage. The number of bytes saved is derived from the hardlink count of each stored artifact, where supported by the file
+	 * system.
+	 *
+	 * @return The storage usage
+	 * @throws IOException If an IO error occurs
+	 */
+	public Usage computeUsage() throws IOException {
+		Path objects = this.dir.resolve("objects");
+		long count = 0, bytes = 0, saved = 0;
+		if(Files.isDirectory(objects)){
+			try(Stream<Path> files = Files.walk(objects)){
+				for(Path p : (Iterable<Path>) files::iterator){
+					String fileName = p.getFileName().toString();
+					if(!Files.isRegularFile(p) || fileName.endsWith(".link") || fileName.endsWith(".part") || fileName.endsWith(".tmp"))
+						continue;
+					long size = Files.size(p);
+					count++;
+					bytes += size;
+					int links = getLinkCount(p);
+					// one link is the store itself, every install directory after the first one would otherwise need its own copy
+					if(links > 2)
+						saved += size * (links - 2);
+				}
+			}
+		}
+		return new Usage(count, bytes, saved, this.linkedCount.get(), this.linkedBytes.get(), this.copiedCount.get(), this.copiedBytes.get());
+	}
+
+	private static int getLinkCount(Path p) {
+		try{
+			return ((Number) Files.getAttribute(p, "unix:nlink")).intValue();
+		}catch(IOException | UnsupportedOperationException | IllegalArgumentException e){
+			return 1;
+		}
+	}
+
+
+	public static ArtifactStore getDefault() {
+		return defaultStore;
+	}
+
+	public static void setDefault(ArtifactStore store) {
+		defaultStore = store;
+	}
+
+
+	public static class Usage {
+
+		public final long storedCount;
+		public final long storedBytes;
+		public final long savedBytes;
+		public final long linkedCount;
+		public final long linkedBytes;
+		public final long copiedCount;
+		public final long copiedBytes;
+
+		public Usage(long storedCount, long storedBytes, long savedBytes, long linkedCount, long linkedBytes, long copiedCount, long copiedBytes) {
+			this.storedCount = storedCount;
+			this.storedBytes = storedBytes;
+			this.savedBytes = savedBytes;
+			this.linkedCount = linkedCount;
+			this.linkedBytes = linkedBytes;
+			this.copiedCount = copiedCount;
+			this.copiedBytes = copiedBytes;
+		}
+
+
+		@Override
+		public String toString() {
+			return this.storedCount + " artifacts (" + this.storedBytes + " bytes) stored, " + this.savedBytes + " bytes saved by hardlinks; this session: " + this.linkedCount
+					+ " linked (" + this.linkedBytes + " bytes), " + this.copiedCount + " copied (" + this.copiedBytes + " bytes)";
+		}
+	}
+}
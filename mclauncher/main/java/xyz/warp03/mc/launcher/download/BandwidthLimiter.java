@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.InterruptedIOException;
+
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Process-wide download rate limits.
+ * <p>
+ * There are two token buckets, one for {@linkplain DownloadScheduler.Priority#FOREGROUND foreground} downloads and one for all other downloads. Every chunk received by
+ * the {@link Downloader} takes tokens from the bucket of its download, and the receiving thread sleeps if the bucket is in debt. Since all downloads share the buckets, the
+ * limits apply across all concurrent installs and launches. A limit of <code>0</code> means unlimited. The achieved throughput of each bucket is available from
+ * {@link #getStats()}.
+ */
+public final class BandwidthLimiter {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String SETTING_FOREGROUND_LIMIT = "BandwidthLimiter.foregroundLimit";
+	public static final String SETTING_BACKGROUND_LIMIT = "BandwidthLimiter.backgroundLimit";
+
+	private static final Bucket foreground = new Bucket("foreground");
+	private static final Bucket background = new Bucket("background");
+
+
+	private BandwidthLimiter() {
+	}
+
+
+	/**
+	 * Takes <b>bytes</b> tokens from the bucket of the given <b>priority</b>, waiting if the limit was exceeded.
+	 *
+	 * @param priority The priority of the download
+	 * @param bytes The number of bytes received
+	 * @throws InterruptedIOException If the calling thread is interrupted while waiting
+	 */
+	public static void consume(DownloadScheduler.Priority priority, int bytes) throws InterruptedIOException {
+		getBucket(priority).consume(bytes);
+	}
+
+	/**
+	 * Sets the rate limits. Changes apply immediately, including to downloads in progress.
+	 *
+	 * @param foregroundLimit The limit for foreground downloads in bytes per second, or <code>0</code> for no limit
+	 * @param backgroundLimit The limit for all other downloads in bytes per second, or <code>0</code> for no limit
+	 */
+	public static void setLimits(long foregroundLimit, long backgroundLimit) {
+		foreground.setRate(foregroundLimit);
+		background.setRate(backgroundLimit);
+		logger.debug("Configured: foregroundLimit=", foregroundLimit, " backgroundLimit=", backgroundLimit);
+	}
+
+	/**
+	 * Returns a summary of the limits and the throughput achieved during the last second of activity.
+	 *
+	 * @return The summary
+	 */
+	public static String getStats() {
+		return foreground + ", " + background;
+	}
+
+	private static Bucket getBucket(DownloadScheduler.Priority priority) {
+		return priority == DownloadScheduler.Priority.FOREGROUND ? foreground : background;
+	}
+
+
+	private static class Bucket {
+
+		private static final long WINDOW_NANOS = 1000000000L;
+
+		private final String name;
+
+		private long rate = 0;
+		private long tokens = 0;
+		private long lastRefill = System.nanoTime();
+
+		private long windowStart = System.nanoTime();
+		private long windowBytes = 0;
+		private long achieved = 0;
+
+		public Bucket(String name) {
+			this.name = name;
+		}
+
+
+		public void consume(int bytes) throws InterruptedIOException {
+			long waitNanos;
+			synchronized(this){
+				long now = System.nanoTime();
+				this.windowBytes += bytes;
+				if(now - this.windowStart >= WINDOW_NANOS){
+					this.achieved = this.windowBytes * WINDOW_NANOS / (now - this.windowStart);
+					this.windowStart = now;
+					this.windowBytes = 0;
+					if(this.rate > 0)
+						logger.trace("Throughput ", this.name, ": ", this.achieved / 1024, " KiB/s of ", this.rate / 1024, " KiB/s");
+				}
+				if(this.rate <= 0)
+					return;
+				// at most one second worth of tokens may accumulate while idle
+				long elapsed = Math.min(now - this.lastRefill, WINDOW_NANOS);
+				this.tokens = Math.min(this.rate, this.tokens + elapsed * this.rate / WINDOW_NANOS);
+				this.lastRefill = now;
+				this.tokens -= bytes;
+				if(this.tokens >= 0)
+					return;
+				waitNanos = -this.tokens * WINDOW_NANOS / this.rate;
+			}
+			try{
+				Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+			}
+		}
+
+		public synchronized void setRate(long rate) {
+			this.rate = Math.max(0, rate);
+			this.tokens = Math.min(this.tokens, this.rate);
+			this.lastRefill = System.nanoTime();
+		}
+
+		@Override
+		public synchronized String toString() {
+			long achieved = System.nanoTime() - this.windowStart < 2 * WINDOW_NANOS ? this.achieved : 0;
+			return this.name + ": " + achieved / 1024 + " KiB/s of " + (this.rate > 0 ? (this.rate / 1024 + " KiB/s") : "unlimited");
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.util.PriorityQueue;
+
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Process-wide admission control for artifact downloads.
+ * <p>
+ * At most {@link #setMaxActive(int) maxActive} downloads run at the same time. When a slot becomes free, it is given to the waiting download with the highest
+ * {@link Priority}, and among downloads of the same priority, to the largest one, so that long transfers are started early and do not extend the end of an install. A
+ * download that is already running is never interrupted, but a waiting {@linkplain Priority#FOREGROUND foreground} download is always admitted before any waiting
+ * background download. The priority of a waiting download may be {@linkplain Ticket#raise(Priority) raised}, for example when a more important download turns out to need
+ * the same file.
+ */
+public final class DownloadScheduler {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String SETTING_MAX_ACTIVE = "DownloadScheduler.maxActive";
+	public static final int DEFAULT_MAX_ACTIVE = 12;
+
+
+	private static final Object lock = new Object();
+	private static final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+	private static int maxActive = DEFAULT_MAX_ACTIVE;
+	private static int active = 0;
+	private static long nextSeq = 0;
+	private static int maxQueueDepth = 0;
+
+	private static final long[] admitted = new long[Priority.values().length];
+	private static final long[] totalWaitNanos = new long[Priority.values().length];
+	private static final long[] maxWaitNanos = new long[Priority.values().length];
+
+
+	private DownloadScheduler() {
+	}
+
+
+	/**
+	 * Waits until a download with the given <b>priority</b> and <b>size</b> may start.
+	 *
+	 * @param priority The priority of the download
+	 * @param size The expected size of the download in bytes, or <code>-1</code> if unknown
+	 * @return A permit that must be closed when the download completes
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 * @see #acquire(Ticket)
+	 */
+	public static Permit acquire(Priority priority, long size) throws InterruptedException {
+		return acquire(new Ticket(priority, size));
+	}
+
+	/**
+	 * Waits until the download of the given <b>ticket</b> may start. The priority of the ticket may be {@linkplain Ticket#raise(Priority) raised} while waiting.
+	 *
+	 * @param ticket The ticket of the download, which must not be waiting already
+	 * @return A permit that must be closed when the download completes
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 */
+	public static Permit acquire(Ticket ticket) throws InterruptedException {
+		synchronized(lock){
+			if(ticket.queued)
+				throw new IllegalStateException("Ticket is already waiting");
+			ticket.seq = nextSeq++;
+			ticket.created = System.nanoTime();
+			ticket.queued = true;
+			queue.add(ticket);
+			if(queue.size() > maxQueueDepth)
+				maxQueueDepth = queue.size();
+			try{
+				while(queue.peek() != ticket || active >= maxActive)
+					lock.wait();
+			}catch(InterruptedException e){
+				queue.remove(ticket);
+				ticket.queued = false;
+				lock.notifyAll();
+				throw e;
+			}
+			queue.poll();
+			ticket.queued = false;
+			active++;
+			long wait = System.nanoTime() - ticket.created;
+			int p = ticket.priority.ordinal();
+			admitted[p]++;
+			totalWaitNanos[p] += wait;
+			if(wait > maxWaitNanos[p])
+				maxWaitNanos[p] = wait;
+			// the next ticket may also be admissible if there are free slots
+			lock.notifyAll();
+		}
+		return new Permit();
+	}
+
+	private static void release() {
+		synchronized(lock){
+			active--;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of concurrent downloads.
+	 *
+	 * @param maxActive The maximum number of concurrent downloads
+	 */
+	public static void setMaxActive(int maxActive) {
+		if(maxActive < 1)
+			throw new IllegalArgumentException("maxActive must be positive");
+		synchronized(lock){
+			DownloadScheduler.maxActive = maxActive;
+			lock.notifyAll();
+		}
+		logger.debug("Configured: maxActive=", maxActive);
+	}
+
+	public static int getQueueDepth() {
+		synchronized(lock){
+			return queue.size();
+		}
+	}
+
+	public static int getActive() {
+		synchronized(lock){
+			return active;
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the current queue state and the number of admitted downloads and their wait times for each priority since the launcher was started.
+	 *
+	 * @return The statistics
+	 */
+	public static Stats getStats() {
+		synchronized(lock){
+			return new Stats(queue.size(), maxQueueDepth, active, admitted.clone(), totalWaitNanos.clone(), maxWaitNanos.clone());
+		}
+	}
+
+
+	/**
+	 * Download priorities, from highest to lowest.
+	 */
+	public static enum Priority {
+		/**
+		 * Downloads a user is actively waiting on, for example libraries missing when launching the game.
+		 */
+		FOREGROUND,
+		/**
+		 * The client JAR and libraries of an install.
+		 */
+		CRITICAL,
+		/**
+		 * Asset indexes.
+		 */
+		INDEX,
+		/**
+		 * Asset objects.
+		 */
+		ASSET,
+		/**
+		 * Speculative downloads which may never be used.
+		 */
+		PREFETCH;
+	}
+
+	public static class Permit implements AutoCloseable {
+
+		private boolean closed = false;
+
+		private Permit() {
+		}
+
+
+		@Override
+		public void close() {
+			if(this.closed)
+				return;
+			this.closed = true;
+			release();
+		}
+	}
+
+	public static class Stats {
+
+		public final int queueDepth;
+		public final int maxQueueDepth;
+		public final int active;
+		private final long[] admitted;
+		private final long[] totalWaitNanos;
+		private final long[] maxWaitNanos;
+
+		private Stats(int queueDepth, int maxQueueDepth, int active, long[] admitted, long[] totalWaitNanos, long[] maxWaitNanos) {
+			this.queueDepth = queueDepth;
+			this.maxQueueDepth = maxQueueDepth;
+			this.active = active;
+			this.admitted = admitted;
+			this.totalWaitNanos = totalWaitNanos;
+			this.maxWaitNanos = maxWaitNanos;
+		}
+
+
+		public long getAdmitted(Priority priority) {
+			return this.admitted[priority.ordinal()];
+		}
+
+		public long getAverageWaitMillis(Priority priority) {
+			long n = this.admitted[priority.ordinal()];
+			return n > 0 ? this.totalWaitNanos[priority.ordinal()] / n / 1000000 : 0;
+		}
+
+		public long getMaxWaitMillis(Priority priority) {
+			return this.maxWaitNanos[priority.ordinal()] / 1000000;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(this.active).append(" active, ").append(this.queueDepth).append(" queued (max ").append(this.maxQueueDepth).append(')');
+			for(Priority p : Priority.values()){
+				if(this.getAdmitted(p) == 0)
+					continue;
+				sb.append("; ").append(p).append(": ").append(this.getAdmitted(p)).append(" admitted, wait avg ").append(this.getAverageWaitMillis(p)).append("ms max ")
+						.append(this.getMaxWaitMillis(p)).append("ms");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A download waiting for or holding a slot. The same ticket may be used for several attempts of a download, one at a time.
+	 */
+	public static class Ticket implements Comparable<Ticket> {
+
+		private volatile Priority priority;
+		private final long size;
+		private long seq;
+		private long created;
+		private boolean queued = false;
+
+		/**
+		 * Creates a ticket.
+		 *
+		 * @param priority The priority of the download
+		 * @param size The expected size of the download in bytes, or <code>-1</code> if unknown
+		 */
+		public Ticket(Priority priority, long size) {
+			this.priority = priority;
+			this.size = size;
+		}
+
+
+		/**
+		 * Raises the priority of this ticket to the given <b>priority</b>, if it is higher than the current one. If the download is waiting for a slot, it is moved ahead in
+		 * the queue accordingly.
+		 *
+		 * @param priority The new priority
+		 */
+		public void raise(Priority priority) {
+			synchronized(lock){
+				if(priority.compareTo(this.priority) >= 0)
+					return;
+				// the queue must not contain the ticket while its ordering changes
+				boolean requeue = this.queued && queue.remove(this);
+				this.priority = priority;
+				if(requeue){
+					queue.add(this);
+					lock.notifyAll();
+				}
+			}
+		}
+
+		public Priority getPriority() {
+			return this.priority;
+		}
+
+		@Override
+		public int compareTo(Ticket o) {
+			int c = this.priority.compareTo(o.priority);
+			if(c != 0)
+				return c;
+			c = Long.compare(o.size, this.size); // largest first
+			if(c != 0)
+				return c;
+			return Long.compare(this.seq, o.seq);
+		}
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.Util;
+
+/**
+ * Streams HTTP response bodies directly to disk while verifying their size and SHA-1 hash.
+ * <p>
+ * The body is written to a <code>.part</code> file next to the destination, which is only moved to the destination path once the entire body was received and verified.
+ * The <code>.part</code> file is synced to disk before it is moved, so the destination file is either absent, left as it was, or complete, even after a crash. If a download is interrupted, the <code>.part</code> file is kept and the next download
+ * of the same destination resumes it using an HTTP <code>Range</code> request, if the server supports it.
+ * <p>
+ * Concurrent downloads to the same destination are coalesced: only the first one sends a request, and all others wait for it and receive its result. Since artifacts in
+ * the {@link ArtifactStore} are stored by hash, this means that any number of installs requesting the same artifact at the same time download it only once. A waiting
+ * download that expects a different size or hash than the one it waited for verifies the downloaded file itself, and one with a higher priority raises the priority of
+ * the download it waits for, so that, for example, an install is not held back by a prefetch of the same artifact waiting for a slot in the {@link DownloadScheduler}.
+ */
+public final class Downloader {
+
+	private static final Logger logger = Logger.create();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Map<Path, InFlight> inFlight = new java.util.concurrent.ConcurrentHashMap<>();
+
+
+	private Downloader() {
+	}
+
+
+	/**
+	 * Downloads the resource at <b>url</b> to <b>dest</b>.
+	 *
+	 * @param url The URL
+	 * @param dest The destination file
+	 * @param expectedSize The expected size in bytes, or <code>-1</code> if unknown
+	 * @param expectedSha1 The expected SHA-1 hash as a lowercase hexadecimal string, or <code>null</code> to skip verification
+	 * @return The number of bytes transferred
+	 * @throws IOException If an IO error occurs, the server does not respond with a successful status or verification fails
+	 * @see #download(String, Path, long, String, Semaphore, DownloadScheduler.Priority)
+	 */
+	public static long download(String url, Path dest, long expectedSize, String expectedSha1) throws IOException {
+		return download(url, dest, expectedSize, expectedSha1, null, DownloadScheduler.Priority.CRITICAL);
+	}
+
+	/**
+	 * Downloads the resource at <b>url</b> to <b>dest</b>, resuming a previously interrupted download of the same destination if possible.
+	 *
+	 * @param url The URL
+	 * @param dest The destination file
+	 * @param expectedSize The expected size in bytes, or <code>-1</code> if unknown
+	 * @param expectedSha1 The expected SHA-1 hash as a lowercase hexadecimal string, or <code>null</code> to skip verification
+	 * @param writeLimit If not <code>null</code>, a permit of this semaphore is held while writing each chunk to disk
+	 * @param priority The priority of this download in the {@link DownloadScheduler}
+	 * @return The number of bytes transferred
+	 * @throws IOException If an IO error occurs, the server does not respond with a successful status or verification fails
+	 */
+	public static long download(String url, Path dest, long expectedSize, String expectedSha1, Semaphore writeLimit, DownloadScheduler.Priority priority) throws IOException {
+		return lockedDownload(url, dest, expectedSize, expectedSha1, writeLimit, priority, false);
+	}
+
+	/**
+	 * Places the artifact with the given hash at <b>dest</b>, either from the default {@link ArtifactStore} or by downloading it from <b>url</b>.
+	 * <p>
+	 * If there is a default store, the artifact is downloaded into the store and then linked to <b>dest</b>. If the same artifact is already being downloaded, for example
+	 * by a {@linkplain #prefetchArtifact(String, long, String) prefetch} or another install, this method waits for that download to complete instead of starting another
+	 * one.
+	 *
+	 * @param url The URL to download the artifact from if it is not in the store
+	 * @param dest The destination file
+	 * @param expectedSize The expected size in bytes, or <code>-1</code> if unknown
+	 * @param sha1 The SHA-1 hash of the artifact as a lowercase hexadecimal string
+	 * @param writeLimit If not <code>null</code>, a permit of this semaphore is held while writing each chunk to disk
+	 * @param priority The priority of this download in the {@link DownloadScheduler}
+	 * @return The number of bytes transferred over the network
+	 * @throws IOException If an IO error occurs, the server does not respond with a successful status or verification fails
+	 * @see #download(String, Path, long, String, Semaphore, DownloadScheduler.Priority)
+	 */
+	public static long downloadArtifact(String url, Path dest, long expectedSize, String sha1, Semaphore writeLimit, DownloadScheduler.Priority priority)
+			throws IOException {
+		ArtifactStore store = ArtifactStore.getDefault();
+		if(store == null)
+			return download(url, dest, expectedSize, sha1, writeLimit, priority);
+		if(store.provide(sha1, expectedSize, dest)){
+			logger.debug("Placed ", dest, " from artifact store");
+			return 0;
+		}
+		long n = lockedDownload(url, store.objectPath(sha1), expectedSize, sha1, writeLimit, priority, true);
+		store.link(sha1, dest);
+		return n;
+	}
+
+	/**
+	 * Downloads the artifact with the given hash into the default {@link ArtifactStore}, if it is not already stored, so that a later
+	 * {@link #downloadArtifact(String, Path, long, String, Semaphore, DownloadScheduler.Priority)} call can place it without downloading it. Prefetches have the lowest
+	 * priority in the {@link DownloadScheduler}.
+	 * <p>
+	 * Prefetches may be cancelled by interrupting the calling thread. The partial download is kept and resumed by the next download of the same artifact.
+	 *
+	 * @param url The URL to download the artifact from
+	 * @param expectedSize The expected size in bytes, or <code>-1</code> if unknown
+	 * @param sha1 The SHA-1 hash of the artifact as a lowercase hexadecimal string
+	 * @return The number of bytes transferred over the network
+	 * @throws IOException If an IO error occurs, the server does not respond with a successful status or verification fails
+	 * @throws IllegalStateException If there is no default artifact store
+	 */
+	public static long prefetchArtifact(String url, long expectedSize, String sha1) throws IOException {
+		ArtifactStore store = ArtifactStore.getDefault();
+		if(store == null)
+			throw new IllegalStateException("No artifact store to prefetch into");
+		return lockedDownload(url, store.objectPath(sha1), expectedSize, sha1, null, DownloadScheduler.Priority.PREFETCH, true);
+	}
+
+	private static long lockedDownload(String url, Path dest, long expectedSize, String expectedSha1, Semaphore writeLimit, DownloadScheduler.Priority priority,
+			boolean skipExisting) throws IOException {
+		URI uri;
+		try{
+			uri = new URI(url);
+		}catch(URISyntaxException e){
+			throw new IOException("Invalid URL: " + url, e);
+		}
+		Path key = dest.toAbsolutePath();
+		Path part = key.resolveSibling(dest.getFileName().toString() + ".part");
+		Files.createDirectories(part.getParent());
+		while(true){
+			InFlight own = new InFlight(expectedSize, expectedSha1, new DownloadScheduler.Ticket(priority, expectedSize));
+			InFlight shared = inFlight.putIfAbsent(key, own);
+			if(shared != null){
+				shared.ticket.raise(priority);
+				if(awaitShared(shared.result, dest)){
+					if(!shared.satisfies(expectedSize, expectedSha1))
+						verifyShared(dest, expectedSize, expectedSha1);
+					return 0;
+				}
+				// the other download was cancelled, which does not mean that this one should fail
+				continue;
+			}
+			try{
+				// store objects are only ever moved into place after being verified, so one that appeared while waiting for another download is complete
+				long n = skipExisting && Files.isRegularFile(dest) ? 0 : retryDownload(uri, dest, part, expectedSize, expectedSha1, writeLimit, own.ticket);
+				own.result.complete(n);
+				return n;
+			}catch(IOException | RuntimeException | Error e){
+				own.result.completeExceptionally(e);
+				throw e;
+			}finally{
+				inFlight.remove(key, own);
+			}
+		}
+	}
+
+	private static long retryDownload(URI uri, Path dest, Path part, long expectedSize, String expectedSha1, Semaphore writeLimit, DownloadScheduler.Ticket ticket)
+			throws IOException {
+		// the scheduler slot is released while waiting between attempts
+		return Retry.run(uri, () -> {
+			try(DownloadScheduler.Permit permit = acquireSlot(ticket, dest)){
+				return Mirrors.tryEach(uri, expectedSha1, (source, sourceUri) -> {
+					long start = System.nanoTime();
+					long n = download(sourceUri, dest, part, expectedSize, expectedSha1, writeLimit, ticket, true);
+					source.succeeded(n, System.nanoTime() - start);
+					return n;
+				});
+			}
+		});
+	}
+
+	/**
+	 * Waits for a download started by another thread.
+	 *
+	 * @return <code>true</code> if the download succeeded, <code>false</code> if it was interrupted
+	 * @throws IOException The error of the download, or if the calling thread is interrupted
+	 */
+	private static boolean awaitShared(CompletableFuture<Long> shared, Path dest) throws IOException {
+		try{
+			shared.get();
+			return true;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for concurrent download of " + dest);
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException){
+				if(Retry.isInterruption((IOException) cause))
+					return false;
+				throw (IOException) cause;
+			}else if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if(cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Verifies a file downloaded by another thread with different expectations than the calling one.
+	 *
+	 * @throws IOException If the file does not have the expected size or hash
+	 */
+	private static void verifyShared(Path dest, long expectedSize, String expectedSha1) throws IOException {
+		long size = Files.size(dest);
+		if(expectedSize >= 0 && size != expectedSize)
+			throw new IOException("Sizes do not match: expected " + expectedSize + " but concurrent download of " + dest + " has " + size + " bytes");
+		if(expectedSha1 != null){
+			String calcHash = Util.sha1Hex(dest);
+			if(!calcHash.equals(expectedSha1))
+				throw new IOException("Hash values do not match: expected " + expectedSha1 + " but concurrent download of " + dest + " has " + calcHash);
+		}
+	}
+
+	private static DownloadScheduler.Permit acquireSlot(DownloadScheduler.Ticket ticket, Path dest) throws IOException {
+		try{
+			return DownloadScheduler.acquire(ticket);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to download " + dest);
+		}
+	}
+
+	private static long download(URI uri, Path dest, Path part, long expectedSize, String expectedSha1, Semaphore writeLimit, DownloadScheduler.Ticket ticket,
+			boolean allowResume) throws IOException {
+		MessageDigest md;
+		try{
+			md = MessageDigest.getInstance("SHA-1");
+		}catch(NoSuchAlgorithmException e){
+			throw new RuntimeException(e);
+		}
+		long existing = allowResume && Files.exists(part) ? Files.size(part) : 0;
+		if(expectedSize >= 0 && existing > expectedSize){
+			Files.delete(part);
+			existing = 0;
+		}
+		if(existing > 0){
+			try(FileChannel ch = FileChannel.open(part, StandardOpenOption.READ)){
+				Util.digestChannel(md, ch, existing);
+			}
+			if(existing == expectedSize){
+				if(expectedSha1 == null || Util.byteArrayToHex(md.digest()).equals(expectedSha1)){
+					Util.syncFile(part);
+					Util.moveAtomic(part, dest);
+					return 0;
+				}
+				logger.debug("Discarding complete but corrupt partial download ", part);
+				Files.delete(part);
+				md.reset();
+				existing = 0;
+			}
+		}
+
+		HttpRequest.Builder rb = SharedHttpClient.newRequest(uri).GET();
+		if(existing > 0)
+			rb.header("Range", "bytes=" + existing + "-");
+		logger.debug("GET ", uri, " -> ", dest, existing > 0 ? " (resuming at " + existing + ")" : "");
+		try(SharedHttpClient.HostPermit permit = SharedHttpClient.acquireHost(uri)){
+			HttpResponse<InputStream> res = SharedHttpClient.getClient().send(rb.build(), HttpResponse.BodyHandlers.ofInputStream());
+			try(InputStream in = res.body()){
+				int status = res.statusCode();
+				if(status == 416 && existing > 0){
+					logger.debug("Server rejected range request for ", uri, ", restarting download");
+					Files.delete(part);
+					in.close();
+					permit.close();
+					return download(uri, dest, part, expectedSize, expectedSha1, writeLimit, ticket, false);
+				}else if(status == 206 && existing > 0){
+					long start = parseContentRangeStart(res.headers().firstValue("Content-Range").orElse(null));
+					if(start != existing)
+						throw new IOException("Server returned unexpected range start " + start + " (requested " + existing + ") for " + uri);
+				}else if(status == 200){
+					if(existing > 0){
+						logger.debug("Server does not support range requests for ", uri, ", restarting download");
+						md.reset();
+						existing = 0;
+					}
+				}else
+					throw new HttpStatusException(status, res.headers());
+				long total = existing;
+				try(ReadableByteChannel src = Channels.newChannel(in);
+						FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+					out.truncate(existing);
+					out.position(existing);
+					ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+					int n;
+					while((n = src.read(buf)) >= 0){
+						if(Thread.interrupted())
+							throw new InterruptedIOException("Interrupted while downloading " + uri);
+						if(n == 0)
+							continue;
+						total += n;
+						if(expectedSize >= 0 && total > expectedSize){
+							out.close();
+							Files.delete(part);
+							throw new IOException("Received more data than expected (" + expectedSize + " bytes) from " + uri);
+						}
+						buf.flip();
+						md.update(buf.array(), buf.arrayOffset(), buf.limit());
+						if(writeLimit != null)
+							writeLimit.acquire();
+						try{
+							while(buf.hasRemaining())
+								out.write(buf);
+						}finally{
+							if(writeLimit != null)
+								writeLimit.release();
+						}
+						buf.clear();
+						BandwidthLimiter.consume(ticket.getPriority(), n);
+					}
+					out.force(true);
+				}
+				verifyAndPlace(uri, dest, part, expectedSize, total, md, expectedSha1);
+				return total - existing;
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading " + uri);
+		}
+	}
+
+	private static void verifyAndPlace(URI uri, Path dest, Path part, long expectedSize, long size, MessageDigest md, String expectedSha1) throws IOException {
+		if(expectedSize >= 0 && size != expectedSize){
+			Files.delete(part);
+			throw new IOException("Sizes do not match: expected " + expectedSize + " received " + size + " bytes from " + uri);
+		}
+		String calcHash = Util.byteArrayToHex(md.digest());
+		if(expectedSha1 != null && !calcHash.equals(expectedSha1)){
+			Files.delete(part);
+			throw new IOException("Hash values do not match: expected " + expectedSha1 + " calculated " + calcHash);
+		}
+		Util.moveAtomic(part, dest);
+	}
+
+	private static long parseContentRangeStart(String contentRange) throws IOException {
+		// bytes <start>-<end>/<size>
+		if(contentRange == null || !contentRange.startsWith("bytes "))
+			throw new IOException("Invalid or missing Content-Range header: " + contentRange);
+		int dash = contentRange.indexOf('-');
+		try{
+			return Long.parseLong(contentRange.substring(6, dash).trim());
+		}catch(NumberFormatException | IndexOutOfBoundsException e){
+			throw new IOException("Invalid Content-Range header: " + contentRange, e);
+		}
+	}
+
+
+	private static class InFlight {
+
+		private final CompletableFuture<Long> result = new CompletableFuture<>();
+		private final long expectedSize;
+		private final String expectedSha1;
+		private final DownloadScheduler.Ticket ticket;
+
+		public InFlight(long expectedSize, String expectedSha1, DownloadScheduler.Ticket ticket) {
+			this.expectedSize = expectedSize;
+			this.expectedSha1 = expectedSha1;
+			this.ticket = ticket;
+		}
+
+
+		/**
+		 * Returns whether the verification done by this download implies the given expectations.
+		 */
+		public boolean satisfies(long expectedSize, String expectedSha1) {
+			return (expectedSize < 0 || expectedSize == this.expectedSize) && (expectedSha1 == null || expectedSha1.equals(this.expectedSha1));
+		}
+	}
+}
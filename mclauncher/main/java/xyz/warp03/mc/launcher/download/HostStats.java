@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Per-host request statistics and circuit breakers.
+ * <p>
+ * After {@value #FAILURE_THRESHOLD} consecutive failed requests to a host, its circuit is opened and requests to it fail immediately for {@value #OPEN_SECONDS} seconds.
+ * After that, a single trial request is let through; if it succeeds, the circuit is closed again, otherwise it stays open for another period. Every request admitted by
+ * {@link #beforeRequest()} must end with exactly one of {@link #succeeded()}, {@link #failed(IOException)} or {@link #released()}, which {@link #request(Retry.Action)}
+ * takes care of.
+ */
+public final class HostStats {
+
+	private static final Logger logger = Logger.create();
+
+	private static final int FAILURE_THRESHOLD = 5;
+	private static final int OPEN_SECONDS = 30;
+
+	private static final Map<String, HostStats> hosts = new java.util.concurrent.ConcurrentHashMap<>();
+
+
+	private final String host;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private int consecutiveFailures = 0;
+	private boolean open = false;
+	private boolean trialInProgress = false;
+	private long openUntil = 0;
+
+	private HostStats(String host) {
+		this.host = host;
+	}
+
+
+	/**
+	 * Checks whether a request to this host may be sent, and counts it if it may.
+	 *
+	 * @throws CircuitOpenException If the circuit of this host is open
+	 */
+	public void beforeRequest() throws CircuitOpenException {
+		synchronized(this){
+			if(this.open){
+				if(this.trialInProgress || System.nanoTime() - this.openUntil < 0){
+					this.rejected.incrementAndGet();
+					throw new CircuitOpenException(this.host);
+				}
+				this.trialInProgress = true;
+			}
+		}
+		this.requests.incrementAndGet();
+	}
+
+	public synchronized void succeeded() {
+		if(this.open)
+			logger.info("Host ", this.host, " is reachable again");
+		this.consecutiveFailures = 0;
+		this.open = false;
+		this.trialInProgress = false;
+	}
+
+	/**
+	 * Records a failed request. Only failures which indicate a problem with the host should be recorded, for example, a <i>404 Not Found</i> response should not.
+	 *
+	 * @param e The error
+	 */
+	public synchronized void failed(IOException e) {
+		this.failures.incrementAndGet();
+		this.consecutiveFailures++;
+		if(this.trialInProgress || (!this.open && this.consecutiveFailures >= FAILURE_THRESHOLD)){
+			if(!this.open)
+				logger.warn("Host ", this.host, " failed ", this.consecutiveFailures, " times in a row, pausing requests for ", OPEN_SECONDS, " seconds: ", e);
+			this.open = true;
+			this.openUntil = System.nanoTime() + OPEN_SECONDS * 1000000000L;
+		}
+		this.trialInProgress = false;
+	}
+
+	/**
+	 * Ends a request without recording an outcome, for example because it was interrupted or the host responded with an error that does not indicate a problem with the
+	 * host. If the request was the trial request of an open circuit, another trial request is let through.
+	 */
+	public synchronized void released() {
+		this.trialInProgress = false;
+	}
+
+	/**
+	 * Runs the given <b>action</b>, which sends a single request to this host, through the circuit breaker and records its outcome.
+	 *
+	 * @param <T> The return type
+	 * @param action The action
+	 * @return The return value of the action
+	 * @throws IOException The error of the action
+	 * @throws CircuitOpenException If the circuit of this host is open
+	 */
+	public <T> T request(Retry.Action<T> action) throws IOException {
+		this.beforeRequest();
+		boolean recorded = false;
+		try{
+			T result = action.run();
+			this.succeeded();
+			recorded = true;
+			return result;
+		}catch(IOException e){
+			if(Retry.isRetryable(e)){
+				this.failed(e);
+				recorded = true;
+			}
+			throw e;
+		}finally{
+			if(!recorded)
+				this.released();
+		}
+	}
+
+	public void retried() {
+		this.retries.incrementAndGet();
+	}
+
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	public long getRetries() {
+		return this.retries.get();
+	}
+
+	public long getRejected() {
+		return this.rejected.get();
+	}
+
+	public synchronized boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public String toString() {
+		return this.host + ": " + this.getRequests() + " requests, " + this.getFailures() + " failures, " + this.getRetries() + " retries, " + this.getRejected() + " rejected"
+				+ (this.isOpen() ? " (circuit open)" : "");
+	}
+
+
+	public static HostStats get(URI uri) {
+		String host = uri.getHost() != null ? uri.getHost() : String.valueOf(uri.getAuthority());
+		return hosts.computeIfAbsent(host, HostStats::new);
+	}
+
+	/**
+	 * Returns a summary of the statistics of all hosts requests were sent to.
+	 *
+	 * @return The summary
+	 */
+	public static String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for(HostStats s : hosts.values()){
+			if(sb.length() > 0)
+				sb.append("; ");
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+
+	public static class CircuitOpenException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CircuitOpenException(String host) {
+			super("Requests to " + host + " are paused after repeated failures");
+		}
+	}
+}
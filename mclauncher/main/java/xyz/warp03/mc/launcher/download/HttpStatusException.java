@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Thrown when a server responds with an unexpected HTTP status code.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+
+	private final int status;
+	private final long retryAfterMillis;
+
+	public HttpStatusException(int status, HttpHeaders headers) {
+		super("Non-200 status code: " + status);
+		this.status = status;
+		this.retryAfterMillis = headers != null ? parseRetryAfter(headers.firstValue("Retry-After").orElse(null)) : -1;
+	}
+
+
+	public int getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * Returns the delay requested by the server in the <code>Retry-After</code> header.
+	 *
+	 * @return The delay in milliseconds, or <code>-1</code> if there was no valid <code>Retry-After</code> header
+	 */
+	public long getRetryAfterMillis() {
+		return this.retryAfterMillis;
+	}
+
+	/**
+	 * Returns whether the request may succeed if it is sent again. This is the case for server errors, <i>408 Request Timeout</i> and <i>429 Too Many Requests</i>.
+	 *
+	 * @return <code>true</code> if the request should be retried
+	 */
+	public boolean isRetryable() {
+		return this.status >= 500 || this.status == 408 || this.status == 429;
+	}
+
+
+	private static long parseRetryAfter(String value) {
+		if(value == null)
+			return -1;
+		value = value.trim();
+		try{
+			return Math.max(0, Long.parseLong(value) * 1000);
+		}catch(NumberFormatException e){
+		}
+		try{
+			ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+			return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+		}catch(DateTimeParseException e){
+			return -1;
+		}
+	}
+}
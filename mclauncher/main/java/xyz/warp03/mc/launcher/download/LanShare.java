@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Shares artifacts between launchers on the local network.
+ * <p>
+ * A launcher may {@linkplain LanShareServer serve} its {@link ArtifactStore} to others, and may use other launchers as {@linkplain Mirrors#addPeer(String, long) peers},
+ * which are tried before all other sources for every artifact with a known hash. Peers are either configured by URL or discovered through UDP multicast on
+ * {@value #MULTICAST_GROUP}:{@value #MULTICAST_PORT}: a serving launcher announces its port every {@value #ANNOUNCE_INTERVAL} milliseconds, and a discovering launcher
+ * asks for announcements when it starts, so that it does not need to wait for the next one before its first download.
+ * <p>
+ * Peers are not trusted: everything received from them is verified against the hash from the upstream metadata, and a peer that fails or serves wrong data is skipped
+ * like a failing mirror, falling back to upstream.
+ */
+public final class LanShare {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String SETTING_SERVE = "LanShare.serve";
+	public static final String SETTING_PORT = "LanShare.port";
+	public static final String SETTING_DISCOVER = "LanShare.discover";
+	public static final String SETTING_PEERS = "LanShare.peers";
+
+	public static final int DEFAULT_PORT = 25590;
+
+	private static final String MULTICAST_GROUP = "239.255.77.77";
+	private static final int MULTICAST_PORT = 25591;
+	private static final int ANNOUNCE_INTERVAL = 5000;
+	private static final int PEER_TTL = ANNOUNCE_INTERVAL * 3;
+
+	private static final String INSTANCE_ID = java.util.UUID.randomUUID().toString();
+
+	private static volatile LanShareServer server;
+	private static volatile boolean discover = false;
+	private static volatile boolean announceNow = false;
+	private static MulticastSocket socket;
+	private static List<String> configuredPeers = java.util.Collections.emptyList();
+
+
+	private LanShare() {
+	}
+
+
+	/**
+	 * Starts or stops serving the default artifact store and discovering peers, and replaces the configured peers.
+	 *
+	 * @param serve Whether to serve the default artifact store. Ignored if there is no default store
+	 * @param port The TCP port to serve on
+	 * @param discover Whether to discover peers through multicast
+	 * @param peers The base URLs of configured peers
+	 */
+	public static synchronized void configure(boolean serve, int port, boolean discover, List<String> peers) {
+		for(String p : configuredPeers){
+			if(!peers.contains(p))
+				Mirrors.removePeer(p);
+		}
+		for(String p : peers){
+			try{
+				Mirrors.addPeer(p, 0);
+			}catch(IOException e){
+				logger.warn("Ignoring configured peer: ", e);
+			}
+		}
+		configuredPeers = new java.util.ArrayList<>(peers);
+
+		ArtifactStore store = ArtifactStore.getDefault();
+		if(server != null && (!serve || server.getPort() != port)){
+			server.stop();
+			server = null;
+		}
+		if(serve && server == null){
+			if(store == null){
+				logger.warn("Not serving artifacts to the local network because there is no artifact store");
+			}else{
+				try{
+					LanShareServer s = new LanShareServer(store, port);
+					s.start();
+					server = s;
+				}catch(IOException e){
+					logger.error("Failed to start serving artifacts on port ", port, ": ", e);
+				}
+			}
+		}
+
+		LanShare.discover = discover;
+		if(server != null || discover)
+			startMulticast();
+		else
+			stopMulticast();
+		announceNow = true;
+	}
+
+	/**
+	 * Stops serving artifacts and discovering peers.
+	 */
+	public static synchronized void stop() {
+		if(server != null){
+			server.stop();
+			server = null;
+		}
+		discover = false;
+		stopMulticast();
+	}
+
+	/**
+	 * Parses a comma-separated list of peer base URLs, as stored in the {@value #SETTING_PEERS} setting.
+	 *
+	 * @param str The list, may be <code>null</code>
+	 * @return The base URLs
+	 */
+	public static List<String> parsePeers(String str) {
+		List<String> peers = new java.util.ArrayList<>();
+		if(str != null){
+			for(String p : str.split(",")){
+				if(!p.trim().isEmpty())
+					peers.add(p.trim());
+			}
+		}
+		return peers;
+	}
+
+
+	private static void startMulticast() {
+		if(socket != null)
+			return;
+		MulticastSocket s;
+		InetSocketAddress group;
+		try{
+			group = new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), MULTICAST_PORT);
+			s = new MulticastSocket(MULTICAST_PORT);
+			s.joinGroup(group, null);
+			s.setSoTimeout(1000);
+		}catch(IOException e){
+			logger.error("Failed to join multicast group for local network discovery: ", e);
+			return;
+		}
+		socket = s;
+		Thread t = new Thread(() -> {
+			runMulticast(s, group);
+		}, "LanShare-discovery");
+		t.setDaemon(true);
+		t.start();
+		logger.info("Joined multicast group ", group, " for local network discovery");
+	}
+
+	private static void stopMulticast() {
+		if(socket == null)
+			return;
+		socket.close();
+		socket = null;
+	}
+
+	private static void runMulticast(MulticastSocket s, InetSocketAddress group) {
+		byte[] buf = new byte[1024];
+		long nextAnnounce = 0;
+		boolean queried = false;
+		while(!s.isClosed()){
+			try{
+				if(discover && !queried){
+					send(s, group, new JSONObject().put("type", "query"));
+					queried = true;
+				}
+				LanShareServer srv = server;
+				long now = System.nanoTime();
+				if(srv != null && (announceNow || now - nextAnnounce >= 0)){
+					announceNow = false;
+					send(s, group, new JSONObject().put("type", "announce").put("port", srv.getPort()));
+					nextAnnounce = now + ANNOUNCE_INTERVAL * 1000000L;
+				}
+				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				try{
+					s.receive(packet);
+				}catch(SocketTimeoutException e){
+					continue;
+				}
+				handle(packet);
+			}catch(SocketException e){
+				if(!s.isClosed())
+					logger.warn("Local network discovery failed: ", e);
+				break;
+			}catch(IOException e){
+				logger.debug("Error in local network discovery: ", e);
+			}
+		}
+		logger.debug("Left multicast group ", group);
+	}
+
+	private static void handle(DatagramPacket packet) {
+		JSONObject msg;
+		try{
+			msg = new JSONObject(new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8));
+			if(!LanShareServer.SERVICE_NAME.equals(msg.optString("service")) || INSTANCE_ID.equals(msg.optString("id")))
+				return;
+		}catch(JSONException e){
+			return;
+		}
+		String type = msg.optString("type");
+		if(type.equals("query")){
+			announceNow = true;
+		}else if(type.equals("announce") && discover){
+			int port = msg.optInt("port", -1);
+			if(port <= 0 || port > 65535)
+				return;
+			InetAddress address = packet.getAddress();
+			String host = address instanceof Inet6Address ? "[" + address.getHostAddress() + "]" : address.getHostAddress();
+			try{
+				Mirrors.addPeer("http://" + host + ":" + port, PEER_TTL);
+			}catch(IOException e){
+				logger.debug("Ignoring invalid announcement from ", address, ": ", e);
+			}
+		}
+	}
+
+	private static void send(MulticastSocket s, InetSocketAddress group, JSONObject msg) throws IOException {
+		byte[] data = msg.put("service", LanShareServer.SERVICE_NAME).put("id", INSTANCE_ID).toString().getBytes(StandardCharsets.UTF_8);
+		s.send(new DatagramPacket(data, data.length, group));
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import xyz.warp03.mc.launcher.HashCache;
+
+/**
+ * An HTTP server serving the artifacts of an {@link ArtifactStore} by hash to other launchers, at <code>/objects/&lt;sha1&gt;</code>.
+ * <p>
+ * Artifacts are verified against their hash before they are served, using a {@link HashCache} of the store directory so that each artifact is only hashed once. Clients
+ * verify everything they receive anyway, this only prevents a corrupt store object from being handed out to every machine on the network.
+ */
+public class LanShareServer {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String OBJECTS_PATH = "/objects/";
+	public static final String SERVICE_NAME = "mclauncher-share";
+
+	private static final int THREADS = 8;
+	private static final Pattern SHA1_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+
+	private final ArtifactStore store;
+	private final HashCache hashCache;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private final AtomicLong servedCount = new AtomicLong();
+	private final AtomicLong servedBytes = new AtomicLong();
+
+	/**
+	 * Creates a new server for the given <b>store</b> and binds it to <b>port</b> on all interfaces. The server is not started until {@link #start()} is called.
+	 *
+	 * @param store The store to serve
+	 * @param port The TCP port, or <code>0</code> for any free port
+	 * @throws IOException If the server could not be bound
+	 */
+	public LanShareServer(ArtifactStore store, int port) throws IOException {
+		this.store = store;
+		this.hashCache = store.getHashCache();
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		AtomicInteger threadNum = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(THREADS, (r) -> {
+			Thread t = new Thread(r, "LanShareServer-" + threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.server.setExecutor(this.executor);
+		this.server.createContext(OBJECTS_PATH, this::handleObject);
+		this.server.createContext("/", this::handleInfo);
+	}
+
+
+	public void start() {
+		this.server.start();
+		logger.info("Serving artifact store ", this.store.getDirectory(), " on port ", this.getPort());
+	}
+
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+		try{
+			this.hashCache.save();
+		}catch(IOException e){
+			logger.warn("Failed to save hash cache of artifact store: ", e);
+		}
+		logger.info("Stopped serving artifact store, served ", this.servedCount.get(), " artifacts (", this.servedBytes.get(), " bytes)");
+	}
+
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+
+	private void handleObject(HttpExchange exchange) throws IOException {
+		try{
+			if(!exchange.getRequestMethod().equals("GET")){
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			String sha1 = exchange.getRequestURI().getPath().substring(OBJECTS_PATH.length());
+			if(!SHA1_PATTERN.matcher(sha1).matches()){
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			Path file = this.store.objectPath(sha1);
+			if(!Files.isRegularFile(file)){
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			if(!this.hashCache.sha1(file).equals(sha1)){
+				logger.warn("Not serving corrupt artifact ", sha1, " from store");
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+				long size = ch.size();
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+				OutputStream out = exchange.getResponseBody();
+				WritableByteChannel dest = Channels.newChannel(out);
+				long pos = 0;
+				while(pos < size){
+					long n = ch.transferTo(pos, size - pos, dest);
+					if(n <= 0)
+						throw new IOException("Artifact " + sha1 + " was truncated while serving it");
+					pos += n;
+				}
+				out.flush();
+				this.servedCount.incrementAndGet();
+				this.servedBytes.addAndGet(size);
+				logger.trace("Served ", sha1, " (", size, " bytes) to ", exchange.getRemoteAddress());
+			}
+		}catch(IOException e){
+			logger.debug("Error while serving ", exchange.getRequestURI(), " to ", exchange.getRemoteAddress(), ": ", e);
+		}finally{
+			exchange.close();
+		}
+	}
+
+	private void handleInfo(HttpExchange exchange) throws IOException {
+		try{
+			byte[] data = new JSONObject().put("service", SERVICE_NAME).toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, data.length);
+			exchange.getResponseBody().write(data);
+		}finally{
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.Util;
+
+/**
+ * An on-disk HTTP cache for metadata files, such as the version manifest and version JSON files.
+ * <p>
+ * The <code>ETag</code> and <code>Last-Modified</code> values of each response are stored with the body and sent in conditional requests the next time the same URL is
+ * requested. If the server responds with <i>304 Not Modified</i>, or cannot be reached at all, the cached copy is returned.
+ * <p>
+ * If the SHA-1 hash of a resource is known, for example from the version manifest, responses from each source and the cached copy are verified against it. A source that
+ * returns a different resource is treated as failed, so that the next {@linkplain Mirrors mirror} is tried, and a cached copy that does not match is not used.
+ */
+public class MetadataCache {
+
+	private static final Logger logger = Logger.create();
+
+	private static MetadataCache defaultCache;
+
+
+	private final Path dir;
+
+	public MetadataCache(Path dir) {
+		this.dir = dir;
+	}
+
+
+	/**
+	 * Requests the resource at <b>url</b>, using the cached copy if it was not modified or if the request fails.
+	 *
+	 * @param url The URL
+	 * @return The response body
+	 * @throws IOException If the request fails and there is no cached copy
+	 * @see #get(String, String)
+	 */
+	public byte[] get(String url) throws IOException {
+		return this.get(url, null);
+	}
+
+	/**
+	 * Requests the resource at <b>url</b>, using the cached copy if it was not modified or if the request fails, and verifies it against the given SHA-1 hash.
+	 *
+	 * @param url The URL
+	 * @param sha1 The expected SHA-1 hash as a lowercase hexadecimal string, or <code>null</code> to skip verification
+	 * @return The response body
+	 * @throws IOException If the request fails and there is no matching cached copy, or no source returned a resource with the expected hash
+	 */
+	public byte[] get(String url, String sha1) throws IOException {
+		String key = Util.sha1Hex(url.getBytes(StandardCharsets.UTF_8));
+		Path bodyFile = this.dir.resolve(key + ".body");
+		Path metaFile = this.dir.resolve(key + ".meta");
+		Properties meta = new Properties();
+		byte[] cachedBody = Files.isRegularFile(bodyFile) && Files.isRegularFile(metaFile) ? Files.readAllBytes(bodyFile) : null;
+		if(cachedBody != null && sha1 != null && !Util.sha1Hex(cachedBody).equals(sha1)){
+			logger.debug("Cached copy of '", url, "' does not match the expected hash ", sha1, ", ignoring it");
+			cachedBody = null;
+		}
+		boolean cached = cachedBody != null;
+		if(cached){
+			try(InputStream in = Files.newInputStream(metaFile)){
+				meta.load(in);
+			}
+		}
+		URI uri;
+		try{
+			uri = new URI(url);
+		}catch(URISyntaxException e){
+			throw new IOException("Invalid URL: " + url, e);
+		}
+		try{
+			Retry.Action<Response> action = () -> Mirrors.tryEach(uri, (source, sourceUri) -> {
+				Response r = this.request(sourceUri, cached ? meta : null);
+				if(sha1 != null && r.status == 200){
+					String calcHash = Util.sha1Hex(r.body);
+					if(!calcHash.equals(sha1))
+						throw new IOException("Hash values do not match: expected " + sha1 + " calculated " + calcHash + " for " + sourceUri);
+				}
+				source.succeeded(0, 0);
+				return r;
+			});
+			// if there is a cached copy, using it is better than waiting for retries
+			Response res = cached ? action.run() : Retry.run(uri, action);
+			if(res.status == 304){
+				logger.debug("Not modified: ", url);
+				return cachedBody;
+			}
+			byte[] body = res.body;
+			Properties newMeta = new Properties();
+			newMeta.setProperty("url", url);
+			res.headers.firstValue("ETag").ifPresent((v) -> newMeta.setProperty("etag", v));
+			res.headers.firstValue("Last-Modified").ifPresent((v) -> newMeta.setProperty("lastModified", v));
+			this.store(bodyFile, metaFile, body, newMeta);
+			return body;
+		}catch(IOException e){
+			if(!cached || Retry.isInterruption(e))
+				throw e;
+			logger.warn("Request to '", url, "' failed, using cached copy: ", e);
+			return cachedBody;
+		}
+	}
+
+	private Response request(URI uri, Properties meta) throws IOException {
+		HttpRequest.Builder rb = SharedHttpClient.newRequest(uri).GET();
+		rb.header("Accept-Encoding", "gzip");
+		if(meta != null){
+			String etag = meta.getProperty("etag");
+			if(etag != null)
+				rb.header("If-None-Match", etag);
+			String lastModified = meta.getProperty("lastModified");
+			if(lastModified != null)
+				rb.header("If-Modified-Since", lastModified);
+		}
+		logger.debug("GET ", uri, meta != null ? " (conditional)" : "");
+		HttpResponse<byte[]> res;
+		try{
+			res = SharedHttpClient.send(rb.build(), HttpResponse.BodyHandlers.ofByteArray());
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting " + uri);
+		}
+		int status = res.statusCode();
+		if(status != 200 && !(status == 304 && meta != null))
+			throw new HttpStatusException(status, res.headers());
+		byte[] body = res.body();
+		if(status == 200 && "gzip".equalsIgnoreCase(res.headers().firstValue("Content-Encoding").orElse(null))){
+			try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))){
+				body = in.readAllBytes();
+			}
+		}
+		return new Response(status, res.headers(), body);
+	}
+
+	/**
+	 * Returns the cached copy of the resource at <b>url</b> without making any request.
+	 *
+	 * @param url The URL
+	 * @return The cached response body, or <code>null</code> if the resource is not cached
+	 * @throws IOException If an IO error occurs
+	 */
+	public byte[] getCached(String url) throws IOException {
+		Path bodyFile = this.dir.resolve(Util.sha1Hex(url.getBytes(StandardCharsets.UTF_8)) + ".body");
+		if(Files.isRegularFile(bodyFile))
+			return Files.readAllBytes(bodyFile);
+		else
+			return null;
+	}
+
+	private synchronized void store(Path bodyFile, Path metaFile, byte[] body, Properties meta) throws IOException {
+		Util.writeAtomic(bodyFile, body);
+		Util.writeAtomic(metaFile, (out) -> {
+			meta.store(out, null);
+		});
+	}
+
+
+	public static MetadataCache getDefault() {
+		return defaultCache;
+	}
+
+	public static void setDefault(MetadataCache cache) {
+		defaultCache = cache;
+	}
+
+
+	/**
+	 * Requests the resource at <b>url</b> through the default cache, or directly if there is none.
+	 *
+	 * @param url The URL
+	 * @return The response body
+	 * @throws IOException If an IO error occurs or the request fails and there is no cached copy
+	 * @see #get(String)
+	 */
+	public static byte[] fetch(String url) throws IOException {
+		return fetch(url, null);
+	}
+
+	/**
+	 * Requests the resource at <b>url</b> through the default cache, or directly if there is none, and verifies it against the given SHA-1 hash.
+	 *
+	 * @param url The URL
+	 * @param sha1 The expected SHA-1 hash as a lowercase hexadecimal string, or <code>null</code> to skip verification
+	 * @return The response body
+	 * @throws IOException If an IO error occurs, the request fails and there is no matching cached copy, or verification fails
+	 * @see #get(String, String)
+	 */
+	public static byte[] fetch(String url, String sha1) throws IOException {
+		MetadataCache cache = defaultCache;
+		if(cache != null)
+			return cache.get(url, sha1);
+		byte[] data = Util.get200(url);
+		if(sha1 != null){
+			String calcHash = Util.sha1Hex(data);
+			if(!calcHash.equals(sha1))
+				throw new IOException("Hash values do not match: expected " + sha1 + " calculated " + calcHash + " for " + url);
+		}
+		return data;
+	}
+
+
+	private static class Response {
+
+		public final int status;
+		public final HttpHeaders headers;
+		public final byte[] body;
+
+		public Response(int status, HttpHeaders headers, byte[] body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+	}
+}
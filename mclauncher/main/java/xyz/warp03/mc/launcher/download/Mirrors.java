@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Alternative download sources for upstream hosts.
+ * <p>
+ * The mirror configuration maps upstream host names to an ordered list of base URLs, for example:
+ *
+ * <pre>
+ * {
+ *   "resources.download.minecraft.net": ["http://cache.local:8080/resources"],
+ *   "piston-data.mojang.com": ["http://cache.local:8080/piston-data"]
+ * }
+ * </pre>
+ *
+ * A request for <code>https://resources.download.minecraft.net/ab/abcd...</code> may then be sent to <code>http://cache.local:8080/resources/ab/abcd...</code>. The
+ * upstream host itself is always the last-resort source. When a host is first used, all of its sources are probed for latency; afterwards, sources are ranked by the
+ * throughput of previous downloads. Sources that fail are skipped for {@value #FAILURE_COOLDOWN_SECONDS} seconds. Since downloads are still verified against the hash
+ * from the upstream metadata, a mirror serving wrong data causes a failover, not a corrupt install.
+ * <p>
+ * Additionally, other launchers on the local network sharing their artifact store (see {@link LanShare}) can be added as <i>peers</i>. Peers serve artifacts by hash
+ * rather than by upstream path, so they are only used for requests with a known SHA-1 hash, and are tried before all mirrors.
+ */
+public final class Mirrors {
+
+	private static final Logger logger = Logger.create();
+
+	private static final int FAILURE_COOLDOWN_SECONDS = 30;
+	private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(3);
+	private static final double THROUGHPUT_WEIGHT = 0.3;
+
+	private static final Map<String, List<Source>> hosts = new java.util.concurrent.ConcurrentHashMap<>();
+	private static final Map<String, Source> upstreams = new java.util.concurrent.ConcurrentHashMap<>();
+	private static final Map<String, Source> peers = new java.util.concurrent.ConcurrentHashMap<>();
+
+
+	private Mirrors() {
+	}
+
+
+	/**
+	 * Loads the mirror configuration from the given JSON <b>file</b>, replacing any previous configuration.
+	 *
+	 * @param file The configuration file
+	 * @throws IOException If an IO error occurs or the file is invalid
+	 */
+	public static void load(Path file) throws IOException {
+		JSONObject json = new JSONObject(new String(Files.readAllBytes(file)));
+		hosts.clear();
+		for(String host : json.keySet()){
+			JSONArray arr = json.getJSONArray(host);
+			List<String> bases = new java.util.ArrayList<>();
+			for(int i = 0; i < arr.length(); i++)
+				bases.add(arr.getString(i));
+			setMirrors(host, bases);
+		}
+	}
+
+	/**
+	 * Sets the alternative sources for the given upstream <b>host</b>, in order of preference.
+	 *
+	 * @param host The upstream host name
+	 * @param bases The base URLs of the mirrors
+	 * @throws IOException If a base URL is invalid
+	 */
+	public static void setMirrors(String host, List<String> bases) throws IOException {
+		List<Source> sources = new java.util.ArrayList<>();
+		int order = 0;
+		for(String base : bases){
+			try{
+				URI uri = new URI(base.endsWith("/") ? base.substring(0, base.length() - 1) : base);
+				if(uri.getScheme() == null || uri.getHost() == null)
+					throw new URISyntaxException(base, "Expected an absolute URL");
+				sources.add(new Source(uri.toString(), order++));
+			}catch(URISyntaxException e){
+				throw new IOException("Invalid mirror URL for " + host + ": " + base, e);
+			}
+		}
+		hosts.put(host, sources);
+		logger.info("Configured ", sources.size(), " mirrors for ", host);
+	}
+
+	/**
+	 * Adds or refreshes a peer serving artifacts by hash at the given <b>base</b> URL.
+	 *
+	 * @param base The base URL of the peer
+	 * @param ttl The number of milliseconds after which the peer is removed unless it is added again, or <code>0</code> to keep it until {@link #removePeer(String)} is
+	 *            called
+	 * @throws IOException If the base URL is invalid
+	 */
+	public static void addPeer(String base, long ttl) throws IOException {
+		String b;
+		try{
+			URI uri = new URI(base.endsWith("/") ? base.substring(0, base.length() - 1) : base);
+			if(uri.getScheme() == null || uri.getHost() == null)
+				throw new URISyntaxException(base, "Expected an absolute URL");
+			b = uri.toString();
+		}catch(URISyntaxException e){
+			throw new IOException("Invalid peer URL: " + base, e);
+		}
+		long expires = ttl > 0 ? System.nanoTime() + ttl * 1000000L : 0;
+		Source peer = peers.computeIfAbsent(b, (k) -> {
+			logger.info("Added peer ", k);
+			Source s = new Source(k, 0, false, true);
+			s.expires = expires;
+			return s;
+		});
+		// a peer added without a limit keeps it, even if it is also discovered
+		if(peer.expires != 0)
+			peer.expires = expires;
+	}
+
+	/**
+	 * Removes the peer with the given <b>base</b> URL.
+	 *
+	 * @param base The base URL of the peer
+	 */
+	public static void removePeer(String base) {
+		if(peers.remove(base.endsWith("/") ? base.substring(0, base.length() - 1) : base) != null)
+			logger.info("Removed peer ", base);
+	}
+
+	/**
+	 * Returns the sources to try for the given upstream <b>uri</b>, best first. The last source is always the upstream URI.
+	 *
+	 * @param uri The upstream URI
+	 * @return The sources
+	 * @see #candidates(URI, String)
+	 */
+	public static List<Source> candidates(URI uri) {
+		return candidates(uri, null);
+	}
+
+	/**
+	 * Returns the sources to try for the given upstream <b>uri</b>, best first. If <b>sha1</b> is not <code>null</code>, the sources start with all available peers. The last
+	 * source is always the upstream URI.
+	 *
+	 * @param uri The upstream URI
+	 * @param sha1 The SHA-1 hash of the resource, or <code>null</code> if unknown
+	 * @return The sources
+	 */
+	public static List<Source> candidates(URI uri, String sha1) {
+		String upstreamBase = uri.getScheme() + "://" + uri.getRawAuthority();
+		List<Source> mirrors = uri.getHost() != null ? hosts.get(uri.getHost()) : null;
+		List<Source> result = new java.util.ArrayList<>();
+		long now = System.nanoTime();
+		if(sha1 != null && !peers.isEmpty()){
+			for(Source s : peers.values()){
+				if(s.expires != 0 && now - s.expires >= 0){
+					if(peers.remove(s.base, s))
+						logger.info("Peer ", s.base, " expired");
+				}else if(s.isHealthy(now))
+					result.add(s);
+			}
+			result.sort(Mirrors::compare);
+		}
+		if(mirrors != null && !mirrors.isEmpty()){
+			int peerCount = result.size();
+			probeIfNecessary(uri.getHost(), mirrors);
+			for(Source s : mirrors){
+				if(s.isHealthy(now))
+					result.add(s);
+			}
+			result.subList(peerCount, result.size()).sort(Mirrors::compare);
+		}
+		result.add(getUpstream(upstreamBase));
+		return result;
+	}
+
+	/**
+	 * Returns the URI of the resource at <b>upstream</b> on the given <b>source</b>.
+	 *
+	 * @param source The source
+	 * @param upstream The upstream URI
+	 * @return The URI on the source
+	 * @throws IOException If the resulting URI is invalid
+	 * @see #resolve(Source, URI, String)
+	 */
+	public static URI resolve(Source source, URI upstream) throws IOException {
+		return resolve(source, upstream, null);
+	}
+
+	/**
+	 * Returns the URI of the resource at <b>upstream</b> with the given hash on the given <b>source</b>.
+	 *
+	 * @param source The source
+	 * @param upstream The upstream URI
+	 * @param sha1 The SHA-1 hash of the resource, or <code>null</code> if unknown
+	 * @return The URI on the source
+	 * @throws IOException If the resulting URI is invalid, or the source is a peer and <b>sha1</b> is <code>null</code>
+	 */
+	public static URI resolve(Source source, URI upstream, String sha1) throws IOException {
+		if(source.upstream)
+			return upstream;
+		StringBuilder sb = new StringBuilder(source.base);
+		if(source.peer){
+			if(sha1 == null)
+				throw new IOException("Peer " + source.base + " can only serve resources with a known hash");
+			sb.append(LanShareServer.OBJECTS_PATH).append(sha1);
+		}else if(upstream.getRawPath() != null)
+			sb.append(upstream.getRawPath());
+		if(upstream.getRawQuery() != null)
+			sb.append('?').append(upstream.getRawQuery());
+		try{
+			return new URI(sb.toString());
+		}catch(URISyntaxException e){
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Runs the given <b>action</b> with each {@linkplain #candidates(URI) candidate} source for <b>uri</b> until it succeeds.
+	 * <p>
+	 * Sources whose host has an open circuit (see {@link HostStats}) are skipped. Failures are recorded in the source and host statistics, except errors that would also
+	 * occur on retry, such as a <i>404 Not Found</i> response.
+	 *
+	 * @param <T> The return type
+	 * @param uri The upstream URI
+	 * @param action The action, which receives the source and the URI of the resource on that source
+	 * @return The return value of the first successful run of the action
+	 * @throws IOException The error of the last source, if all sources failed
+	 * @see #tryEach(URI, String, SourceAction)
+	 */
+	public static <T> T tryEach(URI uri, SourceAction<T> action) throws IOException {
+		return tryEach(uri, null, action);
+	}
+
+	/**
+	 * Runs the given <b>action</b> with each {@linkplain #candidates(URI, String) candidate} source for <b>uri</b>, including peers if <b>sha1</b> is given, until it
+	 * succeeds.
+	 *
+	 * @param <T> The return type
+	 * @param uri The upstream URI
+	 * @param sha1 The SHA-1 hash of the resource, or <code>null</code> if unknown. The action must verify the resource against this hash
+	 * @param action The action, which receives the source and the URI of the resource on that source
+	 * @return The return value of the first successful run of the action
+	 * @throws IOException The error of the last source, if all sources failed
+	 * @see #tryEach(URI, SourceAction)
+	 */
+	public static <T> T tryEach(URI uri, String sha1, SourceAction<T> action) throws IOException {
+		IOException error = null;
+		for(Source source : candidates(uri, sha1)){
+			URI sourceUri = resolve(source, uri, sha1);
+			HostStats hostStats = HostStats.get(sourceUri);
+			try{
+				return hostStats.request(() -> action.run(source, sourceUri));
+			}catch(IOException e){
+				if(Retry.isInterruption(e))
+					throw e;
+				if(Retry.isRetryable(e))
+					source.failed(e);
+				if(error != null)
+					e.addSuppressed(error);
+				error = e;
+				// peers only have some artifacts, so not finding one there is expected
+				if(!source.isUpstream() && !(source.peer && e instanceof HttpStatusException && ((HttpStatusException) e).getStatus() == 404))
+					logger.debug("Request for ", uri, " to ", sourceUri, " failed, trying next source: ", e);
+			}
+		}
+		throw error;
+	}
+
+	private static Source getUpstream(String base) {
+		return upstreams.computeIfAbsent(base, (b) -> new Source(b, Integer.MAX_VALUE, true, false));
+	}
+
+	private static int compare(Source a, Source b) {
+		// measured throughput is a better indicator than probe latency, but only compare it once both have some
+		if(a.throughput > 0 && b.throughput > 0)
+			return Double.compare(b.throughput, a.throughput);
+		if(a.latencyNanos >= 0 && b.latencyNanos >= 0 && a.latencyNanos != b.latencyNanos)
+			return Long.compare(a.latencyNanos, b.latencyNanos);
+		return Integer.compare(a.order, b.order);
+	}
+
+	private static void probeIfNecessary(String host, List<Source> sources) {
+		synchronized(sources){
+			boolean probed = true;
+			for(Source s : sources){
+				if(!s.probed)
+					probed = false;
+			}
+			if(probed)
+				return;
+			List<CompletableFuture<?>> futures = new java.util.ArrayList<>();
+			for(Source s : sources)
+				futures.add(probe(s));
+			try{
+				CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+			}catch(Exception e){
+				// failures are recorded per source
+			}
+			StringBuilder sb = new StringBuilder();
+			for(Source s : sources)
+				sb.append(' ').append(s);
+			logger.debug("Probed mirrors for ", host, ":", sb);
+		}
+	}
+
+	private static CompletableFuture<?> probe(Source source) {
+		HttpRequest request;
+		try{
+			request = HttpRequest.newBuilder(new URI(source.base + "/")).timeout(PROBE_TIMEOUT).GET().build();
+		}catch(URISyntaxException e){
+			source.probed = true;
+			source.failed(e);
+			return CompletableFuture.completedFuture(null);
+		}
+		long start = System.nanoTime();
+		return SharedHttpClient.getClient().sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((res, e) -> {
+			source.probed = true;
+			if(e != null){
+				source.failed(e);
+			}else{
+				// any response means the server is reachable, the base URL itself does not need to be a valid resource
+				source.latencyNanos = System.nanoTime() - start;
+			}
+			return null;
+		});
+	}
+
+
+	@FunctionalInterface
+	public static interface SourceAction<T> {
+
+		public T run(Source source, URI sourceUri) throws IOException;
+	}
+
+	/**
+	 * A download source. This is either a mirror, a peer or the upstream host.
+	 */
+	public static class Source {
+
+		private final String base;
+		private final int order;
+		private final boolean upstream;
+		private final boolean peer;
+
+		private volatile boolean probed = false;
+		private volatile long latencyNanos = -1;
+		private volatile double throughput = 0;
+		private volatile long unhealthyUntil = 0;
+		private volatile boolean unhealthy = false;
+		private volatile long expires = 0;
+
+		private Source(String base, int order) {
+			this(base, order, false, false);
+		}
+
+		private Source(String base, int order, boolean upstream, boolean peer) {
+			this.base = base;
+			this.order = order;
+			this.upstream = upstream;
+			this.peer = peer;
+			// peers are not probed, they are already known to be reachable when they are added
+			this.probed = upstream || peer;
+		}
+
+
+		private boolean isHealthy(long now) {
+			return !this.unhealthy || now - this.unhealthyUntil >= 0;
+		}
+
+		/**
+		 * Records a successful transfer of <b>bytes</b> bytes from this source, which took <b>nanos</b> nanoseconds.
+		 *
+		 * @param bytes The number of bytes transferred
+		 * @param nanos The duration of the transfer
+		 */
+		public void succeeded(long bytes, long nanos) {
+			this.unhealthy = false;
+			if(bytes <= 0 || nanos <= 0)
+				return;
+			double t = bytes * 1e9 / nanos;
+			double prev = this.throughput;
+			this.throughput = prev > 0 ? prev * (1 - THROUGHPUT_WEIGHT) + t * THROUGHPUT_WEIGHT : t;
+		}
+
+		/**
+		 * Records a failed request to this source, which causes it to be skipped for some time.
+		 *
+		 * @param e The error
+		 */
+		public void failed(Throwable e) {
+			if(this.upstream)
+				return;
+			if(!this.unhealthy)
+				logger.warn(this.peer ? "Peer " : "Mirror ", this.base, " failed, skipping it for ", FAILURE_COOLDOWN_SECONDS, " seconds: ", e);
+			this.unhealthy = true;
+			this.unhealthyUntil = System.nanoTime() + FAILURE_COOLDOWN_SECONDS * 1000000000L;
+		}
+
+		public boolean isUpstream() {
+			return this.upstream;
+		}
+
+		public boolean isPeer() {
+			return this.peer;
+		}
+
+		@Override
+		public String toString() {
+			return this.base + "[latency=" + (this.latencyNanos >= 0 ? (this.latencyNanos / 1000000 + "ms") : "?") + " throughput=" + (long) this.throughput + "B/s"
+					+ (this.unhealthy ? " unhealthy" : "") + "]";
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Retries failed requests with exponential backoff.
+ * <p>
+ * The delay before attempt <i>n</i> is chosen uniformly at random between 0 and <code>min(</code>{@value #MAX_DELAY_MILLIS}<code>, </code>{@value #BASE_DELAY_MILLIS}
+ * <code> * 2^n)</code> milliseconds ("full jitter"), so that many clients failing at the same time do not retry at the same time. If the server sent a
+ * <code>Retry-After</code> header, the delay is at least the requested time.
+ */
+public final class Retry {
+
+	private static final Logger logger = Logger.create();
+
+	public static final int MAX_ATTEMPTS = 4;
+	private static final long BASE_DELAY_MILLIS = 500;
+	private static final long MAX_DELAY_MILLIS = 15000;
+	private static final long MAX_RETRY_AFTER_MILLIS = 120000;
+
+
+	private Retry() {
+	}
+
+
+	/**
+	 * Runs the given <b>action</b>, retrying it up to {@value #MAX_ATTEMPTS} times in total if it fails with a retryable error.
+	 *
+	 * @param <T> The return type
+	 * @param uri The URI requested by the action, used for logging and per-host statistics
+	 * @param action The action
+	 * @return The return value of the action
+	 * @throws IOException The error of the last attempt, or the first non-retryable error
+	 */
+	public static <T> T run(URI uri, Action<T> action) throws IOException {
+		HostStats stats = HostStats.get(uri);
+		int attempt = 0;
+		while(true){
+			try{
+				return action.run();
+			}catch(IOException e){
+				attempt++;
+				if(attempt >= MAX_ATTEMPTS || !isRetryable(e))
+					throw e;
+				long delay = ThreadLocalRandom.current().nextLong(Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << attempt) + 1);
+				if(e instanceof HttpStatusException)
+					delay = Math.max(delay, Math.min(MAX_RETRY_AFTER_MILLIS, ((HttpStatusException) e).getRetryAfterMillis()));
+				stats.retried();
+				logger.debug("Attempt ", attempt, " for ", uri, " failed, retrying in ", delay, "ms: ", e);
+				try{
+					Thread.sleep(delay);
+				}catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting to retry " + uri);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether an action that failed with the given error should be retried. Requests rejected because the circuit breaker of the host is open are not retried,
+	 * since the host stays paused for longer than the retry delays.
+	 *
+	 * @param e The error
+	 * @return <code>true</code> if the action should be retried
+	 */
+	public static boolean isRetryable(IOException e) {
+		if(isInterruption(e) || e instanceof HostStats.CircuitOpenException)
+			return false;
+		if(e instanceof HttpStatusException)
+			return ((HttpStatusException) e).isRetryable();
+		return true;
+	}
+
+	/**
+	 * Returns whether the given error was caused by the current thread being interrupted, as opposed to, for example, a socket timeout.
+	 *
+	 * @param e The error
+	 * @return <code>true</code> if the error is an interruption
+	 */
+	public static boolean isInterruption(IOException e) {
+		return e instanceof InterruptedIOException && !(e instanceof java.net.SocketTimeoutException);
+	}
+
+
+	@FunctionalInterface
+	public static interface Action<T> {
+
+		public T run() throws IOException;
+	}
+}
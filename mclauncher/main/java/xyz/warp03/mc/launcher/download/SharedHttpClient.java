@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.SettingsManager;
+
+/**
+ * Process-wide HTTP client used for all requests made by the launcher.
+ * <p>
+ * A single {@link HttpClient} is shared so that connections (and TLS sessions) are reused between requests. HTTP/2 is preferred, allowing concurrent requests to the same
+ * host to be multiplexed over one connection. The number of concurrent requests per host is limited by {@link Config#maxConnectionsPerHost}.
+ */
+public final class SharedHttpClient {
+
+	private static final Logger logger = Logger.create();
+
+	private static final String SETTING_MAX_CONNECTIONS_PER_HOST = "SharedHttpClient.maxConnectionsPerHost";
+	private static final String SETTING_CONNECT_TIMEOUT = "SharedHttpClient.connectTimeout";
+	private static final String SETTING_REQUEST_TIMEOUT = "SharedHttpClient.requestTimeout";
+	private static final String SETTING_THREADS = "SharedHttpClient.threads";
+
+	private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+
+	private static Config config = new Config();
+	private static HttpClient client;
+	private static final Map<String, Semaphore> hostPermits = new java.util.concurrent.ConcurrentHashMap<>();
+
+
+	private SharedHttpClient() {
+	}
+
+
+	/**
+	 * Replaces the current configuration. The underlying client is recreated on the next request; requests already in progress are not affected.
+	 * <p>
+	 * The previous client is not shut down, since requests in progress still need its executor. Its threads exit once they have been idle for
+	 * {@value #THREAD_KEEP_ALIVE_SECONDS} seconds, after which it is garbage collected.
+	 *
+	 * @param config The new configuration
+	 */
+	public static synchronized void configure(Config config) {
+		SharedHttpClient.config = config;
+		SharedHttpClient.client = null;
+		hostPermits.clear();
+		logger.debug("Configured: maxConnectionsPerHost=", config.maxConnectionsPerHost, " connectTimeout=", config.connectTimeout, " requestTimeout=", config.requestTimeout,
+				" threads=", config.threads);
+	}
+
+	public static synchronized Config getConfig() {
+		return config;
+	}
+
+	public static synchronized HttpClient getClient() {
+		if(client == null){
+			AtomicInteger threadNum = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(config.threads, config.threads, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+					(r) -> {
+						Thread t = new Thread(r, "HttpClient-" + threadNum.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			executor.allowCoreThreadTimeOut(true);
+			client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(config.connectTimeout).executor(executor).build();
+		}
+		return client;
+	}
+
+
+	/**
+	 * Creates a new request builder for the given <b>uri</b> with the configured request timeout.
+	 *
+	 * @param uri The request URI
+	 * @return The request builder
+	 */
+	public static HttpRequest.Builder newRequest(URI uri) {
+		return HttpRequest.newBuilder(uri).timeout(getConfig().requestTimeout);
+	}
+
+	/**
+	 * Sends the given <b>request</b> using the shared client, waiting for a free request slot of the target host first.
+	 *
+	 * @param <T> The response body type
+	 * @param request The request
+	 * @param handler The response body handler
+	 * @return The response
+	 * @throws IOException If an IO error occurs
+	 * @throws InterruptedException If interrupted while waiting
+	 * @see HttpClient#send(HttpRequest, HttpResponse.BodyHandler)
+	 */
+	public static <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+		try(HostPermit permit = acquireHost(request.uri())){
+			return getClient().send(request, handler);
+		}
+	}
+
+	/**
+	 * Waits for a free request slot of the host of the given <b>uri</b>. The returned permit must be closed when the request, including reading the response body, has
+	 * completed.
+	 *
+	 * @param uri The request URI
+	 * @return The permit
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public static HostPermit acquireHost(URI uri) throws InterruptedException {
+		int limit = getConfig().maxConnectionsPerHost;
+		Semaphore sem = hostPermits.computeIfAbsent(uri.getHost() + ":" + uri.getPort(), (k) -> new Semaphore(limit));
+		sem.acquire();
+		return new HostPermit(sem);
+	}
+
+
+	public static class HostPermit implements AutoCloseable {
+
+		private final Semaphore semaphore;
+		private boolean released = false;
+
+		private HostPermit(Semaphore semaphore) {
+			this.semaphore = semaphore;
+		}
+
+
+		@Override
+		public synchronized void close() {
+			if(this.released)
+				return;
+			this.released = true;
+			this.semaphore.release();
+		}
+	}
+
+	public static class Config {
+
+		public final int maxConnectionsPerHost;
+		public final Duration connectTimeout;
+		public final Duration requestTimeout;
+		public final int threads;
+
+		public Config() {
+			this(8, Duration.ofSeconds(10), Duration.ofSeconds(60), 4);
+		}
+
+		public Config(int maxConnectionsPerHost, Duration connectTimeout, Duration requestTimeout, int threads) {
+			if(maxConnectionsPerHost < 1 || threads < 1)
+				throw new IllegalArgumentException("maxConnectionsPerHost and threads must be positive");
+			this.maxConnectionsPerHost = maxConnectionsPerHost;
+			this.connectTimeout = connectTimeout;
+			this.requestTimeout = requestTimeout;
+			this.threads = threads;
+		}
+
+
+		/**
+		 * Creates a configuration from the <code>SharedHttpClient.*</code> settings, using the default value for any setting that is not set. Timeouts are in milliseconds.
+		 *
+		 * @param settings The settings
+		 * @return The configuration
+		 */
+		public static Config fromSettings(SettingsManager settings) {
+			Config def = new Config();
+			return new Config(settings.getInt(SETTING_MAX_CONNECTIONS_PER_HOST, def.maxConnectionsPerHost),
+					Duration.ofMillis(settings.getInt(SETTING_CONNECT_TIMEOUT, (int) def.connectTimeout.toMillis())),
+					Duration.ofMillis(settings.getInt(SETTING_REQUEST_TIMEOUT, (int) def.requestTimeout.toMillis())), settings.getInt(SETTING_THREADS, def.threads));
+		}
+	}
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.install;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.JsonReader;
+import xyz.warp03.mc.launcher.ProgressTracker;
+import xyz.warp03.mc.launcher.Util;
+import xyz.warp03.mc.launcher.download.DownloadScheduler;
+import xyz.warp03.mc.launcher.download.Downloader;
+import xyz.warp03.mc.launcher.download.Retry;
+
+/**
+ * Downloads missing asset objects of one or more asset indexes concurrently. Objects shared by several indexes are only downloaded once.
+ * <p>
+ * The number of concurrent downloads is bounded by <i>maxWorkers</i> and is continuously adjusted according to the observed throughput. Writing downloaded objects to
+ * disk is limited separately by <i>maxDiskWriters</i>.
+ */
+public class AssetSync {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String OBJECTS_BASE_URL = "https://resources.download.minecraft.net/";
+
+
+	private final Path assetsDir;
+	private final int maxWorkers;
+	private final int maxDiskWriters;
+
+	public AssetSync(Path assetsDir, int maxWorkers, int maxDiskWriters) {
+		if(maxWorkers < 1 || maxDiskWriters < 1)
+			throw new IllegalArgumentException("maxWorkers and maxDiskWriters must be positive");
+		this.assetsDir = assetsDir;
+		this.maxWorkers = maxWorkers;
+		this.maxDiskWriters = maxDiskWriters;
+	}
+
+
+	/**
+	 * Ensures all asset objects in the given <b>objects</b> map (the <code>objects</code> object of an asset index) exist in the assets directory, downloading any missing
+	 * objects.
+	 * <p>
+	 * Once all objects of an asset index are present, a marker file containing the hash and object count of the index is written next to it, so that subsequent calls for
+	 * the same index return without checking any objects.
+	 *
+	 * @param indexId The ID of the asset index
+	 * @param indexSha1 The SHA-1 hash of the asset index file
+	 * @param objects The asset objects
+	 * @param progress The progress tracker to report downloaded objects to
+	 * @param progressFrom The percentage at the start of the sync
+	 * @param progressTo The percentage at the end of the sync
+	 * @return The result
+	 * @throws IOException If an IO error occurs or any object could not be downloaded
+	 */
+	public Result sync(String indexId, String indexSha1, JSONObject objects, ProgressTracker progress, int progressFrom, int progressTo) throws IOException {
+		return this.sync(java.util.Collections.singletonList(new Index(indexId, indexSha1, objects)), progress, progressFrom, progressTo);
+	}
+
+	/**
+	 * Ensures all asset objects of the given asset <b>indexes</b> exist in the assets directory, like {@link #sync(String, String, JSONObject, ProgressTracker, int, int)}.
+	 * The objects of all indexes are merged by hash before downloading.
+	 * <p>
+	 * If some objects could not be downloaded, the marker files of all indexes not containing any of them are still written, so {@link #isSynced(Index)} can be used to
+	 * determine which indexes are complete.
+	 *
+	 * @param indexes The asset indexes
+	 * @param progress The progress tracker to report downloaded objects to
+	 * @param progressFrom The percentage at the start of the sync
+	 * @param progressTo The percentage at the end of the sync
+	 * @return The result
+	 * @throws IOException If an IO error occurs or any object could not be downloaded
+	 */
+	public Result sync(List<Index> indexes, ProgressTracker progress, int progressFrom, int progressTo) throws IOException {
+		List<Index> pending = new java.util.ArrayList<>();
+		int objectCount = 0;
+		for(Index index : indexes){
+			int count = index.size();
+			objectCount += count;
+			if(this.isSynced(index))
+				logger.info("All " + count + " asset objects of index '" + index.id + "' are already present");
+			else
+				pending.add(index);
+		}
+		Result result = new Result(objectCount);
+		if(pending.isEmpty())
+			return result;
+
+		java.util.Set<String> present = this.scanObjects();
+		Map<String, AssetObject> missing = new java.util.HashMap<>();
+		int pendingCount = 0;
+		for(Index index : pending){
+			pendingCount += index.size();
+			for(int i = 0; i < index.size(); i++){
+				String hash = index.getHash(i);
+				if(!present.contains(hash) && !missing.containsKey(hash))
+					missing.put(hash, new AssetObject(index.getPath(i), hash, index.getSize(i)));
+			}
+		}
+		logger.info("Downloading asset objects (" + missing.size() + " of " + pendingCount + " missing, " + pending.size() + " indexes)");
+		Map<AssetObject, IOException> failed = java.util.Collections.emptyMap();
+		if(missing.size() > 0){
+			List<AssetObject> list = new java.util.ArrayList<>(missing.values());
+			// largest objects first, so that the end of the sync is not spent waiting for a few large files
+			list.sort((a, b) -> Long.compare(b.size, a.size));
+			progress.beginItems(progressFrom, progressTo, list.size(), totalSize(list), "Downloading assets");
+			failed = this.download(list, result, progress);
+			if(!failed.isEmpty()){
+				// failed objects are only retried once all others are done, so that a few broken objects do not hold up the rest
+				logger.warn(failed.size(), " asset objects failed to download, retrying them");
+				List<AssetObject> retry = new java.util.ArrayList<>(failed.keySet());
+				progress.beginItems(progressFrom, progressTo, retry.size(), totalSize(retry), "Retrying failed assets");
+				failed = this.download(retry, result, progress);
+			}
+		}
+		java.util.Set<String> failedHashes = new java.util.HashSet<>();
+		for(AssetObject obj : failed.keySet())
+			failedHashes.add(obj.hash);
+		for(Index index : pending){
+			boolean complete = true;
+			for(int i = 0; i < index.size(); i++){
+				if(failedHashes.contains(index.getHash(i))){
+					complete = false;
+					break;
+				}
+			}
+			if(complete){
+				Util.writeAtomic(this.markerPath(index), index.marker().getBytes());
+			}
+		}
+		if(!failed.isEmpty()){
+			IOException e = new IOException(failed.size() + " asset objects could not be downloaded");
+			for(Map.Entry<AssetObject, IOException> f : failed.entrySet()){
+				logger.error("Failed to download asset object ", f.getKey().path, " (", f.getKey().hash, "): ", f.getValue());
+				if(e.getSuppressed().length < 10)
+					e.addSuppressed(f.getValue());
+			}
+			throw e;
+		}
+		logger.info("Finished processing " + pendingCount + " asset objects (" + result.downloaded.get() + " downloaded, " + result.bytes.get() + " bytes)");
+		return result;
+	}
+
+	/**
+	 * Checks whether all objects of the given <b>index</b> were present at the end of a previous sync.
+	 *
+	 * @param index The asset index
+	 * @return <code>true</code> if the index is synced
+	 * @throws IOException If an IO error occurs
+	 */
+	public boolean isSynced(Index index) throws IOException {
+		Path markerPath = this.markerPath(index);
+		return Files.isRegularFile(markerPath) && new String(Files.readAllBytes(markerPath)).trim().equals(index.marker());
+	}
+
+	private Path markerPath(Index index) {
+		return this.assetsDir.resolve("indexes").resolve(index.id + ".synced");
+	}
+
+	/**
+	 * Lists all 256 object shard directories (in parallel) and returns the names of all objects found.
+	 *
+	 * @return The hashes of all present asset objects
+	 * @throws IOException If an IO error occurs
+	 */
+	public java.util.Set<String> scanObjects() throws IOException {
+		Path objectsDir = this.assetsDir.resolve("objects");
+		java.util.Set<String> present = java.util.concurrent.ConcurrentHashMap.newKeySet();
+		if(!Files.isDirectory(objectsDir))
+			return present;
+		try{
+			java.util.stream.IntStream.range(0, 256).parallel().forEach((i) -> {
+				Path shard = objectsDir.resolve(String.format("%02x", i));
+				if(!Files.isDirectory(shard))
+					return;
+				try(java.nio.file.DirectoryStream<Path> ds = Files.newDirectoryStream(shard)){
+					for(Path p : ds){
+						String name = p.getFileName().toString();
+						// skip partial downloads and other temporary files
+						if(name.indexOf('.') < 0)
+							present.add(name);
+					}
+				}catch(IOException e){
+					throw new java.io.UncheckedIOException(e);
+				}
+			});
+		}catch(java.io.UncheckedIOException e){
+			throw e.getCause();
+		}
+		logger.debug("Found ", present.size(), " asset objects in ", objectsDir);
+		return present;
+	}
+
+	private Map<AssetObject, IOException> download(List<AssetObject> missing, Result result, ProgressTracker progress) throws IOException {
+		ConcurrencyTuner tuner = new ConcurrencyTuner(Math.min(4, this.maxWorkers), this.maxWorkers);
+		Semaphore diskWriters = new Semaphore(this.maxDiskWriters);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Map<AssetObject, IOException> failed = new java.util.concurrent.ConcurrentHashMap<>();
+		AtomicInteger threadNum = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(this.maxWorkers, (r) -> {
+			Thread t = new Thread(r, "AssetSync-" + threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try{
+			for(AssetObject obj : missing){
+				executor.execute(() -> {
+					if(error.get() != null)
+						return;
+					try{
+						tuner.acquire();
+						try{
+							String opath = obj.hash.substring(0, 2) + "/" + obj.hash;
+							long size = Downloader.downloadArtifact(OBJECTS_BASE_URL + opath, this.objectPath(obj.hash), obj.size, obj.hash, diskWriters,
+									DownloadScheduler.Priority.ASSET);
+							tuner.completed(size);
+							result.bytes.addAndGet(size);
+						}finally{
+							tuner.release();
+						}
+						result.downloaded.incrementAndGet();
+						progress.itemCompleted(obj.size);
+					}catch(IOException e){
+						if(Retry.isInterruption(e))
+							error.compareAndSet(null, e);
+						else
+							failed.put(obj, e);
+					}catch(Throwable e){
+						error.compareAndSet(null, e);
+					}
+				});
+			}
+			executor.shutdown();
+			while(!executor.awaitTermination(1, java.util.concurrent.TimeUnit.SECONDS)){
+				if(error.get() != null)
+					executor.shutdownNow();
+			}
+		}catch(InterruptedException e){
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading asset objects", e);
+		}
+		Throwable err = error.get();
+		if(err instanceof IOException)
+			throw (IOException) err;
+		else if(err != null)
+			throw new IOException("Error while downloading asset objects", err);
+		logger.debug("Asset download concurrency settled at ", tuner.limit, " (max ", this.maxWorkers, ")");
+		return failed;
+	}
+
+	private static long totalSize(List<AssetObject> objects) {
+		long size = 0;
+		for(AssetObject obj : objects)
+			size += obj.size;
+		return size;
+	}
+
+	private Path objectPath(String hash) {
+		return this.assetsDir.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+
+	/**
+	 * An asset index. Only the path, hash and size of each object are kept, in parallel arrays.
+	 */
+	public static class Index {
+
+		public final String id;
+		public final String sha1;
+		private final String[] paths;
+		private final String[] hashes;
+		private final long[] sizes;
+
+		/**
+		 * @param id The ID of the asset index
+		 * @param sha1 The SHA-1 hash of the asset index file
+		 * @param objects The <code>objects</code> object of the asset index
+		 */
+		public Index(String id, String sha1, JSONObject objects) {
+			this.id = id;
+			this.sha1 = sha1;
+			int count = objects.length();
+			this.paths = new String[count];
+			this.hashes = new String[count];
+			this.sizes = new long[count];
+			int i = 0;
+			for(String path : objects.keySet()){
+				JSONObject desc = objects.getJSONObject(path);
+				this.paths[i] = path;
+				this.hashes[i] = desc.getString("hash");
+				this.sizes[i] = desc.getLong("size");
+				i++;
+			}
+		}
+
+		private Index(String id, String sha1, String[] paths, String[] hashes, long[] sizes) {
+			this.id = id;
+			this.sha1 = sha1;
+			this.paths = paths;
+			this.hashes = hashes;
+			this.sizes = sizes;
+		}
+
+
+		/**
+		 * Returns the number of objects in this index.
+		 *
+		 * @return The number of objects
+		 */
+		public int size() {
+			return this.paths.length;
+		}
+
+		public String getPath(int i) {
+			return this.paths[i];
+		}
+
+		public String getHash(int i) {
+			return this.hashes[i];
+		}
+
+		public long getSize(int i) {
+			return this.sizes[i];
+		}
+
+		private String marker() {
+			return this.sha1 + " " + this.paths.length;
+		}
+
+
+		/**
+		 * Reads the asset index in the given <b>file</b> with a {@link JsonReader}, keeping only the hash and size of each object.
+		 *
+		 * @param id The ID of the asset index
+		 * @param sha1 The SHA-1 hash of the asset index file
+		 * @param file The asset index file
+		 * @return The asset index
+		 * @throws IOException If an IO error occurs or the file is not a valid asset index
+		 */
+		public static Index read(String id, String sha1, Path file) throws IOException {
+			List<String> paths = new java.util.ArrayList<>();
+			List<String> hashes = new java.util.ArrayList<>();
+			long[] sizes = new long[1024];
+			try(JsonReader reader = new JsonReader(Files.newInputStream(file))){
+				reader.beginObject();
+				while(reader.hasNext()){
+					if(!reader.nextName().equals("objects")){
+						reader.skipValue();
+						continue;
+					}
+					reader.beginObject();
+					while(reader.hasNext()){
+						String path = reader.nextName();
+						String hash = null;
+						long size = -1;
+						reader.beginObject();
+						while(reader.hasNext()){
+							String name = reader.nextName();
+							if(name.equals("hash"))
+								hash = reader.nextString();
+							else if(name.equals("size"))
+								size = reader.nextLong();
+							else
+								reader.skipValue();
+						}
+						reader.endObject();
+						if(hash == null || size < 0)
+							throw new IOException("Asset object '" + path + "' has no hash or size");
+						if(paths.size() == sizes.length)
+							sizes = java.util.Arrays.copyOf(sizes, sizes.length * 2);
+						sizes[paths.size()] = size;
+						paths.add(path);
+						hashes.add(hash);
+					}
+					reader.endObject();
+				}
+				reader.endObject();
+				reader.endDocument();
+			}catch(IOException e){
+				throw new IOException("Failed to read asset index " + file + ": " + e.getMessage(), e);
+			}
+			int count = paths.size();
+			return new Index(id, sha1, paths.toArray(new String[count]), hashes.toArray(new String[count]), java.util.Arrays.copyOf(sizes, count));
+		}
+	}
+
+	public static class Result {
+
+		public final int objectCount;
+		public final AtomicInteger downloaded = new AtomicInteger();
+		public final AtomicLong bytes = new AtomicLong();
+
+		public Result(int objectCount) {
+			this.objectCount = objectCount;
+		}
+	}
+
+	private static class AssetObject {
+
+		public final String path;
+		public final String hash;
+		public final long size;
+
+		public AssetObject(String path, String hash, long size) {
+			this.path = path;
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+
+	/**
+	 * Limits the number of concurrently running downloads and adjusts this limit by comparing the throughput of consecutive sampling windows: the limit is increased while
+	 * throughput keeps improving and decreased when it drops. Only downloads that transferred data over the network are sampled.
+	 */
+	private static class ConcurrencyTuner {
+
+		private static final long WINDOW_NANOS = 500_000_000L;
+
+		private final int maxLimit;
+		private int limit;
+		private int active;
+
+		private long windowStart = System.nanoTime();
+		private long windowBytes;
+		private double lastThroughput;
+
+		public ConcurrencyTuner(int initialLimit, int maxLimit) {
+			this.limit = initialLimit;
+			this.maxLimit = maxLimit;
+		}
+
+
+		public synchronized void acquire() throws InterruptedException {
+			while(this.active >= this.limit)
+				super.wait();
+			this.active++;
+		}
+
+		public synchronized void release() {
+			this.active--;
+			super.notifyAll();
+		}
+
+		public synchronized void completed(long bytes) {
+			long now = System.nanoTime();
+			// objects placed from the store or by a concurrent download say nothing about network throughput, and a window of only those would look like a slow one
+			if(bytes <= 0){
+				if(this.windowBytes == 0)
+					this.windowStart = now;
+				return;
+			}
+			this.windowBytes += bytes;
+			long elapsed = now - this.windowStart;
+			if(elapsed < WINDOW_NANOS)
+				return;
+			double throughput = this.windowBytes * 1e9 / elapsed;
+			if(throughput >= this.lastThroughput * 1.05){
+				if(this.limit < this.maxLimit)
+					this.limit++;
+			}else if(throughput < this.lastThroughput * 0.9){
+				if(this.limit > 1)
+					this.limit--;
+			}
+			this.lastThroughput = throughput;
+			this.windowStart = now;
+			this.windowBytes = 0;
+			super.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.install;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.GameProfile;
+import xyz.warp03.mc.launcher.HashCache;
+import xyz.warp03.mc.launcher.JsonReader;
+import xyz.warp03.mc.launcher.ProgressTracker;
+import xyz.warp03.mc.launcher.Util;
+import xyz.warp03.mc.launcher.download.ArtifactStore;
+import xyz.warp03.mc.launcher.launch.GameInstance;
+
+/**
+ * An offline install bundle: a single file containing everything needed to install a version without network access, namely the version JSON files, the client JAR,
+ * the libraries, the asset index and all asset objects it references.
+ * <p>
+ * A bundle starts with the magic number {@code MCLB}, the format version and the length of the manifest, each a big-endian 32-bit integer, followed by the manifest as
+ * UTF-8 JSON. The manifest lists every file with its path relative to the install directory, its SHA-1 hash and size. The contents of every distinct hash follow the
+ * manifest once, in the order in which the hash first appears in the file list, so that the offset of each file is implied by the sizes before it.
+ * <p>
+ * File contents are copied into and out of the bundle with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the kernel move the data without
+ * copying it through the Java heap. When importing, files that already exist in the destination or the {@linkplain ArtifactStore#getDefault() artifact store} are not
+ * extracted again, and all other files are extracted and verified in parallel. An interrupted import can be repeated and continues with the files that are still missing.
+ * <p>
+ * Libraries are resolved for the platform the bundle is exported on, so a bundle only contains the native libraries for that platform.
+ */
+public class InstallBundle implements AutoCloseable {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String FILE_EXTENSION = ".mclb";
+
+	private static final int MAGIC = 0x4d434c42;
+	private static final int FORMAT_VERSION = 1;
+	private static final int MAX_MANIFEST_SIZE = 64 * 1024 * 1024;
+	private static final int IMPORT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+
+	private final Path file;
+	private final FileChannel channel;
+	private final String versionName;
+	private final String platform;
+	private final List<String> versionJsons = new java.util.ArrayList<>();
+	private final String clientJar;
+	private final Map<String, Blob> blobs = new java.util.LinkedHashMap<>();
+	private final long dataOffset;
+	private long dataSize = 0;
+
+	private InstallBundle(Path file, FileChannel channel, JSONObject manifest, long dataOffset) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.versionName = manifest.getString("version");
+		this.platform = manifest.getString("platform");
+		for(Object o : manifest.getJSONArray("versionJson"))
+			this.versionJsons.add(checkPath(String.valueOf(o)));
+		this.clientJar = checkPath(manifest.getString("clientJar"));
+		this.dataOffset = dataOffset;
+
+		java.util.Set<String> paths = new java.util.HashSet<>();
+		for(Object o : manifest.getJSONArray("files")){
+			JSONArray f = (JSONArray) o;
+			String path = checkPath(f.getString(0));
+			String sha1 = f.getString(1).toLowerCase();
+			long size = f.getLong(2);
+			if(!sha1.matches("[0-9a-f]{40}") || size < 0)
+				throw new IOException("Invalid file entry in bundle manifest: " + f);
+			if(!paths.add(path))
+				throw new IOException("Duplicate path in bundle manifest: " + path);
+			Blob blob = this.blobs.get(sha1);
+			if(blob == null){
+				blob = new Blob(sha1, this.dataSize, size);
+				this.blobs.put(sha1, blob);
+				this.dataSize += size;
+			}else if(blob.size != size)
+				throw new IOException("Conflicting sizes for " + sha1 + " in bundle manifest");
+			blob.paths.add(path);
+		}
+		if(dataOffset + this.dataSize > channel.size())
+			throw new EOFException("Bundle " + file + " is truncated (expected " + (dataOffset + this.dataSize) + " bytes, got " + channel.size() + ")");
+	}
+
+
+	/**
+	 * Installs the contents of this bundle into <b>installDir</b> and returns a new game profile for it.
+	 *
+	 * @param installDir The directory containing the game files shared between instances
+	 * @param name The name of the new game profile
+	 * @param instanceDir The game directory of the new profile
+	 * @param progress The tracker to report progress to
+	 * @return The new game profile
+	 * @throws IOException If an IO error occurs or the bundle is corrupt
+	 */
+	public GameProfile install(String installDir, String name, String instanceDir, ProgressTracker progress) throws IOException {
+		if(!this.platform.equals(getCurrentPlatform()))
+			logger.warn("Bundle ", this.file, " was exported on platform ", this.platform, " but this is ", getCurrentPlatform(), ", native libraries may be missing");
+		Path root = Paths.get(installDir);
+		HashCache hashCache = HashCache.forDirectory(root);
+		ArtifactStore store = ArtifactStore.getDefault();
+		logger.info("Importing '", this.versionName, "' from bundle ", this.file, " (", this.blobs.size(), " files, ", this.dataSize, " bytes) into ", installDir);
+		progress.beginItems(0, 99, this.blobs.size(), this.dataSize, "Importing " + this.blobs.size() + " files");
+
+		AtomicInteger threadNum = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(IMPORT_THREADS, (r) -> {
+			Thread t = new Thread(r, "InstallBundle-" + threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		AtomicInteger extracted = new AtomicInteger();
+		try{
+			List<Future<?>> futures = new java.util.ArrayList<>(this.blobs.size());
+			for(Blob blob : this.blobs.values()){
+				futures.add(executor.submit(() -> {
+					if(this.importBlob(blob, root, hashCache, store))
+						extracted.incrementAndGet();
+					progress.itemCompleted(blob.size);
+					return null;
+				}));
+			}
+			int failed = 0;
+			IOException error = null;
+			for(Future<?> f : futures){
+				try{
+					f.get();
+				}catch(ExecutionException e){
+					failed++;
+					if(error == null)
+						error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+					else
+						logger.debug("Additional import failure: ", e.getCause());
+				}
+			}
+			if(error != null)
+				throw new IOException("Failed to import " + failed + " of " + this.blobs.size() + " files from bundle " + this.file, error);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Import interrupted");
+		}finally{
+			executor.shutdownNow();
+			HashCache.saveAll();
+		}
+		logger.info("Imported '", this.versionName, "': extracted ", extracted.get(), " files, ", this.blobs.size() - extracted.get(), " were already present");
+
+		progress.setStage(99, "Finishing up");
+		GameProfile gp = new GameProfile();
+		gp.name = name;
+		gp.versionName = this.versionName;
+		gp.gameJar = root.resolve(this.clientJar).toString();
+		StringBuilder libraryData = new StringBuilder();
+		for(String json : this.versionJsons){
+			if(libraryData.length() > 0)
+				libraryData.append("::");
+			libraryData.append(root.resolve(json));
+		}
+		gp.libraryData = libraryData.toString();
+		gp.libraryDir = installDir + "/libraries";
+		gp.assetsDir = root.resolve("assets").toString();
+		gp.nativesDir = null;
+		gp.gameDir = instanceDir;
+		gp.jvmCommand = "java";
+		gp.jvmArgs = "";
+		return gp;
+	}
+
+	/**
+	 * Places all files of the given <b>blob</b> in the install directory.
+	 *
+	 * @return <code>true</code> if the contents were extracted from the bundle, <code>false</code> if all files already existed or were provided by the store
+	 */
+	private boolean importBlob(Blob blob, Path root, HashCache hashCache, ArtifactStore store) throws IOException {
+		List<Path> missing = new java.util.ArrayList<>();
+		for(String p : blob.paths){
+			Path dest = root.resolve(p);
+			if(!Files.isRegularFile(dest) || Files.size(dest) != blob.size || !hashCache.sha1(dest).equals(blob.sha1))
+				missing.add(dest);
+		}
+		if(missing.isEmpty())
+			return false;
+		if(store != null && store.provide(blob.sha1, blob.size, missing.get(0))){
+			for(int i = 1; i < missing.size(); i++)
+				store.link(blob.sha1, missing.get(i));
+			for(Path dest : missing)
+				hashCache.put(dest, blob.sha1);
+			return false;
+		}
+
+		// with a store, the contents are extracted into it once and linked to each path
+		Path target = store != null ? store.objectPath(blob.sha1) : missing.get(0);
+		Path tmp = Util.tmpPath(target.toAbsolutePath());
+		Files.createDirectories(tmp.getParent());
+		try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			transfer(this.channel, this.dataOffset + blob.offset, blob.size, out);
+			out.force(true);
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			Util.digestChannel(md, out, blob.size);
+			String sha1 = Util.byteArrayToHex(md.digest());
+			if(!sha1.equals(blob.sha1))
+				throw new IOException("Bundle " + this.file + " is corrupt: " + blob.paths.get(0) + " has hash " + sha1 + ", expected " + blob.sha1);
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tmp);
+			throw e;
+		}catch(NoSuchAlgorithmException e){
+			throw new RuntimeException(e);
+		}
+		Util.moveAtomic(tmp, target);
+
+		if(store != null){
+			for(Path dest : missing)
+				store.link(blob.sha1, dest);
+		}else{
+			for(int i = 1; i < missing.size(); i++){
+				Path dest = missing.get(i);
+				Path copyTmp = Util.tmpPath(dest.toAbsolutePath());
+				Files.createDirectories(copyTmp.getParent());
+				try{
+					Files.copy(target, copyTmp);
+					Util.syncFile(copyTmp);
+				}catch(IOException e){
+					Files.deleteIfExists(copyTmp);
+					throw e;
+				}
+				Util.moveAtomic(copyTmp, dest);
+			}
+		}
+		for(Path dest : missing)
+			hashCache.put(dest, blob.sha1);
+		return true;
+	}
+
+	/**
+	 * Closes the bundle file.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+
+	public String getVersionName() {
+		return this.versionName;
+	}
+
+	/**
+	 * Returns the platform the bundle was exported on, in the format <code>os-bits</code>, for example <code>linux-64</code>.
+	 *
+	 * @return The platform
+	 */
+	public String getPlatform() {
+		return this.platform;
+	}
+
+	public int getFileCount() {
+		return this.blobs.size();
+	}
+
+	public long getDataSize() {
+		return this.dataSize;
+	}
+
+
+	/**
+	 * Opens the bundle at the given <b>file</b> and reads its manifest.
+	 *
+	 * @param file The bundle file
+	 * @return The bundle
+	 * @throws IOException If an IO error occurs or the file is not a valid bundle
+	 */
+	public static InstallBundle open(Path file) throws IOException {
+		FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+		try{
+			ByteBuffer header = ByteBuffer.allocate(12);
+			readFully(ch, header, 0);
+			if(header.getInt(0) != MAGIC)
+				throw new IOException(file + " is not an install bundle");
+			if(header.getInt(4) != FORMAT_VERSION)
+				throw new IOException("Unsupported install bundle format version " + header.getInt(4));
+			int manifestSize = header.getInt(8);
+			if(manifestSize < 0 || manifestSize > MAX_MANIFEST_SIZE)
+				throw new IOException("Invalid bundle manifest size " + manifestSize);
+			ByteBuffer manifestData = ByteBuffer.allocate(manifestSize);
+			readFully(ch, manifestData, 12);
+			JSONObject manifest = new JSONObject(new String(manifestData.array(), StandardCharsets.UTF_8));
+			return new InstallBundle(file, ch, manifest, 12 + manifestSize);
+		}catch(IOException | RuntimeException e){
+			ch.close();
+			if(e instanceof JSONException || e instanceof ClassCastException)
+				throw new IOException("Invalid bundle manifest in " + file, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a bundle containing all files of the installation used by the given <b>profile</b> to <b>bundleFile</b>, replacing it atomically.
+	 * <p>
+	 * All files must be present and match the hashes in the version metadata. Missing files, for example libraries of a manually imported installation that was never
+	 * launched, can be downloaded by verifying the installation with repair enabled.
+	 *
+	 * @param profile The game profile
+	 * @param bundleFile The file to write the bundle to
+	 * @param progress The tracker to report progress to
+	 * @throws IOException If an IO error occurs or a file of the installation is missing or corrupt
+	 */
+	public static void export(GameProfile profile, Path bundleFile, ProgressTracker progress) throws IOException {
+		String[] jsonFiles = profile.libraryData.split("::");
+		Path assetsDir = Paths.get(profile.assetsDir);
+		Path libraryDir = Paths.get(profile.libraryDir);
+		HashCache hashCache = HashCache.forDirectory(assetsDir.toAbsolutePath().getParent());
+
+		progress.setStage(0, "Reading version metadata");
+		List<ExportEntry> entries = new java.util.ArrayList<>();
+		JSONArray versionJsons = new JSONArray();
+		JSONObject clientDesc = null;
+		JSONObject assetIndexDesc = null;
+		for(String f : jsonFiles){
+			Path path = Paths.get(f);
+			String bpath = versionPath(path);
+			versionJsons.put(bpath);
+			entries.add(new ExportEntry(bpath, path, null));
+			JSONObject json = JsonReader.readFields(path, "downloads", "assetIndex");
+			if(json.has("downloads") && json.getJSONObject("downloads").has("client"))
+				clientDesc = json.getJSONObject("downloads").getJSONObject("client");
+			if(json.has("assetIndex"))
+				assetIndexDesc = json.getJSONObject("assetIndex");
+		}
+		Path jarPath = Paths.get(profile.gameJar);
+		String clientJar = versionPath(jarPath);
+		entries.add(new ExportEntry(clientJar, jarPath, clientDesc != null ? clientDesc.getString("sha1") : null));
+		for(GameInstance.Library lib : GameInstance.resolveLibraries(profile.libraryDir, jsonFiles)){
+			String bpath = "libraries/" + libraryDir.relativize(lib.path).toString().replace('\\', '/');
+			entries.add(new ExportEntry(bpath, lib.path, lib.artifact != null ? lib.artifact.optString("sha1", null) : null));
+		}
+		if(assetIndexDesc != null){
+			String id = assetIndexDesc.getString("id");
+			Path indexPath = assetsDir.resolve("indexes").resolve(id + ".json");
+			entries.add(new ExportEntry("assets/indexes/" + id + ".json", indexPath, assetIndexDesc.getString("sha1")));
+			if(!Files.isRegularFile(indexPath))
+				throw new IOException("Asset index " + indexPath + " is missing");
+			AssetSync.Index index = AssetSync.Index.read(id, assetIndexDesc.getString("sha1"), indexPath);
+			java.util.Set<String> seen = new java.util.HashSet<>();
+			for(int i = 0; i < index.size(); i++){
+				String hash = index.getHash(i);
+				if(!seen.add(hash))
+					continue;
+				String opath = hash.substring(0, 2) + "/" + hash;
+				entries.add(new ExportEntry("assets/objects/" + opath, assetsDir.resolve("objects").resolve(opath), hash));
+			}
+		}
+
+		progress.beginItems(0, 30, entries.size(), 0, "Checking " + entries.size() + " files");
+		JSONArray files = new JSONArray();
+		java.util.Set<String> paths = new java.util.HashSet<>();
+		Map<String, ExportEntry> blobs = new java.util.LinkedHashMap<>();
+		long dataSize = 0;
+		for(ExportEntry e : entries){
+			progress.itemCompleted(0);
+			// libraries may be listed by several version JSONs of a profile
+			if(!paths.add(e.path))
+				continue;
+			if(!Files.isRegularFile(e.source))
+				throw new IOException(e.source + " is missing, verify the installation with repair enabled before exporting");
+			String sha1 = hashCache.sha1(e.source);
+			if(e.sha1 != null && !e.sha1.equals(sha1))
+				throw new IOException(e.source + " is corrupt, verify the installation with repair enabled before exporting");
+			e.sha1 = sha1;
+			e.size = Files.size(e.source);
+			files.put(new JSONArray().put(e.path).put(e.sha1).put(e.size));
+			if(blobs.putIfAbsent(e.sha1, e) == null)
+				dataSize += e.size;
+		}
+		hashCache.save();
+
+		JSONObject manifest = new JSONObject();
+		manifest.put("version", profile.versionName);
+		manifest.put("platform", getCurrentPlatform());
+		manifest.put("versionJson", versionJsons);
+		manifest.put("clientJar", clientJar);
+		manifest.put("files", files);
+		byte[] manifestData = manifest.toString().getBytes(StandardCharsets.UTF_8);
+
+		logger.info("Exporting '", profile, "' to bundle ", bundleFile, " (", blobs.size(), " files, ", dataSize, " bytes)");
+		progress.beginItems(30, 100, blobs.size(), dataSize, "Writing " + blobs.size() + " files");
+		Path tmp = Util.tmpPath(bundleFile.toAbsolutePath());
+		Files.createDirectories(tmp.getParent());
+		try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)){
+			ByteBuffer header = ByteBuffer.allocate(12 + manifestData.length);
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(manifestData.length).put(manifestData).flip();
+			while(header.hasRemaining())
+				out.write(header);
+			for(ExportEntry e : blobs.values()){
+				try(FileChannel in = FileChannel.open(e.source, StandardOpenOption.READ)){
+					if(in.size() != e.size)
+						throw new IOException(e.source + " changed during export");
+					transfer(in, 0, e.size, out);
+				}
+				progress.itemCompleted(e.size);
+			}
+			out.force(true);
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		Util.moveAtomic(tmp, bundleFile);
+		logger.info("Exported '", profile, "' to ", bundleFile);
+	}
+
+
+	private static void transfer(FileChannel source, long position, long count, WritableByteChannel dest) throws IOException {
+		long done = 0;
+		while(done < count){
+			long n = source.transferTo(position + done, count - done, dest);
+			if(n <= 0 && position + done >= source.size())
+				throw new EOFException("Unexpected end of file");
+			done += n;
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()){
+			if(ch.read(buf, position + buf.position()) < 0)
+				throw new EOFException("Unexpected end of bundle");
+		}
+	}
+
+	private static String versionPath(Path file) {
+		return "versions/" + file.toAbsolutePath().getParent().getFileName() + "/" + file.getFileName();
+	}
+
+	private static String checkPath(String path) throws IOException {
+		if(!(path.startsWith("versions/") || path.startsWith("libraries/") || path.startsWith("assets/")) || path.contains("\\") || path.contains(":"))
+			throw new IOException("Invalid path in bundle manifest: " + path);
+		for(String part : path.split("/")){
+			if(part.isEmpty() || part.equals(".") || part.equals(".."))
+				throw new IOException("Invalid path in bundle manifest: " + path);
+		}
+		return path;
+	}
+
+	private static String getCurrentPlatform() {
+		return GameInstance.OS_NAME_SHORT + "-" + (Util.is64Bit() ? "64" : "32");
+	}
+
+
+	private static class Blob {
+
+		public final String sha1;
+		public final long offset;
+		public final long size;
+		public final List<String> paths = new java.util.ArrayList<>(1);
+
+		public Blob(String sha1, long offset, long size) {
+			this.sha1 = sha1;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	private static class ExportEntry {
+
+		public final String path;
+		public final Path source;
+		public String sha1;
+		public long size;
+
+		public ExportEntry(String path, Path source, String sha1) {
+			this.path = path;
+			this.source = source;
+			this.sha1 = sha1;
+		}
+	}
+}
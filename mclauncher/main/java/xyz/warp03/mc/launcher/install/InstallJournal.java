@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.install;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+/**
+ * Records the plan and the completed steps of installs into an install directory, so that an interrupted install can be resumed without repeating completed steps or
+ * rehashing the files they produced.
+ * <p>
+ * The journal is the file {@value #FILE_NAME} in the install directory. It contains one JSON object per line, each of which is synced to disk before the step it records is
+ * considered complete. A completed step stores the path, size and hash of the file it produced, and is only skipped on resume if the file still exists with that size. A
+ * partially written last line, left by a crash while appending, is ignored. Once all installs recorded in the journal have finished, the file is deleted.
+ * <p>
+ * Asset objects are not recorded individually: they are moved into place atomically under their hash, so the files present in the objects directory already are the
+ * journal of an asset sync.
+ */
+public class InstallJournal implements AutoCloseable {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String FILE_NAME = "mclauncher_install.journal";
+
+
+	private final Path file;
+	private final Map<String, VersionInstaller.Request> pending = new java.util.LinkedHashMap<>();
+	private final Map<String, JSONObject> completed = new java.util.HashMap<>();
+	private FileChannel channel;
+
+	private InstallJournal(Path file) {
+		this.file = file;
+	}
+
+
+	/**
+	 * Records that the given <b>requests</b> are about to be installed. Requests already recorded by an earlier, unfinished install are not recorded again.
+	 *
+	 * @param requests The requests
+	 * @throws IOException If an IO error occurs
+	 */
+	public synchronized void begin(List<VersionInstaller.Request> requests) throws IOException {
+		for(VersionInstaller.Request r : requests){
+			String key = requestKey(r);
+			if(this.pending.containsKey(key))
+				continue;
+			this.pending.put(key, r);
+			this.append(new JSONObject().put("type", "request").put("version", r.version.name).put("versionType", r.version.type).put("metaUrl", r.version.metaUrl)
+					.put("sha1", r.version.sha1).put("name", r.name).put("instanceDir", r.instanceDir));
+		}
+	}
+
+	/**
+	 * Checks whether the given <b>step</b> was completed by this or an earlier install and its output <b>file</b> still exists with the recorded size.
+	 *
+	 * @param step The unique name of the step
+	 * @param file The file produced by the step
+	 * @param sha1 The expected SHA-1 hash of the file
+	 * @return <code>true</code> if the step does not need to be repeated
+	 * @throws IOException If an IO error occurs
+	 */
+	public synchronized boolean isCompleted(String step, Path file, String sha1) throws IOException {
+		JSONObject record = this.completed.get(step);
+		if(record == null)
+			return false;
+		String path = file.toAbsolutePath().normalize().toString();
+		return record.optString("path").equals(path) && record.optString("sha1").equals(sha1) && Files.isRegularFile(file) && Files.size(file) == record.optLong("size", -1);
+	}
+
+	/**
+	 * Records that the given <b>step</b> completed. The output <b>file</b> must already be in place.
+	 *
+	 * @param step The unique name of the step
+	 * @param file The file produced by the step
+	 * @param sha1 The SHA-1 hash of the file
+	 * @throws IOException If an IO error occurs
+	 */
+	public synchronized void completed(String step, Path file, String sha1) throws IOException {
+		JSONObject record = new JSONObject().put("type", "completed").put("step", step).put("path", file.toAbsolutePath().normalize().toString())
+				.put("size", Files.size(file)).put("sha1", sha1);
+		this.completed.put(step, record);
+		this.append(record);
+	}
+
+	/**
+	 * Records that the given <b>requests</b> finished successfully. If no other requests are pending, the journal is deleted.
+	 *
+	 * @param requests The requests
+	 * @throws IOException If an IO error occurs
+	 */
+	public synchronized void finished(List<VersionInstaller.Request> requests) throws IOException {
+		for(VersionInstaller.Request r : requests){
+			String key = requestKey(r);
+			if(this.pending.remove(key) != null)
+				this.append(new JSONObject().put("type", "finished").put("key", key));
+		}
+		if(this.pending.isEmpty()){
+			this.close();
+			Files.deleteIfExists(this.file);
+			this.completed.clear();
+			logger.debug("All installs in journal ", this.file, " finished, deleted journal");
+		}
+	}
+
+	/**
+	 * Returns the requests of installs that were started but did not finish.
+	 *
+	 * @return The pending requests
+	 */
+	public synchronized List<VersionInstaller.Request> getPendingRequests() {
+		return new java.util.ArrayList<>(this.pending.values());
+	}
+
+	private void append(JSONObject record) throws IOException {
+		if(this.channel == null){
+			Files.createDirectories(this.file.getParent());
+			this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		ByteBuffer buf = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		while(buf.hasRemaining())
+			this.channel.write(buf);
+		this.channel.force(false);
+	}
+
+	/**
+	 * Closes the journal file, keeping it on disk.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(this.channel != null){
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	private void read() throws IOException {
+		byte[] data = Files.readAllBytes(this.file);
+		int end = data.length;
+		while(end > 0 && data[end - 1] != '\n')
+			end--;
+		if(end < data.length){
+			// a crash while appending leaves an incomplete last line, which would otherwise be joined with the next record
+			logger.debug("Discarding incomplete last record in journal ", this.file);
+			try(FileChannel ch = FileChannel.open(this.file, StandardOpenOption.WRITE)){
+				ch.truncate(end);
+				ch.force(false);
+			}
+		}
+		String[] lines = new String(data, 0, end, StandardCharsets.UTF_8).split("\n");
+		for(int i = 0; i < lines.length; i++){
+			String line = lines[i].trim();
+			if(line.isEmpty())
+				continue;
+			JSONObject record;
+			try{
+				record = new JSONObject(line);
+			}catch(JSONException e){
+				throw new IOException("Invalid record in install journal " + this.file + " at line " + (i + 1), e);
+			}
+			String type = record.optString("type");
+			if(type.equals("request")){
+				VersionManifest.Version version = new VersionManifest.Version(record.getString("version"), record.getString("versionType"), record.getString("metaUrl"),
+						record.optString("sha1", null));
+				VersionInstaller.Request r = new VersionInstaller.Request(version, record.getString("name"), record.getString("instanceDir"));
+				this.pending.put(requestKey(r), r);
+			}else if(type.equals("completed")){
+				this.completed.put(record.getString("step"), record);
+			}else if(type.equals("finished")){
+				this.pending.remove(record.getString("key"));
+			}
+		}
+		if(!this.pending.isEmpty())
+			logger.info("Found unfinished install of ", this.pending.size(), " versions in ", this.file);
+	}
+
+
+	private static String requestKey(VersionInstaller.Request r) {
+		return r.version.name + "/" + r.name;
+	}
+
+
+	/**
+	 * Opens the install journal in the given <b>installDir</b>, reading the records of any earlier, unfinished install.
+	 *
+	 * @param installDir The install directory
+	 * @return The journal
+	 * @throws IOException If an IO error occurs or the journal is corrupt
+	 */
+	public static InstallJournal open(Path installDir) throws IOException {
+		InstallJournal journal = new InstallJournal(installDir.resolve(FILE_NAME));
+		if(Files.isRegularFile(journal.file)){
+			try{
+				journal.read();
+			}catch(JSONException e){
+				throw new IOException("Invalid record in install journal " + journal.file, e);
+			}
+		}
+		return journal;
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.install;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.GameProfile;
+import xyz.warp03.mc.launcher.HashCache;
+import xyz.warp03.mc.launcher.JsonReader;
+import xyz.warp03.mc.launcher.download.DownloadScheduler;
+import xyz.warp03.mc.launcher.download.HostStats;
+import xyz.warp03.mc.launcher.download.Downloader;
+import xyz.warp03.mc.launcher.launch.GameInstance;
+import xyz.warp03.mc.launcher.launch.LaunchPlan;
+
+/**
+ * Verifies all files of the installation used by a {@link GameProfile} against the sizes and SHA-1 hashes in the version metadata, and optionally re-downloads missing or
+ * corrupt files.
+ * <p>
+ * The client JAR, asset index, libraries (including native libraries) and asset objects are checked. Hashing runs in parallel on all cores using a {@link ForkJoinPool}.
+ */
+public class InstallVerifier {
+
+	private static final Logger logger = Logger.create();
+
+	private static final int REPAIR_THREADS = 8;
+
+
+	private final GameProfile profile;
+
+	public InstallVerifier(GameProfile profile) {
+		this.profile = profile;
+	}
+
+
+	/**
+	 * Verifies the installation.
+	 *
+	 * @param repair Whether missing and corrupt files should be downloaded again
+	 * @param progressCallback Called with the progress (between 0 and 1) and a status message
+	 * @return The verification report
+	 * @throws IOException If an IO error occurs while reading the version metadata
+	 */
+	public Report verify(boolean repair, BiConsumer<Float, String> progressCallback) throws IOException {
+		Report report = new Report();
+		String[] files = this.profile.libraryData.split("::");
+
+		progressCallback.accept(0f, "Reading version metadata");
+		List<Entry> entries = new java.util.ArrayList<>();
+		JSONObject assetIndexDesc = null;
+		for(String f : files){
+			JSONObject json = JsonReader.readFields(Paths.get(f), "downloads", "assetIndex");
+			if(json.has("downloads") && json.getJSONObject("downloads").has("client"))
+				entries.add(Entry.from(Category.CLIENT, "client JAR", Paths.get(this.profile.gameJar), json.getJSONObject("downloads").getJSONObject("client")));
+			if(json.has("assetIndex"))
+				assetIndexDesc = json.getJSONObject("assetIndex");
+		}
+		Path assetsDir = Paths.get(this.profile.assetsDir);
+		HashCache hashCache = HashCache.forDirectory(assetsDir.toAbsolutePath().getParent());
+		Entry assetIndex = null;
+		if(assetIndexDesc != null){
+			Path assetIndexPath = assetsDir.resolve("indexes").resolve(assetIndexDesc.getString("id") + ".json");
+			assetIndex = Entry.from(Category.ASSET_INDEX, assetIndexDesc.getString("id"), assetIndexPath, assetIndexDesc);
+			entries.add(assetIndex);
+		}
+		for(GameInstance.Library lib : GameInstance.resolveLibraries(this.profile.libraryDir, files)){
+			Category c = lib.nativeLibrary ? Category.NATIVE_LIBRARY : Category.LIBRARY;
+			if(lib.artifact != null)
+				entries.add(Entry.from(c, lib.name, lib.path, lib.artifact));
+			else
+				entries.add(new Entry(c, lib.name, lib.path, null, -1, null));
+		}
+
+		progressCallback.accept(0.05f, "Verifying " + entries.size() + " files");
+		this.check(entries, hashCache, report, progressCallback, 0.05f, 0.1f);
+		if(repair)
+			this.repair(entries, report, progressCallback, 0.15f, 0.1f);
+
+		if(assetIndex != null && (assetIndex.status == Status.OK || assetIndex.status == Status.REPAIRED)){
+			AssetSync.Index index = AssetSync.Index.read(assetIndex.name, assetIndex.sha1, assetIndex.path);
+			List<Entry> assetEntries = new java.util.ArrayList<>(index.size());
+			for(int i = 0; i < index.size(); i++){
+				String hash = index.getHash(i);
+				String opath = hash.substring(0, 2) + "/" + hash;
+				assetEntries.add(new Entry(Category.ASSET, index.getPath(i), assetsDir.resolve("objects").resolve(opath), hash, index.getSize(i),
+						AssetSync.OBJECTS_BASE_URL + opath));
+			}
+			progressCallback.accept(0.25f, "Verifying " + assetEntries.size() + " asset objects");
+			this.check(assetEntries, hashCache, report, progressCallback, 0.25f, 0.6f);
+			if(repair)
+				this.repair(assetEntries, report, progressCallback, 0.85f, 0.1f);
+			if(report.count(Category.ASSET, Status.MISSING) + report.count(Category.ASSET, Status.CORRUPT) > report.count(Category.ASSET, Status.REPAIRED))
+				Files.deleteIfExists(assetIndex.path.resolveSibling(assetIndex.name + ".synced"));
+			entries.addAll(assetEntries);
+		}
+
+		if(repair && this.profile.nativesDir != null && this.profile.nativesDir.length() > 0 && Files.isDirectory(Paths.get(this.profile.nativesDir))){
+			for(Entry e : entries){
+				if(e.category == Category.NATIVE_LIBRARY && e.status == Status.REPAIRED){
+					logger.info("Re-extracting native library ", e.path, " to ", this.profile.nativesDir);
+					GameInstance.extractNativesJar(e.path.toString(), Paths.get(this.profile.nativesDir));
+				}
+			}
+		}
+
+		for(Entry e : entries){
+			if(e.status != Status.OK)
+				report.problems.add(e);
+		}
+		if(!report.problems.isEmpty())
+			LaunchPlan.invalidate(this.profile.libraryDir, files, "verification found " + report.problems.size() + " missing or corrupt files");
+		hashCache.save();
+		progressCallback.accept(1f, "Verification complete");
+		logger.info("Verification of '", this.profile, "' complete: ", report);
+		if(repair)
+			logger.info("Hosts: ", HostStats.getSummary());
+		return report;
+	}
+
+	private void check(List<Entry> entries, HashCache hashCache, Report report, BiConsumer<Float, String> progressCallback, float progressBase, float progressRange) {
+		AtomicInteger done = new AtomicInteger();
+		ForkJoinPool.commonPool().invoke(new CheckTask(entries, 0, entries.size(), hashCache, () -> {
+			int n = done.incrementAndGet();
+			if(n % 256 == 0){
+				synchronized(progressCallback){
+					progressCallback.accept(progressBase + progressRange * n / entries.size(), "Verified " + n + "/" + entries.size() + " files");
+				}
+			}
+		}));
+		for(Entry e : entries)
+			report.record(e.category, e.status);
+	}
+
+	private void repair(List<Entry> entries, Report report, BiConsumer<Float, String> progressCallback, float progressBase, float progressRange) {
+		List<Entry> broken = new java.util.ArrayList<>();
+		for(Entry e : entries){
+			if((e.status == Status.MISSING || e.status == Status.CORRUPT) && e.url != null)
+				broken.add(e);
+		}
+		if(broken.isEmpty())
+			return;
+		logger.info("Repairing ", broken.size(), " files");
+		ExecutorService executor = Executors.newFixedThreadPool(REPAIR_THREADS, (r) -> {
+			Thread t = new Thread(r, "InstallVerifier-repair");
+			t.setDaemon(true);
+			return t;
+		});
+		try{
+			AtomicInteger done = new AtomicInteger();
+			List<Future<?>> futures = new java.util.ArrayList<>();
+			for(Entry e : broken){
+				futures.add(executor.submit(() -> {
+					try{
+						Files.deleteIfExists(e.path);
+						Downloader.downloadArtifact(e.url, e.path, e.size, e.sha1, null, e.category.downloadPriority);
+						e.status = Status.REPAIRED;
+					}catch(IOException ex){
+						logger.warn("Failed to repair ", e.path, ": ", ex);
+						e.error = ex.toString();
+					}
+					int n = done.incrementAndGet();
+					synchronized(progressCallback){
+						progressCallback.accept(progressBase + progressRange * n / broken.size(), "Repaired " + n + "/" + broken.size() + " files");
+					}
+				}));
+			}
+			for(Future<?> f : futures)
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(java.util.concurrent.ExecutionException e){
+			throw new RuntimeException(e.getCause());
+		}finally{
+			executor.shutdownNow();
+		}
+		// give files that failed another chance once everything else is done, transient errors may have cleared up by now
+		for(Entry e : broken){
+			if(e.status == Status.REPAIRED || e.error == null || Thread.currentThread().isInterrupted())
+				continue;
+			progressCallback.accept(progressBase + progressRange, "Retrying repair of " + e.name);
+			try{
+				Files.deleteIfExists(e.path);
+				Downloader.downloadArtifact(e.url, e.path, e.size, e.sha1, null, e.category.downloadPriority);
+				e.status = Status.REPAIRED;
+				e.error = null;
+			}catch(IOException ex){
+				logger.warn("Failed to repair ", e.path, ": ", ex);
+				e.error = ex.toString();
+			}
+		}
+		for(Entry e : broken){
+			if(e.status == Status.REPAIRED)
+				report.record(e.category, Status.REPAIRED);
+		}
+	}
+
+
+	private static class CheckTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int THRESHOLD = 16;
+
+		private final List<Entry> entries;
+		private final int start;
+		private final int end;
+		private final HashCache hashCache;
+		private final Runnable onChecked;
+
+		public CheckTask(List<Entry> entries, int start, int end, HashCache hashCache, Runnable onChecked) {
+			this.entries = entries;
+			this.start = start;
+			this.end = end;
+			this.hashCache = hashCache;
+			this.onChecked = onChecked;
+		}
+
+
+		@Override
+		protected void compute() {
+			if(this.end - this.start <= THRESHOLD){
+				for(int i = this.start; i < this.end; i++){
+					this.entries.get(i).check(this.hashCache);
+					this.onChecked.run();
+				}
+			}else{
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new CheckTask(this.entries, this.start, mid, this.hashCache, this.onChecked),
+						new CheckTask(this.entries, mid, this.end, this.hashCache, this.onChecked));
+			}
+		}
+	}
+
+
+	public static enum Category {
+		CLIENT(DownloadScheduler.Priority.CRITICAL), ASSET_INDEX(DownloadScheduler.Priority.INDEX), LIBRARY(DownloadScheduler.Priority.CRITICAL),
+		NATIVE_LIBRARY(DownloadScheduler.Priority.CRITICAL), ASSET(DownloadScheduler.Priority.ASSET);
+
+		private final DownloadScheduler.Priority downloadPriority;
+
+		private Category(DownloadScheduler.Priority downloadPriority) {
+			this.downloadPriority = downloadPriority;
+		}
+	}
+
+	public static enum Status {
+		OK, MISSING, CORRUPT, UNVERIFIABLE, REPAIRED;
+	}
+
+	public static class Entry {
+
+		public final Category category;
+		public final String name;
+		public final Path path;
+		public final String sha1;
+		public final long size;
+		public final String url;
+
+		private volatile Status status;
+		private volatile String error;
+
+		public Entry(Category category, String name, Path path, String sha1, long size, String url) {
+			this.category = category;
+			this.name = name;
+			this.path = path;
+			this.sha1 = sha1;
+			this.size = size;
+			this.url = url;
+		}
+
+
+		private void check(HashCache hashCache) {
+			try{
+				if(!Files.isRegularFile(this.path))
+					this.status = Status.MISSING;
+				else if(this.sha1 == null)
+					this.status = Status.UNVERIFIABLE;
+				else if(this.size >= 0 && Files.size(this.path) != this.size)
+					this.status = Status.CORRUPT;
+				else if(!hashCache.sha1(this.path).equals(this.sha1))
+					this.status = Status.CORRUPT;
+				else
+					this.status = Status.OK;
+			}catch(IOException e){
+				this.status = Status.CORRUPT;
+				this.error = e.toString();
+			}
+		}
+
+		public Status getStatus() {
+			return this.status;
+		}
+
+		public String getError() {
+			return this.error;
+		}
+
+
+		@Override
+		public String toString() {
+			return this.category + " " + this.name + " (" + this.path + "): " + this.status + (this.error != null ? " (" + this.error + ")" : "");
+		}
+
+
+		public static Entry from(Category category, String name, Path path, JSONObject desc) {
+			return new Entry(category, name, path, desc.getString("sha1"), desc.optLong("size", -1), desc.getString("url"));
+		}
+	}
+
+	public static class Report {
+
+		private final Map<Category, Map<Status, Integer>> counts = new java.util.EnumMap<>(Category.class);
+		private final List<Entry> problems = new java.util.ArrayList<>();
+
+
+		private synchronized void record(Category category, Status status) {
+			this.counts.computeIfAbsent(category, (k) -> new java.util.EnumMap<>(Status.class)).merge(status, 1, Integer::sum);
+		}
+
+		public synchronized int count(Category category, Status status) {
+			Map<Status, Integer> m = this.counts.get(category);
+			return m != null ? m.getOrDefault(status, 0) : 0;
+		}
+
+		/**
+		 * Returns all files that were not found to be valid during the initial check, including ones that were repaired.
+		 *
+		 * @return The problematic files
+		 */
+		public List<Entry> getProblems() {
+			return java.util.Collections.unmodifiableList(this.problems);
+		}
+
+		/**
+		 * Returns <code>true</code> if all files are present and valid, either initially or after being repaired.
+		 *
+		 * @return Whether the installation is intact
+		 */
+		public boolean isIntact() {
+			for(Entry e : this.problems){
+				if(e.status == Status.MISSING || e.status == Status.CORRUPT)
+					return false;
+			}
+			return true;
+		}
+
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(Map.Entry<Category, Map<Status, Integer>> c : this.counts.entrySet()){
+				if(sb.length() > 0)
+					sb.append("; ");
+				sb.append(c.getKey().toString().toLowerCase().replace('_', ' ')).append(": ").append(c.getValue());
+			}
+			return sb.toString();
+		}
+	}
+}
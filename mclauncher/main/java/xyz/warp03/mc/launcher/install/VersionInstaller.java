@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.install;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.GameProfile;
+import xyz.warp03.mc.launcher.HashCache;
+import xyz.warp03.mc.launcher.JsonReader;
+import xyz.warp03.mc.launcher.ProgressTracker;
+import xyz.warp03.mc.launcher.SettingsManager;
+import xyz.warp03.mc.launcher.Util;
+import xyz.warp03.mc.launcher.download.ArtifactStore;
+import xyz.warp03.mc.launcher.download.DownloadScheduler;
+import xyz.warp03.mc.launcher.download.HostStats;
+import xyz.warp03.mc.launcher.download.MetadataCache;
+import xyz.warp03.mc.launcher.download.Retry;
+import xyz.warp03.mc.launcher.launch.GameInstance;
+
+/**
+ * Installs versions from the {@link VersionManifest}. This class does not depend on any UI and is used by both the {@code GameProfileWizard} and the headless install
+ * command.
+ */
+public class VersionInstaller {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String SETTING_ASSET_WORKERS = "VersionInstaller.assetWorkers";
+	public static final String SETTING_ASSET_DISK_WRITERS = "VersionInstaller.assetDiskWriters";
+
+
+	private final int assetWorkers;
+	private final int assetDiskWriters;
+
+	public VersionInstaller(SettingsManager settings) {
+		this(settings.getInt(SETTING_ASSET_WORKERS, 16), settings.getInt(SETTING_ASSET_DISK_WRITERS, 4));
+	}
+
+	public VersionInstaller(int assetWorkers, int assetDiskWriters) {
+		this.assetWorkers = assetWorkers;
+		this.assetDiskWriters = assetDiskWriters;
+	}
+
+
+	/**
+	 * Installs the given <b>version</b> into <b>installDir</b> and returns a new game profile for it. Files that already exist with the correct hash are not downloaded
+	 * again.
+	 *
+	 * @param version The version to install
+	 * @param name The name of the new game profile
+	 * @param installDir The directory containing the game files shared between instances
+	 * @param instanceDir The game directory of the new profile
+	 * @param progress The tracker to report progress to
+	 * @return The new game profile
+	 * @throws IOException If an IO error occurs or the version metadata is invalid
+	 * @see #installAll(List, String, ProgressTracker)
+	 */
+	public GameProfile install(VersionManifest.Version version, String name, String installDir, String instanceDir, ProgressTracker progress) throws IOException {
+		Result result = this.installAll(java.util.Collections.singletonList(new Request(version, name, instanceDir)), installDir, progress).get(0);
+		if(result.error != null)
+			throw result.error;
+		return result.profile;
+	}
+
+	/**
+	 * Installs several versions into <b>installDir</b> at once.
+	 * <p>
+	 * The metadata of all versions is resolved first. Asset indexes shared by several versions are only downloaded once, and the asset objects of all indexes are merged by
+	 * hash, so that each object is downloaded once even if it is used by every version. Client JARs and libraries are downloaded concurrently, so that the first launch
+	 * does not need to download anything. A failure to install one version does not affect the others, unless they share the failed artifacts.
+	 *
+	 * @param requests The versions to install
+	 * @param installDir The directory containing the game files shared between instances
+	 * @param progress The tracker to report the progress of the entire batch to
+	 * @return The result of each request, in the same order as <b>requests</b>
+	 * @throws IOException If the install is interrupted
+	 */
+	public List<Result> installAll(List<Request> requests, String installDir, ProgressTracker progress) throws IOException {
+		logger.info("Installing ", requests.size(), " versions in ", installDir);
+		HashCache hashCache = HashCache.forDirectory(Paths.get(installDir));
+		Path assetsDir = Paths.get(installDir, "assets");
+		List<Job> jobs = new java.util.ArrayList<>();
+		for(Request r : requests)
+			jobs.add(new Job(r));
+		InstallJournal journal = InstallJournal.open(Paths.get(installDir));
+		try{
+			journal.begin(requests);
+			progress.beginItems(1, 10, jobs.size(), 0, "Downloading version metadata");
+			for(Job job : jobs){
+				try{
+					job.resolve(installDir, journal);
+				}catch(IOException e){
+					if(Retry.isInterruption(e))
+						throw e;
+					job.fail(e);
+				}catch(JSONException e){
+					job.fail(e);
+				}
+				progress.itemCompleted(0);
+			}
+
+			progress.setStage(10, "Downloading asset indexes");
+			Map<String, AssetSync.Index> indexes = new java.util.LinkedHashMap<>();
+			Map<String, Exception> indexErrors = new java.util.HashMap<>();
+			for(Job job : alive(jobs)){
+				try{
+					JSONObject assetDesc = job.meta.getJSONObject("assetIndex");
+					String sha1 = assetDesc.getString("sha1");
+					if(!indexes.containsKey(sha1) && !indexErrors.containsKey(sha1)){
+						try{
+							indexes.put(sha1, this.loadAssetIndex(assetDesc, assetsDir, hashCache, journal));
+						}catch(IOException e){
+							if(Retry.isInterruption(e))
+								throw e;
+							indexErrors.put(sha1, e);
+						}catch(JSONException e){
+							indexErrors.put(sha1, e);
+						}
+					}
+					if(indexErrors.containsKey(sha1))
+						job.fail(indexErrors.get(sha1));
+					else
+						job.assetIndex = indexes.get(sha1);
+				}catch(JSONException e){
+					job.fail(e);
+				}
+			}
+
+			AssetSync assetSync = new AssetSync(assetsDir, this.assetWorkers, this.assetDiskWriters);
+			try{
+				assetSync.sync(new java.util.ArrayList<>(indexes.values()), progress, 15, 85);
+			}catch(IOException e){
+				if(Retry.isInterruption(e))
+					throw e;
+				for(Job job : alive(jobs)){
+					if(!assetSync.isSynced(job.assetIndex))
+						job.fail(e);
+				}
+			}
+
+			this.downloadClientJars(alive(jobs), hashCache, journal, progress);
+			this.downloadLibraries(alive(jobs), installDir, hashCache, progress);
+
+			progress.setStage(99, "Finishing up");
+			List<Result> results = new java.util.ArrayList<>();
+			List<Request> succeeded = new java.util.ArrayList<>();
+			for(Job job : jobs){
+				if(job.error == null){
+					GameProfile gp = new GameProfile();
+					gp.name = job.request.name;
+					gp.versionName = job.request.version.name;
+					gp.gameJar = job.jarPath.toString();
+					gp.libraryData = job.jsonPath.toString();
+					gp.libraryDir = installDir + "/libraries";
+					gp.assetsDir = assetsDir.toString();
+					gp.nativesDir = null;
+					gp.gameDir = job.request.instanceDir;
+					gp.jvmCommand = "java";
+					gp.jvmArgs = "";
+					logger.info("Installation of '" + job.request.version + "' complete");
+					results.add(new Result(job.request, gp, null));
+					succeeded.add(job.request);
+				}else{
+					logger.error("Installation of '", job.request.version, "' failed: ", job.error);
+					results.add(new Result(job.request, null, job.error));
+				}
+			}
+			if(ArtifactStore.getDefault() != null)
+				logger.info("Artifact store: ", ArtifactStore.getDefault().computeUsage());
+			logger.info("Download scheduler: ", DownloadScheduler.getStats());
+			logger.info("Hosts: ", HostStats.getSummary());
+			journal.finished(succeeded);
+			return results;
+		}finally{
+			journal.close();
+			HashCache.saveAll();
+		}
+	}
+
+	private AssetSync.Index loadAssetIndex(JSONObject assetDesc, Path assetsDir, HashCache hashCache, InstallJournal journal) throws IOException {
+		Path assetIndexDir = assetsDir.resolve("indexes");
+		Files.createDirectories(assetIndexDir);
+		Path assetIndexFilePath = assetIndexDir.resolve(assetDesc.getString("id") + ".json");
+		String step = "assetIndex:" + assetDesc.getString("sha1");
+		if(journal.isCompleted(step, assetIndexFilePath, assetDesc.getString("sha1"))){
+			logger.debug("Assets JSON '", assetIndexFilePath, "' was completed by a previous install");
+		}else if(!Files.exists(assetIndexFilePath) || !hashCache.sha1(assetIndexFilePath).equals(assetDesc.getString("sha1"))){
+			logger.info("Downloading assets JSON from '" + assetDesc.getString("url") + "'");
+			Util.downloadAndVerifyArtifact(assetDesc, assetIndexFilePath, DownloadScheduler.Priority.INDEX);
+			hashCache.put(assetIndexFilePath, assetDesc.getString("sha1"));
+		}else{
+			logger.info("Assets JSON '" + assetIndexFilePath + "' already exists with correct hash");
+			addToStore(assetDesc.getString("sha1"), assetIndexFilePath);
+		}
+		journal.completed(step, assetIndexFilePath, assetDesc.getString("sha1"));
+		return AssetSync.Index.read(assetDesc.getString("id"), assetDesc.getString("sha1"), assetIndexFilePath);
+	}
+
+	private void downloadClientJars(List<Job> jobs, HashCache hashCache, InstallJournal journal, ProgressTracker progress) throws IOException {
+		// versions with identical client JARs are downloaded once and copied
+		Map<String, List<Job>> bySha1 = new java.util.LinkedHashMap<>();
+		long totalSize = 0;
+		for(Job job : jobs){
+			try{
+				job.clientJar = job.meta.getJSONObject("downloads").getJSONObject("client");
+				List<Job> group = bySha1.computeIfAbsent(job.clientJar.getString("sha1"), (k) -> new java.util.ArrayList<>());
+				if(group.isEmpty())
+					totalSize += job.clientJar.optLong("size", 0);
+				group.add(job);
+			}catch(RuntimeException e){
+				job.fail(e);
+			}
+		}
+		if(bySha1.isEmpty())
+			return;
+		progress.beginItems(85, 92, bySha1.size(), totalSize, "Downloading game JARs");
+		AtomicInteger threadNum = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(bySha1.size(), 4), (r) -> {
+			Thread t = new Thread(r, "VersionInstaller-" + threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try{
+			List<Future<?>> futures = new java.util.ArrayList<>();
+			for(List<Job> group : bySha1.values()){
+				futures.add(executor.submit(() -> {
+					try{
+						JSONObject clientJarDesc = group.get(0).clientJar;
+						String sha1 = clientJarDesc.getString("sha1");
+						Path first = group.get(0).jarPath;
+						ensureClientJar(clientJarDesc, first, hashCache, journal);
+						for(int i = 1; i < group.size(); i++){
+							Path jarPath = group.get(i).jarPath;
+							String step = "clientJar:" + jarPath;
+							if(journal.isCompleted(step, jarPath, sha1))
+								continue;
+							if(!Files.exists(jarPath) || !hashCache.sha1(jarPath).equals(sha1)){
+								Path tmp = Util.tmpPath(jarPath);
+								try{
+									Files.copy(first, tmp);
+									Util.syncFile(tmp);
+								}catch(IOException e){
+									Files.deleteIfExists(tmp);
+									throw e;
+								}
+								Util.moveAtomic(tmp, jarPath);
+								hashCache.put(jarPath, sha1);
+							}
+							journal.completed(step, jarPath, sha1);
+						}
+						progress.itemCompleted(clientJarDesc.optLong("size", 0));
+					}catch(IOException e){
+						if(Retry.isInterruption(e))
+							throw e;
+						for(Job job : group)
+							job.fail(e);
+					}catch(RuntimeException e){
+						// for example a JSONException from an invalid client JAR descriptor, which only affects the versions using it
+						for(Job job : group)
+							job.fail(e);
+					}
+					return null;
+				}));
+			}
+			for(Future<?> f : futures)
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading game JARs");
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while downloading game JARs", e.getCause());
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Downloads the libraries of all <b>jobs</b>, so that the first launch of the new profiles does not need to download anything. Libraries shared by several versions
+	 * are only checked once.
+	 */
+	private void downloadLibraries(List<Job> jobs, String installDir, HashCache hashCache, ProgressTracker progress) throws IOException {
+		String libraryDir = installDir + "/libraries";
+		Map<Job, List<GameInstance.Library>> libraries = new java.util.LinkedHashMap<>();
+		List<GameInstance.Library> all = new java.util.ArrayList<>();
+		for(Job job : jobs){
+			try{
+				List<GameInstance.Library> l = GameInstance.resolveLibraries(libraryDir, job.meta);
+				libraries.put(job, l);
+				all.addAll(l);
+			}catch(IOException | JSONException e){
+				job.fail(e);
+			}
+		}
+		if(all.isEmpty())
+			return;
+		Map<GameInstance.Library, IOException> failed = GameInstance.fetchLibraries(all, hashCache, DownloadScheduler.Priority.CRITICAL, progress.range(92, 99));
+		if(failed.isEmpty())
+			return;
+		Map<Path, IOException> failedPaths = new java.util.HashMap<>();
+		for(Map.Entry<GameInstance.Library, IOException> e : failed.entrySet())
+			failedPaths.put(e.getKey().path, e.getValue());
+		for(Map.Entry<Job, List<GameInstance.Library>> e : libraries.entrySet()){
+			for(GameInstance.Library lib : e.getValue()){
+				IOException error = failedPaths.get(lib.path);
+				if(error != null){
+					e.getKey().fail(new IOException("Failed to download library " + lib.name, error));
+					break;
+				}
+			}
+		}
+	}
+
+	private static void ensureClientJar(JSONObject clientJarDesc, Path jarPath, HashCache hashCache, InstallJournal journal) throws IOException {
+		String step = "clientJar:" + jarPath;
+		if(journal.isCompleted(step, jarPath, clientJarDesc.getString("sha1"))){
+			logger.debug("Client JAR '", jarPath, "' was completed by a previous install");
+			return;
+		}
+		if(!Files.exists(jarPath) || !hashCache.sha1(jarPath).equals(clientJarDesc.getString("sha1"))){
+			logger.info("Downloading client JAR from '" + clientJarDesc.getString("url") + "'");
+			Util.downloadAndVerifyArtifact(clientJarDesc, jarPath);
+			hashCache.put(jarPath, clientJarDesc.getString("sha1"));
+		}else{
+			logger.info("Client JAR '" + jarPath + "' already exists with correct hash");
+			addToStore(clientJarDesc.getString("sha1"), jarPath);
+		}
+		journal.completed(step, jarPath, clientJarDesc.getString("sha1"));
+	}
+
+	private static List<Job> alive(List<Job> jobs) {
+		List<Job> list = new java.util.ArrayList<>();
+		for(Job job : jobs){
+			if(job.error == null)
+				list.add(job);
+		}
+		return list;
+	}
+
+	private static void addToStore(String sha1, Path file) {
+		ArtifactStore store = ArtifactStore.getDefault();
+		if(store == null)
+			return;
+		try{
+			store.add(sha1, file);
+		}catch(IOException e){
+			logger.warn("Failed to add ", file, " to artifact store: ", e);
+		}
+	}
+
+
+	/**
+	 * Returns the default directory for game files, which is the directory used by the official launcher.
+	 *
+	 * @return The default directory
+	 */
+	public static String getDefaultDirectory() {
+		String defaultDir = System.getenv("APPDATA");
+		if(defaultDir == null)
+			defaultDir = System.getProperty("user.home");
+		return defaultDir + "/.minecraft";
+	}
+
+
+	/**
+	 * A version to install with {@link VersionInstaller#installAll(List, String, ProgressTracker)}.
+	 */
+	public static class Request {
+
+		public final VersionManifest.Version version;
+		public final String name;
+		public final String instanceDir;
+
+		/**
+		 * @param version The version to install
+		 * @param name The name of the new game profile
+		 * @param instanceDir The game directory of the new profile
+		 */
+		public Request(VersionManifest.Version version, String name, String instanceDir) {
+			this.version = version;
+			this.name = name;
+			this.instanceDir = instanceDir;
+		}
+	}
+
+	public static class Result {
+
+		public final Request request;
+		/**
+		 * The new game profile, or <code>null</code> if the install failed.
+		 */
+		public final GameProfile profile;
+		/**
+		 * The error that caused the install to fail, or <code>null</code> if it succeeded.
+		 */
+		public final IOException error;
+
+		private Result(Request request, GameProfile profile, IOException error) {
+			this.request = request;
+			this.profile = profile;
+			this.error = error;
+		}
+	}
+
+	private static class Job {
+
+		private final Request request;
+		private JSONObject meta;
+		private Path jsonPath;
+		private Path jarPath;
+		private AssetSync.Index assetIndex;
+		private JSONObject clientJar;
+		private volatile IOException error;
+
+		public Job(Request request) {
+			this.request = request;
+		}
+
+
+		public void resolve(String installDir, InstallJournal journal) throws IOException {
+			Files.createDirectories(Paths.get(this.request.instanceDir));
+			VersionManifest.Version version = this.request.version;
+			Path versionPath = Paths.get(installDir, "versions", version.name);
+			Files.createDirectories(versionPath);
+			this.jsonPath = versionPath.resolve(version.name + ".json");
+			this.jarPath = versionPath.resolve(version.name + ".jar");
+			// the metadata of a resumed install is not fetched again, so that the install completes with the files it was planned with
+			String step = "versionJson:" + version.name;
+			byte[] jsonData = Files.isRegularFile(this.jsonPath) ? Files.readAllBytes(this.jsonPath) : null;
+			if(jsonData == null || !journal.isCompleted(step, this.jsonPath, Util.sha1Hex(jsonData))){
+				logger.info("Downloading metadata JSON from '" + version.metaUrl + "'");
+				jsonData = MetadataCache.fetch(version.metaUrl, version.sha1);
+				Util.writeAtomic(this.jsonPath, jsonData);
+				journal.completed(step, this.jsonPath, Util.sha1Hex(jsonData));
+			}else
+				logger.debug("Metadata JSON '", this.jsonPath, "' was completed by a previous install");
+			this.meta = JsonReader.readFields(jsonData, "assetIndex", "downloads", "libraries");
+		}
+
+		public synchronized void fail(Exception e) {
+			if(this.error != null)
+				return;
+			if(e instanceof IOException)
+				this.error = (IOException) e;
+			else
+				this.error = new IOException("Invalid metadata for version '" + this.request.version.name + "'", e);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.install;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import xyz.warp03.mc.launcher.JsonReader;
+import xyz.warp03.mc.launcher.download.MetadataCache;
+
+/**
+ * The list of installable versions.
+ */
+public class VersionManifest {
+
+	public static final String URL = "https://launchermeta.mojang.com/mc/game/version_manifest_v2.json";
+
+
+	private final String latestRelease;
+	private final String latestSnapshot;
+	private final List<Version> versions;
+
+	public VersionManifest(String latestRelease, String latestSnapshot, List<Version> versions) {
+		this.latestRelease = latestRelease;
+		this.latestSnapshot = latestSnapshot;
+		this.versions = versions;
+	}
+
+
+	/**
+	 * Returns the version with the given <b>id</b>. The ids <code>release</code> and <code>snapshot</code> refer to the latest release and snapshot, respectively.
+	 *
+	 * @param id The version id
+	 * @return The version, or <code>null</code> if there is no such version
+	 */
+	public Version find(String id) {
+		if(id.equals("release"))
+			id = this.latestRelease;
+		else if(id.equals("snapshot"))
+			id = this.latestSnapshot;
+		for(Version v : this.versions){
+			if(v.name.equals(id))
+				return v;
+		}
+		return null;
+	}
+
+	public String getLatestRelease() {
+		return this.latestRelease;
+	}
+
+	public String getLatestSnapshot() {
+		return this.latestSnapshot;
+	}
+
+	public List<Version> getVersions() {
+		return this.versions;
+	}
+
+
+	/**
+	 * Parses a version manifest with a {@link JsonReader}, reading only the fields used by this class.
+	 *
+	 * @param data The manifest JSON data
+	 * @return The parsed manifest
+	 * @throws JSONException If the data is invalid
+	 */
+	public static VersionManifest parse(byte[] data) {
+		String latestRelease = null;
+		String latestSnapshot = null;
+		List<Version> versionList = null;
+		try(JsonReader reader = new JsonReader(new ByteArrayInputStream(data))){
+			reader.beginObject();
+			while(reader.hasNext()){
+				String name = reader.nextName();
+				if(name.equals("latest")){
+					reader.beginObject();
+					while(reader.hasNext()){
+						String key = reader.nextName();
+						if(key.equals("release"))
+							latestRelease = reader.nextString();
+						else if(key.equals("snapshot"))
+							latestSnapshot = reader.nextString();
+						else
+							reader.skipValue();
+					}
+					reader.endObject();
+				}else if(name.equals("versions")){
+					versionList = new java.util.ArrayList<>();
+					reader.beginArray();
+					while(reader.hasNext())
+						versionList.add(Version.read(reader));
+					reader.endArray();
+				}else
+					reader.skipValue();
+			}
+			reader.endObject();
+			reader.endDocument();
+		}catch(IOException e){
+			throw new JSONException("Invalid version manifest: " + e.getMessage(), e);
+		}
+		if(latestRelease == null || latestSnapshot == null || versionList == null)
+			throw new JSONException("Version manifest is missing 'latest' or 'versions'");
+		return new VersionManifest(latestRelease, latestSnapshot, versionList);
+	}
+
+	/**
+	 * Requests the current version manifest.
+	 *
+	 * @return The manifest
+	 * @throws IOException If an IO error occurs
+	 * @see MetadataCache#fetch(String)
+	 */
+	public static VersionManifest fetch() throws IOException {
+		return parse(MetadataCache.fetch(URL));
+	}
+
+
+	public static class Version {
+
+		public final String name;
+		public final String type;
+		public final String metaUrl;
+		/**
+		 * The SHA-1 hash of the version JSON file, or <code>null</code> if unknown.
+		 */
+		public final String sha1;
+
+		public Version(String name, String type, String metaUrl) {
+			this(name, type, metaUrl, null);
+		}
+
+		public Version(String name, String type, String metaUrl, String sha1) {
+			this.name = name;
+			this.type = type;
+			this.metaUrl = metaUrl;
+			this.sha1 = sha1;
+		}
+
+
+		@Override
+		public String toString() {
+			return this.name + " (" + this.type.replace('_', ' ') + ")";
+		}
+
+
+		public static Version from(JSONObject json) {
+			return new Version(json.getString("id"), json.getString("type"), json.getString("url"), json.optString("sha1", null));
+		}
+
+		private static Version read(JsonReader reader) throws IOException {
+			String id = null, type = null, url = null, sha1 = null;
+			reader.beginObject();
+			while(reader.hasNext()){
+				String name = reader.nextName();
+				if(name.equals("id"))
+					id = reader.nextString();
+				else if(name.equals("type"))
+					type = reader.nextString();
+				else if(name.equals("url"))
+					url = reader.nextString();
+				else if(name.equals("sha1"))
+					sha1 = reader.nextString();
+				else
+					reader.skipValue();
+			}
+			reader.endObject();
+			if(id == null || type == null || url == null)
+				throw new IOException("Version entry " + id + " is missing 'id', 'type' or 'url'");
+			return new Version(id, type, url, sha1);
+		}
+	}
+}
@@ -6,27 +6,41 @@
  */
 package xyz.warp03.mc.launcher.launch;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.regex.Pattern;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.omegazero.common.logging.Logger;
 
+import xyz.warp03.mc.launcher.HashCache;
+import xyz.warp03.mc.launcher.JsonReader;
 import xyz.warp03.mc.launcher.Util;
+import xyz.warp03.mc.launcher.download.DownloadScheduler;
+import xyz.warp03.mc.launcher.download.Retry;
 
 public class GameInstance {
 
 	private static final Logger logger = Logger.create();
 
+	private static final int LIBRARY_THREADS = 8;
+
 	public static final String OS_NAME_SHORT;
 	public static final String OS_VERSION;
 	public static final String OS_ARCH;
@@ -80,13 +94,100 @@ public class GameInstance {
 	}
 
 
+	/**
+	 * Writes the resolved properties of this instance for a {@link LaunchPlan}.
+	 *
+	 * @param out The output
+	 * @throws IOException If an IO error occurs
+	 * @see #read(DataInput)
+	 */
+	void write(DataOutput out) throws IOException {
+		writeStrings(out, this.minecraftArguments);
+		writeStrings(out, this.jvmArguments);
+		writeString(out, this.mainClass);
+		writeString(out, this.assetsName);
+		writeString(out, this.releaseType);
+		writeStrings(out, this.libraries.toArray(new String[this.libraries.size()]));
+		writeStrings(out, this.nativeLibraries.toArray(new String[this.nativeLibraries.size()]));
+	}
+
+	/**
+	 * Reads an instance written by {@link #write(DataOutput)}.
+	 *
+	 * @param in The input
+	 * @return The instance
+	 * @throws IOException If an IO error occurs
+	 */
+	static GameInstance read(DataInput in) throws IOException {
+		GameInstance gi = new GameInstance();
+		gi.minecraftArguments = readStrings(in);
+		gi.jvmArguments = readStrings(in);
+		gi.mainClass = readString(in);
+		gi.assetsName = readString(in);
+		gi.releaseType = readString(in);
+		gi.libraries.addAll(Arrays.asList(readStrings(in)));
+		gi.nativeLibraries.addAll(Arrays.asList(readStrings(in)));
+		return gi;
+	}
+
+	private static void writeString(DataOutput out, String str) throws IOException {
+		out.writeBoolean(str != null);
+		if(str != null)
+			out.writeUTF(str);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeStrings(DataOutput out, String[] strs) throws IOException {
+		out.writeInt(strs != null ? strs.length : -1);
+		if(strs != null){
+			for(String str : strs)
+				out.writeUTF(str);
+		}
+	}
+
+	private static String[] readStrings(DataInput in) throws IOException {
+		int count = in.readInt();
+		if(count < 0)
+			return null;
+		String[] strs = new String[count];
+		for(int i = 0; i < count; i++)
+			strs[i] = in.readUTF();
+		return strs;
+	}
+
+
+	/**
+	 * Loads the game metadata from the given version JSON <b>files</b> and ensures that all required libraries are present, downloading missing ones.
+	 * <p>
+	 * The result is saved as a {@link LaunchPlan}. If a valid plan for the same files and platform exists, it is used instead, without parsing the files or checking the
+	 * libraries.
+	 *
+	 * @param libraryDir The library base directory
+	 * @param files The version JSON files
+	 * @param progressCallback Called with the progress (between 0 and 1) and a status message
+	 * @return The game instance
+	 * @throws IOException If an IO error occurs, the metadata is invalid or a library could not be downloaded
+	 */
 	public static GameInstance loadFromJSON(String libraryDir, String[] files, BiConsumer<Float, String> progressCallback) throws IOException {
+		HashCache hashCache = HashCache.forDirectory(Paths.get(libraryDir).toAbsolutePath().getParent());
+		progressCallback.accept(0f, "Checking launch plan");
+		LaunchPlan launchPlan = LaunchPlan.forInputs(libraryDir, files, Platform.current(), hashCache);
+		GameInstance cached = launchPlan.load();
+		if(cached != null){
+			hashCache.save();
+			progressCallback.accept(1f, "Loaded launch plan");
+			return cached;
+		}
+
 		GameInstance gi = new GameInstance();
 		List<JSONObject> libraries = new java.util.ArrayList<JSONObject>();
 		for(int fi = 0; fi < files.length; fi++){
 			String f = files[fi];
 			progressCallback.accept((float) fi / files.length * .1f, "Loading metadata file " + f);
-			JSONObject json = new JSONObject(new String(Files.readAllBytes(Paths.get(f))));
+			JSONObject json = JsonReader.readFields(Paths.get(f), "minecraftArguments", "arguments", "mainClass", "assets", "type", "libraries");
 
 			if(json.has("minecraftArguments")){
 				gi.minecraftArguments = json.getString("minecraftArguments").split(" ");
@@ -110,70 +211,224 @@ public class GameInstance {
 				libraries.add((JSONObject) jo);
 			}
 		}
-		int lcount = 0;
+
+		// planning only applies rules and classifiers, so the classpath order is known before anything is downloaded
+		progressCallback.accept(.1f, "Resolving libraries");
+		List<Library> plan = new java.util.ArrayList<>();
 		for(JSONObject jlib : libraries){
-			String libName = jlib.getString("name");
-			float progress = (float) lcount / libraries.size() * 0.9f + .1f;
+			Library lib = resolveLibrary(jlib, libraryDir);
+			if(lib != null)
+				plan.add(lib);
+		}
 
-			if(jlib.has("rules")){
-				JSONArray rules = jlib.getJSONArray("rules");
-				if(!checkRules(rules))
-					continue;
-			}
+		Map<Library, IOException> failed;
+		try{
+			failed = fetchLibraries(plan, hashCache, DownloadScheduler.Priority.FOREGROUND, (p, msg) -> {
+				progressCallback.accept(.1f + p * .9f, msg);
+			});
+		}finally{
+			hashCache.save();
+		}
+		if(!failed.isEmpty()){
+			IOException error = new IOException("Failed to download libraries");
+			for(IOException e : failed.values())
+				error.addSuppressed(e);
+			throw error;
+		}
 
-			progressCallback.accept(progress, "Loading library " + libName);
-
-			boolean nativelibs = jlib.has("natives");
-
-			StringBuilder libPath = new StringBuilder();
-			String[] libName0 = libName.split(":");
-			libPath.append(libName0[0].replace(".", "/"));
-			libPath.append("/" + libName0[1] + "/" + libName0[2]);
-			libPath.append("/" + libName0[1] + "-" + libName0[2]);
-			String libclassifier = null;
-			if(nativelibs){
-				if(!jlib.getJSONObject("natives").keySet().contains(OS_NAME_SHORT))
-					continue;
-				libclassifier = jlib.getJSONObject("natives").getString(OS_NAME_SHORT).replace("${arch}", Util.is64Bit() ? "64" : "32");
-				libPath.append("-" + libclassifier);
-			}else if(libName0.length > 3 && libName0[3].startsWith("natives-")){
-				nativelibs = true;
-				libPath.append("-" + libName0[3]);
+		for(Library lib : plan){
+			if(lib.nativeLibrary)
+				gi.nativeLibraries.add(lib.path.toString());
+			else
+				gi.libraries.add(lib.path.toString());
+		}
+		launchPlan.save(gi);
+		progressCallback.accept(1f, "Done loading game metadata");
+		return gi;
+	}
+
+	/**
+	 * Ensures that all given <b>libraries</b> exist with the correct hash. Missing and corrupt libraries are downloaded in parallel; libraries that fail are retried once
+	 * more after all others are done.
+	 *
+	 * @param libraries The libraries, for example from {@link #resolveLibraries(String, JSONObject)}
+	 * @param hashCache The hash cache of the install directory
+	 * @param priority The priority of the downloads in the {@link DownloadScheduler}
+	 * @param progressCallback Called with the progress (between 0 and 1) and a status message
+	 * @return The libraries that could not be downloaded and the error for each, which is empty if all libraries are present
+	 * @throws IOException If the calling thread is interrupted
+	 */
+	public static Map<Library, IOException> fetchLibraries(List<Library> libraries, HashCache hashCache, DownloadScheduler.Priority priority,
+			BiConsumer<Float, String> progressCallback) throws IOException {
+		Map<Path, Library> unique = new java.util.LinkedHashMap<>();
+		for(Library lib : libraries)
+			unique.putIfAbsent(lib.path, lib);
+		Map<Library, IOException> failed = new java.util.concurrent.ConcurrentHashMap<>();
+		if(unique.isEmpty())
+			return failed;
+		int total = unique.size();
+		AtomicInteger done = new AtomicInteger();
+		AtomicInteger downloaded = new AtomicInteger();
+		AtomicInteger threadNum = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(total, LIBRARY_THREADS), (r) -> {
+			Thread t = new Thread(r, "GameInstance-library-" + threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try{
+			List<Future<?>> futures = new java.util.ArrayList<>(total);
+			for(Library lib : unique.values()){
+				futures.add(executor.submit(() -> {
+					try{
+						if(fetchLibrary(lib, hashCache, priority))
+							downloaded.incrementAndGet();
+					}catch(IOException e){
+						if(Retry.isInterruption(e))
+							throw e;
+						logger.warn("Failed to download library ", lib.name, ", retrying later: ", e);
+						failed.put(lib, e);
+					}
+					int n = done.incrementAndGet();
+					synchronized(progressCallback){
+						progressCallback.accept((float) n / total, "Loading libraries (" + n + "/" + total + ")");
+					}
+					return null;
+				}));
 			}
-			libPath.append(".jar");
-
-			Path libraryPath = Paths.get(libraryDir, libPath.toString());
-			if(!Files.exists(libraryPath)){
-				JSONObject artifactDl = jlib.getJSONObject("downloads");
-				JSONObject artifactDesc;
-				if(artifactDl.has("classifiers") && libclassifier != null){
-					artifactDesc = artifactDl.getJSONObject("classifiers").getJSONObject(libclassifier);
-				}else if(artifactDl.has("artifact")){
-					artifactDesc = artifactDl.getJSONObject("artifact");
-				}else
-					throw new UnsupportedOperationException("Cannot determine download location for library: " + libName);
-				progressCallback.accept(progress, "Downloading library " + libName + " from '" + artifactDesc.getString("url") + "'");
-				byte[] data = Util.downloadAndVerifyArtifact(artifactDesc);
-				Files.createDirectories(libraryPath.getParent());
-				Files.write(libraryPath, data);
+			for(Future<?> f : futures)
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading libraries");
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while downloading libraries", e.getCause());
+		}finally{
+			executor.shutdownNow();
+		}
+
+		// give libraries that failed another chance once everything else is done, transient errors may have cleared up by now
+		for(Library lib : new java.util.ArrayList<>(failed.keySet())){
+			if(lib.artifact == null)
+				continue;
+			progressCallback.accept(1f, "Retrying download of library " + lib.name);
+			try{
+				fetchLibrary(lib, hashCache, priority);
+				failed.remove(lib);
+				downloaded.incrementAndGet();
+			}catch(IOException e){
+				if(Retry.isInterruption(e))
+					throw e;
+				logger.error("Failed to download library ", lib.name, ": ", e);
+				failed.put(lib, e);
 			}
+		}
+		logger.debug("Checked ", total, " libraries, downloaded ", downloaded.get(), ", ", failed.size(), " failed");
+		return failed;
+	}
 
-			if(nativelibs)
-				gi.nativeLibraries.add(libraryPath.toString());
-			else
-				gi.libraries.add(libraryPath.toString());
+	/**
+	 * Downloads the given library if it is missing or corrupt.
+	 *
+	 * @return <code>true</code> if the library was downloaded
+	 */
+	private static boolean fetchLibrary(Library lib, HashCache hashCache, DownloadScheduler.Priority priority) throws IOException {
+		boolean exists = Files.exists(lib.path);
+		if(exists && lib.artifact != null && !hashCache.sha1(lib.path).equals(lib.artifact.getString("sha1"))){
+			logger.warn("Library ", lib.path, " is corrupt, downloading it again");
+			exists = false;
+		}
+		if(exists)
+			return false;
+		if(lib.artifact == null)
+			throw new IOException("Cannot determine download location for library: " + lib.name);
+		logger.debug("Downloading library ", lib.name, " from '", lib.artifact.getString("url"), "'");
+		Util.downloadAndVerifyArtifact(lib.artifact, lib.path, priority);
+		hashCache.put(lib.path, lib.artifact.getString("sha1"));
+		return true;
+	}
 
-			lcount++;
+	/**
+	 * Resolves all libraries required on this platform from the given version JSON <b>files</b>, without checking whether they exist or downloading them.
+	 *
+	 * @param libraryDir The library base directory
+	 * @param files The version JSON files
+	 * @return The libraries
+	 * @throws IOException If an IO error occurs
+	 */
+	public static List<Library> resolveLibraries(String libraryDir, String[] files) throws IOException {
+		List<Library> libraries = new java.util.ArrayList<>();
+		for(String f : files){
+			JSONObject json = JsonReader.readFields(Paths.get(f), "libraries");
+			libraries.addAll(resolveLibraries(libraryDir, json));
 		}
-		progressCallback.accept(1f, "Done loading game metadata");
-		return gi;
+		return libraries;
+	}
+
+	/**
+	 * Resolves all libraries required on this platform from the given version <b>json</b>.
+	 *
+	 * @param libraryDir The library base directory
+	 * @param json The version JSON
+	 * @return The libraries
+	 * @throws IOException If the version JSON is invalid
+	 * @see #resolveLibraries(String, String[])
+	 */
+	public static List<Library> resolveLibraries(String libraryDir, JSONObject json) throws IOException {
+		List<Library> libraries = new java.util.ArrayList<>();
+		for(Object jo : json.getJSONArray("libraries")){
+			if(!(jo instanceof JSONObject))
+				throw new IOException("libraries array contains non-objects");
+			Library lib = resolveLibrary((JSONObject) jo, libraryDir);
+			if(lib != null)
+				libraries.add(lib);
+		}
+		return libraries;
+	}
+
+	private static Library resolveLibrary(JSONObject jlib, String libraryDir) {
+		String libName = jlib.getString("name");
+
+		if(jlib.has("rules") && !Rules.compile(jlib.getJSONArray("rules")).matches(Platform.current()))
+			return null;
+
+		boolean nativelibs = jlib.has("natives");
+
+		StringBuilder libPath = new StringBuilder();
+		String[] libName0 = libName.split(":");
+		libPath.append(libName0[0].replace(".", "/"));
+		libPath.append("/" + libName0[1] + "/" + libName0[2]);
+		libPath.append("/" + libName0[1] + "-" + libName0[2]);
+		String libclassifier = null;
+		if(nativelibs){
+			if(!jlib.getJSONObject("natives").keySet().contains(OS_NAME_SHORT))
+				return null;
+			libclassifier = jlib.getJSONObject("natives").getString(OS_NAME_SHORT).replace("${arch}", Util.is64Bit() ? "64" : "32");
+			libPath.append("-" + libclassifier);
+		}else if(libName0.length > 3 && libName0[3].startsWith("natives-")){
+			nativelibs = true;
+			libPath.append("-" + libName0[3]);
+		}
+		libPath.append(".jar");
+
+		JSONObject artifactDesc = null;
+		if(jlib.has("downloads")){
+			JSONObject artifactDl = jlib.getJSONObject("downloads");
+			if(artifactDl.has("classifiers") && libclassifier != null){
+				artifactDesc = artifactDl.getJSONObject("classifiers").getJSONObject(libclassifier);
+			}else if(artifactDl.has("artifact")){
+				artifactDesc = artifactDl.getJSONObject("artifact");
+			}
+		}
+		return new Library(libName, Paths.get(libraryDir, libPath.toString()), artifactDesc, nativelibs);
 	}
 
 	private static String[] filterArgsList(JSONArray list) {
 		List<String> t = new java.util.LinkedList<>();
 		for(Object o : list){
 			if(o instanceof JSONObject){
-				if(checkRules(((JSONObject) o).getJSONArray("rules"))){
+				if(Rules.compile(((JSONObject) o).getJSONArray("rules")).matches(Platform.current())){
 					Object v = ((JSONObject) o).get("value");
 					if(v instanceof String)
 						t.add((String) v);
@@ -191,29 +446,6 @@ public class GameInstance {
 		return t.toArray(new String[t.size()]);
 	}
 
-	private static boolean checkRules(JSONArray rules) {
-		for(int i = 0; i < rules.length(); i++){
-			JSONObject rule = rules.getJSONObject(i);
-			String action = rule.getString("action");
-			for(String ruleType : rule.keySet()){
-				if("action".equals(ruleType))
-					continue;
-				if(ruleType.equals("os")){
-					JSONObject osr = rule.getJSONObject("os");
-					boolean match = (!osr.has("name") || OS_NAME_SHORT.equals(osr.getString("name")))
-							&& (!osr.has("version") || Pattern.compile(osr.getString("version")).matcher(OS_VERSION).find())
-							&& (!osr.has("arch") || OS_ARCH.equals(osr.getString("arch")));
-					if((action.equals("allow") && !match) || (action.equals("disallow") && match))
-						return false;
-				}else{
-					logger.warn("Not matching rule because of unknown rule type '" + ruleType + "'");
-					return false;
-				}
-			}
-		}
-		return true;
-	}
-
 
 	public static void extractNativesJar(String jarFile, Path dest) throws IOException {
 		Files.createDirectories(dest);
@@ -232,6 +464,22 @@ public class GameInstance {
 	}
 
 
+	public static class Library {
+
+		public final String name;
+		public final Path path;
+		public final JSONObject artifact;
+		public final boolean nativeLibrary;
+
+		public Library(String name, Path path, JSONObject artifact, boolean nativeLibrary) {
+			this.name = name;
+			this.path = path;
+			this.artifact = artifact;
+			this.nativeLibrary = nativeLibrary;
+		}
+	}
+
+
 	static{
 		String os = System.getProperty("os.name").toLowerCase();
 		if(os.contains("windows"))
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.launch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.omegazero.common.logging.Logger;
+
+import xyz.warp03.mc.launcher.HashCache;
+import xyz.warp03.mc.launcher.Util;
+
+/**
+ * A saved {@link GameInstance}, so that repeated launches of the same profile neither parse the version JSON files nor check every library.
+ * <p>
+ * Plans are stored in the directory {@value #DIRECTORY_NAME} next to the library directory (normally in the install directory), one binary file per combination of
+ * library directory and version JSON files. A plan records the SHA-1 hash of each version JSON file and the {@link Platform} it was resolved for, and is only used if
+ * both are unchanged. Checking this is cheap, since the hashes of unchanged files come from the {@link HashCache}. When a plan is not used, the reason is logged.
+ * <p>
+ * A plan also records the size of every library and native library it lists, and is not used if any of them is missing or has a different size, so that a removed
+ * library is downloaded again like on the first launch. Verifying the installation removes the plan if any file was missing or corrupt, which also covers libraries that
+ * were changed without changing their size.
+ */
+public final class LaunchPlan {
+
+	private static final Logger logger = Logger.create();
+
+	public static final String DIRECTORY_NAME = "launchplans";
+
+	private static final int MAGIC = 0x4d434c50;
+	private static final int FORMAT_VERSION = 2;
+
+
+	private final Path file;
+	private final String libraryDir;
+	private final String[] files;
+	private final byte[][] sha1s;
+	private final Platform platform;
+
+	private LaunchPlan(Path file, String libraryDir, String[] files, byte[][] sha1s, Platform platform) {
+		this.file = file;
+		this.libraryDir = libraryDir;
+		this.files = files;
+		this.sha1s = sha1s;
+		this.platform = platform;
+	}
+
+
+	/**
+	 * Loads the saved plan, if it is valid for the inputs of this plan.
+	 *
+	 * @return The saved game instance, or <code>null</code> if there is no valid plan
+	 */
+	public GameInstance load() {
+		if(!Files.isRegularFile(this.file)){
+			logger.debug("No launch plan for ", Arrays.toString(this.files));
+			return null;
+		}
+		String reason;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)))){
+			reason = this.checkHeader(in);
+			if(reason == null){
+				GameInstance gi = GameInstance.read(in);
+				reason = checkLibraries(in, gi.getLibraries());
+				if(reason == null)
+					reason = checkLibraries(in, gi.getNativeLibraries());
+				if(reason == null){
+					logger.debug("Using launch plan ", this.file);
+					return gi;
+				}
+			}
+		}catch(IOException e){
+			reason = "plan is unreadable: " + e;
+		}
+		logger.info("Launch plan for ", Arrays.toString(this.files), " is invalid, resolving again: ", reason);
+		return null;
+	}
+
+	/**
+	 * Checks the header of a saved plan against the inputs of this plan.
+	 *
+	 * @return The reason why the saved plan is invalid, or <code>null</code> if it is valid
+	 */
+	private String checkHeader(DataInputStream in) throws IOException {
+		if(in.readInt() != MAGIC)
+			return "not a launch plan";
+		int version = in.readInt();
+		if(version != FORMAT_VERSION)
+			return "format version changed from " + version + " to " + FORMAT_VERSION;
+		String platform = in.readUTF();
+		if(!platform.equals(this.platform.getFingerprint()))
+			return "platform changed from '" + platform + "' to '" + this.platform.getFingerprint() + "'";
+		String libraryDir = in.readUTF();
+		if(!libraryDir.equals(this.libraryDir))
+			return "library directory changed from " + libraryDir + " to " + this.libraryDir;
+		int count = in.readInt();
+		if(count != this.files.length)
+			return "number of version JSON files changed from " + count + " to " + this.files.length;
+		byte[] sha1 = new byte[20];
+		for(int i = 0; i < count; i++){
+			String f = in.readUTF();
+			in.readFully(sha1);
+			if(!f.equals(this.files[i]))
+				return "version JSON file " + f + " was replaced by " + this.files[i];
+			if(!Arrays.equals(sha1, this.sha1s[i]))
+				return "version JSON file " + f + " changed";
+		}
+		return null;
+	}
+
+	/**
+	 * Checks that each of the given <b>libraries</b> exists with the size recorded in the plan.
+	 *
+	 * @return The reason why the saved plan is invalid, or <code>null</code> if it is valid
+	 */
+	private static String checkLibraries(DataInputStream in, List<String> libraries) throws IOException {
+		int count = in.readInt();
+		if(count != libraries.size())
+			return "library sizes do not match the library list";
+		for(String lib : libraries){
+			long size = in.readLong();
+			Path path = Paths.get(lib);
+			if(!Files.isRegularFile(path))
+				return "library " + lib + " is missing";
+			if(Files.size(path) != size)
+				return "library " + lib + " changed size from " + size + " to " + Files.size(path);
+		}
+		return null;
+	}
+
+	private static void writeLibrarySizes(DataOutputStream out, List<String> libraries) throws IOException {
+		out.writeInt(libraries.size());
+		for(String lib : libraries)
+			out.writeLong(Files.size(Paths.get(lib)));
+	}
+
+	/**
+	 * Saves the given game instance as the plan for the inputs of this plan. Errors are logged and otherwise ignored, since the plan is only an optimization.
+	 *
+	 * @param gi The game instance
+	 */
+	public void save(GameInstance gi) {
+		try{
+			Util.writeAtomic(this.file, (stream) -> {
+				DataOutputStream out = new DataOutputStream(stream);
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(this.platform.getFingerprint());
+				out.writeUTF(this.libraryDir);
+				out.writeInt(this.files.length);
+				for(int i = 0; i < this.files.length; i++){
+					out.writeUTF(this.files[i]);
+					out.write(this.sha1s[i]);
+				}
+				gi.write(out);
+				writeLibrarySizes(out, gi.getLibraries());
+				writeLibrarySizes(out, gi.getNativeLibraries());
+				out.flush();
+			});
+			logger.debug("Saved launch plan ", this.file);
+		}catch(IOException e){
+			logger.warn("Failed to save launch plan ", this.file, ": ", e);
+		}
+	}
+
+
+	/**
+	 * Creates a plan for the given inputs, hashing the version JSON <b>files</b>.
+	 *
+	 * @param libraryDir The library base directory
+	 * @param files The version JSON files
+	 * @param platform The platform
+	 * @param hashCache The hash cache of the install directory
+	 * @return The plan
+	 * @throws IOException If an IO error occurs while hashing the files
+	 */
+	public static LaunchPlan forInputs(String libraryDir, String[] files, Platform platform, HashCache hashCache) throws IOException {
+		String[] absFiles = new String[files.length];
+		byte[][] sha1s = new byte[files.length][];
+		for(int i = 0; i < files.length; i++){
+			Path p = Paths.get(files[i]).toAbsolutePath().normalize();
+			absFiles[i] = p.toString();
+			sha1s[i] = Util.hexToByteArray(hashCache.sha1(p));
+		}
+		String absLibraryDir = Paths.get(libraryDir).toAbsolutePath().normalize().toString();
+		return new LaunchPlan(getPlanFile(absLibraryDir, absFiles), absLibraryDir, absFiles, sha1s, platform);
+	}
+
+	/**
+	 * Deletes the plan for the given inputs, if there is one.
+	 *
+	 * @param libraryDir The library base directory
+	 * @param files The version JSON files
+	 * @param reason The reason, which is logged
+	 */
+	public static void invalidate(String libraryDir, String[] files, String reason) {
+		String[] absFiles = new String[files.length];
+		for(int i = 0; i < files.length; i++)
+			absFiles[i] = Paths.get(files[i]).toAbsolutePath().normalize().toString();
+		Path file = getPlanFile(Paths.get(libraryDir).toAbsolutePath().normalize().toString(), absFiles);
+		try{
+			if(Files.deleteIfExists(file))
+				logger.info("Removed launch plan for ", Arrays.toString(absFiles), ": ", reason);
+		}catch(IOException e){
+			logger.warn("Failed to remove launch plan ", file, ": ", e);
+		}
+	}
+
+	private static Path getPlanFile(String libraryDir, String[] files) {
+		StringBuilder key = new StringBuilder(libraryDir);
+		for(String f : files)
+			key.append('\n').append(f);
+		String name = Util.sha1Hex(key.toString().getBytes(StandardCharsets.UTF_8));
+		// the library directory is normally <installDir>/libraries, but may also be a file system root, which has no parent
+		Path installDir = Paths.get(libraryDir).getParent();
+		if(installDir == null)
+			installDir = Paths.get(libraryDir);
+		return installDir.resolve(DIRECTORY_NAME).resolve(name + ".bin");
+	}
+}
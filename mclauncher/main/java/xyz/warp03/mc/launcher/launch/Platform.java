@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.launch;
+
+import java.util.Set;
+
+/**
+ * The properties of the platform that version JSON {@linkplain Rules rules} are evaluated against: the operating system name, version and architecture, and the enabled
+ * feature flags. Feature flags that are not enabled are <code>false</code>.
+ * <p>
+ * Two platforms with the same properties are equal, so a platform can be used as a key for results that depend only on these properties.
+ */
+public final class Platform {
+
+	private static final Platform current = new Platform(GameInstance.OS_NAME_SHORT, GameInstance.OS_VERSION, GameInstance.OS_ARCH, java.util.Collections.emptySet());
+
+
+	private final String osName;
+	private final String osVersion;
+	private final String osArch;
+	private final Set<String> features;
+	private final int hashCode;
+
+	public Platform(String osName, String osVersion, String osArch, Set<String> features) {
+		this.osName = osName;
+		this.osVersion = osVersion;
+		this.osArch = osArch;
+		this.features = java.util.Collections.unmodifiableSet(new java.util.TreeSet<>(features));
+		this.hashCode = java.util.Objects.hash(osName, osVersion, osArch, this.features);
+	}
+
+
+	/**
+	 * Returns a platform with the same operating system properties as this one, with the given <b>features</b> enabled.
+	 *
+	 * @param features The enabled feature flags
+	 * @return The platform
+	 */
+	public Platform withFeatures(Set<String> features) {
+		return new Platform(this.osName, this.osVersion, this.osArch, features);
+	}
+
+	public String getOsName() {
+		return this.osName;
+	}
+
+	public String getOsVersion() {
+		return this.osVersion;
+	}
+
+	public String getOsArch() {
+		return this.osArch;
+	}
+
+	public boolean hasFeature(String feature) {
+		return this.features.contains(feature);
+	}
+
+	/**
+	 * Returns a string uniquely identifying the properties of this platform.
+	 *
+	 * @return The fingerprint
+	 */
+	public String getFingerprint() {
+		return this.osName + ";" + this.osVersion + ";" + this.osArch + ";" + String.join(",", this.features);
+	}
+
+
+	@Override
+	public boolean equals(Object o) {
+		if(this == o)
+			return true;
+		if(!(o instanceof Platform))
+			return false;
+		Platform p = (Platform) o;
+		return this.osName.equals(p.osName) && this.osVersion.equals(p.osVersion) && this.osArch.equals(p.osArch) && this.features.equals(p.features);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return this.getFingerprint();
+	}
+
+
+	/**
+	 * Returns the platform this launcher is running on, with no feature flags enabled.
+	 *
+	 * @return The current platform
+	 */
+	public static Platform current() {
+		return current;
+	}
+}
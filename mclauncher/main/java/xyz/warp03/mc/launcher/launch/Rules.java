@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.launch;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.omegazero.common.logging.Logger;
+
+/**
+ * A compiled <code>rules</code> array of a library or argument in a version JSON.
+ * <p>
+ * A rules array is compiled into immutable conditions, which are compared to the already compiled rules, so that identical arrays, which are common since many libraries
+ * share the same rules, share a single instance. Reading the conditions is cheap, and only the first instance of each distinct set of rules compiles the patterns of its
+ * <code>os.version</code> conditions. The result of each instance is memoized per {@link Platform}.
+ * <p>
+ * Every condition of every rule must agree with the action of its rule: a condition of an <code>allow</code> rule must match, and a condition of a <code>disallow</code>
+ * rule must not match. Supported conditions are <code>os</code> (with <code>name</code>, <code>version</code> and <code>arch</code>) and <code>features</code>. Rules
+ * with an unknown condition type never match; each unknown type is reported once.
+ */
+public final class Rules {
+
+	private static final Logger logger = Logger.create();
+
+	/**
+	 * Rules that match every platform, used when there is no <code>rules</code> array.
+	 */
+	public static final Rules ALWAYS = new Rules(new Rule[0]);
+	private static final Rules NEVER = new Rules(null);
+
+	private static final Map<Rules, Rules> compiled = new java.util.concurrent.ConcurrentHashMap<>();
+	private static final Set<String> reportedUnknown = java.util.concurrent.ConcurrentHashMap.newKeySet();
+
+
+	private final Rule[] rules;
+	private final Map<Platform, Boolean> results = new java.util.concurrent.ConcurrentHashMap<>();
+
+	private Rules(Rule[] rules) {
+		this.rules = rules;
+	}
+
+
+	/**
+	 * Evaluates these rules for the given <b>platform</b>.
+	 *
+	 * @param platform The platform
+	 * @return <code>true</code> if the library or argument these rules belong to is used on the platform
+	 */
+	public boolean matches(Platform platform) {
+		if(this.rules == null)
+			return false;
+		if(this.rules.length == 0)
+			return true;
+		Boolean result = this.results.get(platform);
+		if(result == null){
+			result = this.evaluate(platform);
+			this.results.put(platform, result);
+		}
+		return result;
+	}
+
+	private boolean evaluate(Platform platform) {
+		for(Rule rule : this.rules){
+			for(Condition c : rule.conditions){
+				if(c.test(platform) != rule.allow)
+					return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Compiles the given <b>rules</b> array, or returns the already compiled instance of an identical array.
+	 *
+	 * @param rules The rules array, may be <code>null</code>
+	 * @return The compiled rules, {@link #ALWAYS} if <b>rules</b> is <code>null</code>
+	 * @throws org.json.JSONException If the rules array is invalid
+	 * @throws java.util.regex.PatternSyntaxException If an <code>os.version</code> pattern is invalid
+	 */
+	public static Rules compile(JSONArray rules) {
+		if(rules == null || rules.length() == 0)
+			return ALWAYS;
+		Rules r = compile0(rules);
+		if(r == NEVER)
+			return r;
+		Rules prev = compiled.get(r);
+		if(prev == null){
+			for(Rule rule : r.rules){
+				for(Condition c : rule.conditions)
+					c.prepare();
+			}
+			prev = compiled.putIfAbsent(r, r);
+		}
+		return prev != null ? prev : r;
+	}
+
+	private static Rules compile0(JSONArray jrules) {
+		java.util.List<Rule> rules = new java.util.ArrayList<>(jrules.length());
+		for(int i = 0; i < jrules.length(); i++){
+			JSONObject jrule = jrules.getJSONObject(i);
+			String action = jrule.getString("action");
+			java.util.List<Condition> conditions = new java.util.ArrayList<>();
+			for(String type : jrule.keySet()){
+				if(type.equals("action"))
+					continue;
+				if(type.equals("os")){
+					conditions.add(OsCondition.from(jrule.getJSONObject("os")));
+				}else if(type.equals("features")){
+					conditions.add(FeaturesCondition.from(jrule.getJSONObject("features")));
+				}else{
+					if(reportedUnknown.add(type))
+						logger.warn("Rules with unknown rule type '", type, "' never match");
+					return NEVER;
+				}
+			}
+			// rules with other actions have never had any effect
+			if(action.equals("allow") || action.equals("disallow"))
+				rules.add(new Rule(action.equals("allow"), conditions.toArray(new Condition[conditions.size()])));
+		}
+		return new Rules(rules.toArray(new Rule[rules.size()]));
+	}
+
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Rules && Arrays.equals(this.rules, ((Rules) o).rules);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.rules);
+	}
+
+
+	private static class Rule {
+
+		public final boolean allow;
+		public final Condition[] conditions;
+
+		public Rule(boolean allow, Condition[] conditions) {
+			this.allow = allow;
+			this.conditions = conditions;
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Rule && this.allow == ((Rule) o).allow && Arrays.equals(this.conditions, ((Rule) o).conditions);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(this.conditions) * 31 + Boolean.hashCode(this.allow);
+		}
+	}
+
+	@FunctionalInterface
+	private static interface Condition {
+
+		/**
+		 * Prepares this condition for {@link #test(Platform)}. Called once, before the first test, on the compiled instance that is kept.
+		 */
+		public default void prepare() {
+		}
+
+		public boolean test(Platform platform);
+	}
+
+	private static class OsCondition implements Condition {
+
+		private final String name;
+		private final String versionRegex;
+		private final String arch;
+		private Pattern version;
+
+		public OsCondition(String name, String versionRegex, String arch) {
+			this.name = name;
+			this.versionRegex = versionRegex;
+			this.arch = arch;
+		}
+
+
+		@Override
+		public void prepare() {
+			if(this.versionRegex != null)
+				this.version = Pattern.compile(this.versionRegex);
+		}
+
+		@Override
+		public boolean test(Platform platform) {
+			return (this.name == null || this.name.equals(platform.getOsName())) && (this.version == null || this.version.matcher(platform.getOsVersion()).find())
+					&& (this.arch == null || this.arch.equals(platform.getOsArch()));
+		}
+
+
+		public static OsCondition from(JSONObject json) {
+			return new OsCondition(json.has("name") ? json.getString("name") : null, json.has("version") ? json.getString("version") : null,
+					json.has("arch") ? json.getString("arch") : null);
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof OsCondition))
+				return false;
+			OsCondition c = (OsCondition) o;
+			return Objects.equals(this.name, c.name) && Objects.equals(this.versionRegex, c.versionRegex) && Objects.equals(this.arch, c.arch);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.name, this.versionRegex, this.arch);
+		}
+	}
+
+	private static class FeaturesCondition implements Condition {
+
+		private final Map<String, Boolean> features;
+
+		public FeaturesCondition(Map<String, Boolean> features) {
+			this.features = features;
+		}
+
+
+		@Override
+		public boolean test(Platform platform) {
+			for(Map.Entry<String, Boolean> e : this.features.entrySet()){
+				if(platform.hasFeature(e.getKey()) != e.getValue())
+					return false;
+			}
+			return true;
+		}
+
+
+		public static FeaturesCondition from(JSONObject json) {
+			Map<String, Boolean> features = new java.util.HashMap<>();
+			for(String key : json.keySet())
+				features.put(key, json.getBoolean(key));
+			return new FeaturesCondition(java.util.Collections.unmodifiableMap(features));
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof FeaturesCondition && this.features.equals(((FeaturesCondition) o).features);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.features.hashCode();
+		}
+	}
+}
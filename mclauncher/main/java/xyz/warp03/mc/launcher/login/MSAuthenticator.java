@@ -15,7 +15,6 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
@@ -40,6 +39,7 @@ import javafx.scene.web.WebView;
 
 import xyz.warp03.mc.launcher.AuthenticationException;
 import xyz.warp03.mc.launcher.Util;
+import xyz.warp03.mc.launcher.download.SharedHttpClient;
 import xyz.warp03.mc.launcher.session.MSPlayerSession;
 import xyz.warp03.mc.launcher.session.PlayerSession;
 
@@ -333,9 +333,9 @@ public class MSAuthenticator implements LoginManager {
 	 */
 	public static JSONObject getMCProfile(String accessToken) throws IOException {
 		try{
-			HttpRequest request = HttpRequest.newBuilder(new URI("https://api.minecraftservices.com/minecraft/profile")).header("Authorization", "Bearer " + accessToken).GET()
-					.build();
-			HttpResponse<String> res = HttpClient.newBuilder().build().send(request, HttpResponse.BodyHandlers.ofString());
+			HttpRequest request = SharedHttpClient.newRequest(new URI("https://api.minecraftservices.com/minecraft/profile")).header("Authorization", "Bearer " + accessToken)
+					.GET().build();
+			HttpResponse<String> res = SharedHttpClient.send(request, HttpResponse.BodyHandlers.ofString());
 			if(res.statusCode() == 401)
 				throw new AuthenticationException("Invalid access token");
 			return new JSONObject(res.body());
@@ -13,7 +13,7 @@ import javax.swing.JCheckBox;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 
-import xyz.warp03.mc.launcher.Util;
+import xyz.warp03.mc.launcher.UIUtil;
 import xyz.warp03.mc.launcher.session.OfflinePlayerSession;
 import xyz.warp03.mc.launcher.session.PlayerSession;
 
@@ -40,11 +40,11 @@ public class OfflineAuthenticator implements LoginManager {
 		JTextField playerName = new JTextField();
 		JTextField accessToken = new JTextField();
 		JCheckBox dontShowAgain = new JCheckBox("Don't show this again");
-		Util.addLabel(ui, "Player UUID", centerX - 150, centerY - 100, 300);
+		UIUtil.addLabel(ui, "Player UUID", centerX - 150, centerY - 100, 300);
 		playerUUID.setBounds(centerX - 150, centerY - 80, 300, 20);
-		Util.addLabel(ui, "Player Name", centerX - 150, centerY - 50, 300);
+		UIUtil.addLabel(ui, "Player Name", centerX - 150, centerY - 50, 300);
 		playerName.setBounds(centerX - 150, centerY - 30, 300, 20);
-		Util.addLabel(ui, "Access Token", centerX - 150, centerY, 300);
+		UIUtil.addLabel(ui, "Access Token", centerX - 150, centerY, 300);
 		accessToken.setBounds(centerX - 150, centerY + 20, 300, 20);
 		dontShowAgain.setBounds(centerX - 100, centerY + 60, 200, 20);
 		ui.add(playerUUID);
@@ -58,20 +58,20 @@ public class OfflineAuthenticator implements LoginManager {
 			accessToken.setText(session.getAccessToken());
 		}
 
-		Util.addButton(ui, "Random", centerX + 160, centerY - 80, 50, 20, true, () -> {
+		UIUtil.addButton(ui, "Random", centerX + 160, centerY - 80, 50, 20, true, () -> {
 			playerUUID.setText(UUID.randomUUID().toString());
 		});
-		Util.addButton(ui, "Random", centerX + 160, centerY + 20, 50, 20, true, () -> {
+		UIUtil.addButton(ui, "Random", centerX + 160, centerY + 20, 50, 20, true, () -> {
 			accessToken.setText(org.omegazero.common.util.Util.randomHex(64));
 		});
 
 		Object wait = new Object();
-		Util.addButton(ui, "OK", centerX - 100, centerY + 90, 80, 30, false, () -> {
+		UIUtil.addButton(ui, "OK", centerX - 100, centerY + 90, 80, 30, false, () -> {
 			synchronized(wait){
 				wait.notify();
 			}
 		});
-		Util.addButton(ui, "Cancel", centerX + 20, centerY + 90, 80, 30, false, () -> {
+		UIUtil.addButton(ui, "Cancel", centerX + 20, centerY + 90, 80, 30, false, () -> {
 			playerUUID.setEnabled(false);
 			synchronized(wait){
 				wait.notify();
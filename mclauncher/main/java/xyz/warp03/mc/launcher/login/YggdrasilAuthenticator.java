@@ -17,6 +17,7 @@ import org.json.JSONObject;
 import org.omegazero.common.logging.Logger;
 
 import xyz.warp03.mc.launcher.AuthenticationException;
+import xyz.warp03.mc.launcher.UIUtil;
 import xyz.warp03.mc.launcher.Util;
 import xyz.warp03.mc.launcher.session.PlayerSession;
 import xyz.warp03.mc.launcher.session.YggdrasilPlayerSession;
@@ -55,19 +56,19 @@ public class YggdrasilAuthenticator implements LoginManager {
 		int centerY = ui.getHeight() / 2;
 		JTextField username = new JTextField();
 		JTextField password = new JPasswordField();
-		Util.addLabel(ui, "Username", centerX - 100, centerY - 90, 200);
+		UIUtil.addLabel(ui, "Username", centerX - 100, centerY - 90, 200);
 		username.setBounds(centerX - 100, centerY - 70, 200, 20);
-		Util.addLabel(ui, "Password", centerX - 100, centerY - 30, 200);
+		UIUtil.addLabel(ui, "Password", centerX - 100, centerY - 30, 200);
 		password.setBounds(centerX - 100, centerY - 10, 200, 20);
 		ui.add(username);
 		ui.add(password);
 		Object wait = new Object();
-		Util.addButton(ui, "OK", centerX - 100, centerY + 50, 80, 30, false, () -> {
+		UIUtil.addButton(ui, "OK", centerX - 100, centerY + 50, 80, 30, false, () -> {
 			synchronized(wait){
 				wait.notify();
 			}
 		});
-		Util.addButton(ui, "Cancel", centerX + 20, centerY + 50, 80, 30, false, () -> {
+		UIUtil.addButton(ui, "Cancel", centerX + 20, centerY + 50, 80, 30, false, () -> {
 			username.setEnabled(false);
 			synchronized(wait){
 				wait.notify();
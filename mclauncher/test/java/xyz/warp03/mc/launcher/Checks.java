@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Shared helpers for the executable checks in this source tree.
+ * <p>
+ * Each check class has a <code>main</code> method which runs its checks with {@link #check(boolean, String)} and ends with {@link #finish()}, which exits with status
+ * <code>1</code> if any check failed.
+ */
+public final class Checks {
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+
+	private Checks() {
+	}
+
+
+	/**
+	 * Records a check.
+	 *
+	 * @param condition Whether the check passed
+	 * @param description The description of the check, printed if it failed
+	 */
+	public static synchronized void check(boolean condition, String description) {
+		checks++;
+		if(!condition){
+			failures++;
+			System.out.println("FAILED: " + description);
+		}
+	}
+
+	/**
+	 * Checks that the given <b>action</b> fails with an {@link IOException} whose message contains <b>message</b>.
+	 *
+	 * @param action The action
+	 * @param message The expected part of the error message
+	 */
+	public static void expectError(IOAction action, String message) {
+		try{
+			action.run();
+			check(false, "expected error '" + message + "'");
+		}catch(IOException e){
+			check(e.getMessage() != null && e.getMessage().contains(message), "expected error '" + message + "' but got '" + e.getMessage() + "'");
+		}
+	}
+
+	/**
+	 * Prints the number of checks and failures, and exits with status <code>1</code> if any check failed.
+	 */
+	public static synchronized void finish() {
+		System.out.println(checks + " checks, " + failures + " failed");
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+
+	/**
+	 * Starts an HTTP server on a free port of the loopback interface, handling all requests with the given <b>handler</b>.
+	 *
+	 * @param handler The request handler
+	 * @return The started server
+	 * @throws IOException If the server could not be bound
+	 */
+	public static HttpServer startServer(HttpHandler handler) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", handler);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Deletes the given file or directory, including all of its contents.
+	 *
+	 * @param path The path
+	 * @throws IOException If an IO error occurs
+	 */
+	public static void deleteRecursively(Path path) throws IOException {
+		if(!Files.exists(path))
+			return;
+		try(Stream<Path> files = Files.walk(path)){
+			for(Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+
+	@FunctionalInterface
+	public static interface IOAction {
+
+		public void run() throws IOException;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Executable checks for {@link HashCache}: cached hashes are used while the size and modification time of a file are unchanged, and are invalidated by a change of
+ * either.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.HashCacheCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails.
+ */
+public final class HashCacheCheck {
+
+	private HashCacheCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("HashCacheCheck");
+		try{
+			HashCache cache = HashCache.forDirectory(dir);
+			check(HashCache.forDirectory(dir.resolve(".")) == cache, "one cache per directory");
+			Path file = dir.resolve("file");
+			byte[] a = "aaaa".getBytes(StandardCharsets.UTF_8);
+			byte[] b = "bbbb".getBytes(StandardCharsets.UTF_8);
+			Files.write(file, a);
+			FileTime mtime = FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() / 1000 * 1000 - 60000);
+			Files.setLastModifiedTime(file, mtime);
+			check(cache.sha1(file).equals(Util.sha1Hex(a)), "hash of a new file");
+
+			// same size and modification time: the file is assumed unchanged and not read
+			Files.write(file, b);
+			Files.setLastModifiedTime(file, mtime);
+			check(cache.sha1(file).equals(Util.sha1Hex(a)), "cached hash is used while size and modification time are unchanged");
+
+			Files.setLastModifiedTime(file, FileTime.fromMillis(mtime.toMillis() + 2000));
+			check(cache.sha1(file).equals(Util.sha1Hex(b)), "changed modification time invalidates the cached hash");
+
+			byte[] c = "ccccc".getBytes(StandardCharsets.UTF_8);
+			FileTime mtime2 = Files.getLastModifiedTime(file);
+			Files.write(file, c);
+			Files.setLastModifiedTime(file, mtime2);
+			check(cache.sha1(file).equals(Util.sha1Hex(c)), "changed size invalidates the cached hash");
+
+			String recorded = "0123456789abcdef0123456789abcdef01234567";
+			cache.put(file, recorded);
+			check(cache.sha1(file).equals(recorded), "recorded hash is used");
+			HashCache.setForceRehash(true);
+			try{
+				check(cache.sha1(file).equals(Util.sha1Hex(c)), "forced rehash ignores the cached hash");
+			}finally{
+				HashCache.setForceRehash(false);
+			}
+
+			// the cache is saved to the directory and loaded by a new instance, which another path to the same directory gets
+			Files.write(file, a);
+			Files.setLastModifiedTime(file, mtime);
+			cache.put(file, recorded);
+			cache.save();
+			check(Files.isRegularFile(dir.resolve("hashcache.bin")), "cache is saved");
+			Path link = Files.createSymbolicLink(dir.resolveSibling(dir.getFileName() + "-link"), dir);
+			try{
+				HashCache loaded = HashCache.forDirectory(link);
+				check(loaded != cache, "another path gets another instance");
+				check(loaded.sha1(file).equals(recorded), "saved hash is loaded");
+			}finally{
+				Files.delete(link);
+			}
+
+			// an unreadable cache file is discarded
+			Path other = dir.resolve("other");
+			Files.createDirectories(other);
+			Files.write(other.resolve("hashcache.bin"), new byte[] { 1, 2, 3 });
+			Files.write(other.resolve("file"), a);
+			check(HashCache.forDirectory(other).sha1(other.resolve("file")).equals(Util.sha1Hex(a)), "unreadable cache file is discarded");
+		}finally{
+			Checks.deleteRecursively(dir);
+		}
+		Checks.finish();
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+import static xyz.warp03.mc.launcher.Checks.expectError;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import xyz.warp03.mc.launcher.install.AssetSync;
+import xyz.warp03.mc.launcher.install.VersionManifest;
+
+/**
+ * Executable checks for {@link JsonReader} and the code reading asset indexes and version metadata with it.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.JsonReaderCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails.
+ */
+public final class JsonReaderCheck {
+
+	private JsonReaderCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		checkAssetIndex();
+		checkValues();
+		checkSyntaxErrors();
+		checkReadFields();
+		checkVersionManifest();
+		Checks.finish();
+	}
+
+
+	private static void checkAssetIndex() throws IOException {
+		StringBuilder sb = new StringBuilder("{\"virtual\": true, \"extra\": [1, -2.5e3, null, {\"a\": [[], {}]}, \"s\\\"\"], \"objects\": {");
+		for(int i = 0; i < 5000; i++){
+			if(i > 0)
+				sb.append(",\n");
+			sb.append("\"minecraft/sounds/\u00e9t\u00e9_").append(i);
+			if(i == 7)
+				sb.append("\\u00e9\\uD83D\\uDE00\\n\\\"\\\\\\/");
+			sb.append(".ogg\": {\"hash\": \"").append(String.format("%040x", i)).append("\", \"size\": ").append(i * 1000L).append(", \"other\": {\"k\": [true, false]}}");
+		}
+		sb.append("}, \"map_to_resources\": false}\n");
+		byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+		check(data.length > 4 * 8192, "asset index spans several read buffers");
+		Path file = Files.createTempFile("JsonReaderCheck", ".json");
+		try{
+			Files.write(file, data);
+			AssetSync.Index index = AssetSync.Index.read("check", "0", file);
+			check(index.size() == 5000, "asset index has 5000 objects");
+			check(index.getPath(0).equals("minecraft/sounds/\u00e9t\u00e9_0.ogg"), "non-ASCII path is decoded");
+			check(index.getPath(7).equals("minecraft/sounds/\u00e9t\u00e9_7\u00e9\uD83D\uDE00\n\"\\/.ogg"), "escaped path is decoded");
+			check(index.getHash(4999).equals(String.format("%040x", 4999)), "hash of last object");
+			check(index.getSize(4999) == 4999000L, "size of last object");
+
+			// a syntax error after several buffers must report its absolute position
+			int bad = data.length - 30;
+			data[bad] = ';';
+			Files.write(file, data);
+			expectError(() -> AssetSync.Index.read("check", "0", file), "at byte " + (bad + 1));
+		}finally{
+			Files.delete(file);
+		}
+	}
+
+	private static void checkValues() throws IOException {
+		JsonReader reader = reader("[1, -2.5e3, 12345678901, 123456789012345678901234567890, null, true, false, \"\", {}, []]");
+		reader.beginArray();
+		check(Integer.valueOf(1).equals(reader.readValue()), "small integer is an Integer");
+		check(Double.valueOf(-2500).equals(reader.readValue()), "exponent is a Double");
+		check(Long.valueOf(12345678901L).equals(reader.readValue()), "large integer is a Long");
+		check(new java.math.BigInteger("123456789012345678901234567890").equals(reader.readValue()), "huge integer is a BigInteger");
+		check(reader.readValue() == JSONObject.NULL, "null is JSONObject.NULL");
+		check(reader.nextBoolean(), "true");
+		check(!reader.nextBoolean(), "false");
+		check(reader.nextString().isEmpty(), "empty string");
+		reader.skipValue();
+		reader.skipValue();
+		check(!reader.hasNext(), "end of array");
+		reader.endArray();
+		reader.endDocument();
+	}
+
+	private static void checkSyntaxErrors() {
+		expectError(() -> parse("{\"a\" 1}"), "Expected ':' at byte 6");
+		expectError(() -> parse("{\"a\": 1,}"), "Expected name at byte 9");
+		expectError(() -> parse("{\"a\": [1 2]}"), "Expected ',' or ']' at byte 10");
+		expectError(() -> parse("{\"a\": \"x"), "Unterminated string at byte 8");
+		expectError(() -> parse("{\"a\": tru}"), "Expected 'true' at byte 10");
+		expectError(() -> parse("{\"a\": \"\\q\"}"), "Invalid escape sequence at byte 9");
+		expectError(() -> parse("{\"a\": \"\t\"}"), "Unescaped control character in string at byte 8");
+		expectError(() -> parse("{\"a\": 1} x"), "Unexpected data after end of document at byte 10");
+		expectError(() -> parse("{\"a\": 1"), "Unexpected end of document at byte 7");
+		expectError(() -> parse(""), "Unexpected end of document at byte 0");
+		// 0xFF must not be mistaken for the end of the document
+		expectError(() -> parse(new byte[] { '{', '"', 'a', '"', ':', ' ', (byte) 0xff, '}' }), "Unexpected character");
+		expectError(() -> parse(new byte[] { '{', '}', (byte) 0xff }), "Unexpected data after end of document at byte 3");
+		expectError(() -> {
+			JsonReader reader = reader("{\"a\": 1.5}");
+			reader.beginObject();
+			reader.nextName();
+			reader.nextLong();
+		}, "Expected integer but got 1.5");
+	}
+
+	private static void checkReadFields() throws IOException {
+		byte[] data = ("{\"id\": \"1.20\", \"libraries\": [{\"name\": \"a\"}], \"logging\": {\"client\": {\"x\": [1, 2]}}, \"type\": \"release\"}")
+				.getBytes(StandardCharsets.UTF_8);
+		JSONObject json = JsonReader.readFields(data, "libraries", "type", "missing");
+		check(json.has("libraries") && json.has("type"), "requested fields are read");
+		check(!json.has("id") && !json.has("logging") && !json.has("missing"), "other fields are skipped");
+		check(json.getJSONArray("libraries").getJSONObject(0).getString("name").equals("a"), "nested values are read");
+		check(json.getString("type").equals("release"), "string field is read");
+		expectError(() -> JsonReader.readFields("[]".getBytes(StandardCharsets.UTF_8), "a"), "Expected BEGIN_OBJECT but got BEGIN_ARRAY");
+	}
+
+	private static void checkVersionManifest() {
+		VersionManifest manifest = VersionManifest.parse(("{\"latest\": {\"release\": \"1.20.1\", \"snapshot\": \"23w31a\"}, \"versions\": [{\"id\": \"1.20.1\", "
+				+ "\"type\": \"release\", \"url\": \"https://example.com/1.20.1.json\", \"time\": \"t\", \"sha1\": \"ab\", \"complianceLevel\": 1}]}")
+						.getBytes(StandardCharsets.UTF_8));
+		check(manifest.getLatestRelease().equals("1.20.1") && manifest.getLatestSnapshot().equals("23w31a"), "latest versions are read");
+		check(manifest.getVersions().size() == 1, "versions are read");
+		VersionManifest.Version v = manifest.getVersions().get(0);
+		check(v.name.equals("1.20.1") && v.type.equals("release") && v.metaUrl.equals("https://example.com/1.20.1.json") && v.sha1.equals("ab"),
+				"version fields are read");
+		try{
+			VersionManifest.parse("{\"latest\": {}}".getBytes(StandardCharsets.UTF_8));
+			check(false, "incomplete manifest is rejected");
+		}catch(JSONException e){
+			check(true, "incomplete manifest is rejected");
+		}
+	}
+
+
+	private static JsonReader reader(String json) {
+		return new JsonReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static void parse(String json) throws IOException {
+		parse(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void parse(byte[] data) throws IOException {
+		JsonReader reader = new JsonReader(new ByteArrayInputStream(data));
+		reader.skipValue();
+		reader.endDocument();
+	}
+}
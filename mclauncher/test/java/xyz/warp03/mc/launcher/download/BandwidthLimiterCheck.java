@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import xyz.warp03.mc.launcher.Checks;
+import xyz.warp03.mc.launcher.download.DownloadScheduler.Priority;
+
+/**
+ * Executable checks for {@link BandwidthLimiter}: the achieved rate of a limited bucket, the separation of the foreground and background buckets, the burst allowed after
+ * being idle, and interrupting a waiting download.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.download.BandwidthLimiterCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails. The checks take a few seconds, since they measure rates in real time.
+ */
+public final class BandwidthLimiterCheck {
+
+	private static final int RATE = 2000000;
+	private static final int CHUNK = 64 * 1024;
+
+
+	private BandwidthLimiterCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		try{
+			check(consumeMillis(Priority.ASSET, 50000000) < 500, "unlimited buckets do not wait");
+
+			BandwidthLimiter.setLimits(0, RATE);
+			// the bucket starts empty, so 1.5 seconds worth of data takes 1.5 seconds
+			long millis = consumeMillis(Priority.ASSET, RATE * 3 / 2);
+			check(millis >= 1300 && millis < 3000, "background rate is limited, took " + millis + "ms");
+			check(consumeMillis(Priority.FOREGROUND, 50000000) < 500, "foreground is not limited by the background limit");
+			check(BandwidthLimiter.getStats().contains("of " + RATE / 1024 + " KiB/s"), "stats show the limit: " + BandwidthLimiter.getStats());
+
+			// at most one second worth of tokens accumulates while idle
+			Thread.sleep(1500);
+			millis = consumeMillis(Priority.PREFETCH, RATE * 2);
+			check(millis >= 800 && millis < 2500, "idle burst is limited to one second, took " + millis + "ms");
+
+			BandwidthLimiter.setLimits(RATE, 0);
+			millis = consumeMillis(Priority.FOREGROUND, RATE / 2);
+			check(millis >= 350 && millis < 1500, "foreground rate is limited, took " + millis + "ms");
+			check(consumeMillis(Priority.CRITICAL, 50000000) < 500, "background is not limited by the foreground limit");
+
+			BandwidthLimiter.setLimits(0, 1000);
+			AtomicReference<Throwable> result = new AtomicReference<>();
+			Thread t = new Thread(() -> {
+				try{
+					BandwidthLimiter.consume(Priority.ASSET, 100000);
+				}catch(InterruptedIOException e){
+					result.set(e);
+				}
+			});
+			t.start();
+			Thread.sleep(100);
+			long start = System.nanoTime();
+			t.interrupt();
+			t.join();
+			check(result.get() instanceof InterruptedIOException && System.nanoTime() - start < 1000000000L, "waiting for bandwidth is interruptible");
+		}finally{
+			BandwidthLimiter.setLimits(0, 0);
+		}
+		Checks.finish();
+	}
+
+
+	private static long consumeMillis(Priority priority, long bytes) throws InterruptedIOException {
+		long start = System.nanoTime();
+		while(bytes > 0){
+			int n = (int) Math.min(CHUNK, bytes);
+			BandwidthLimiter.consume(priority, n);
+			bytes -= n;
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import xyz.warp03.mc.launcher.Checks;
+import xyz.warp03.mc.launcher.download.DownloadScheduler.Priority;
+
+/**
+ * Executable checks for {@link DownloadScheduler}: the order in which waiting downloads are admitted, raising the priority of a waiting download, and the limit of
+ * concurrent downloads.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.download.DownloadSchedulerCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails.
+ */
+public final class DownloadSchedulerCheck {
+
+	private DownloadSchedulerCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		try{
+			checkOrder();
+			checkInterrupt();
+			checkMaxActive();
+		}finally{
+			DownloadScheduler.setMaxActive(DownloadScheduler.DEFAULT_MAX_ACTIVE);
+		}
+		Checks.finish();
+	}
+
+
+	private static void checkOrder() throws InterruptedException {
+		DownloadScheduler.setMaxActive(1);
+		List<String> order = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
+		List<Thread> threads = new java.util.ArrayList<>();
+		DownloadScheduler.Ticket raised = new DownloadScheduler.Ticket(Priority.PREFETCH, 1);
+		try(DownloadScheduler.Permit hold = DownloadScheduler.acquire(Priority.CRITICAL, 0)){
+			threads.add(enqueue("asset-100", new DownloadScheduler.Ticket(Priority.ASSET, 100), order));
+			threads.add(enqueue("prefetch-1000", new DownloadScheduler.Ticket(Priority.PREFETCH, 1000), order));
+			threads.add(enqueue("raised", raised, order));
+			threads.add(enqueue("critical-10", new DownloadScheduler.Ticket(Priority.CRITICAL, 10), order));
+			threads.add(enqueue("asset-500a", new DownloadScheduler.Ticket(Priority.ASSET, 500), order));
+			threads.add(enqueue("foreground-1", new DownloadScheduler.Ticket(Priority.FOREGROUND, 1), order));
+			threads.add(enqueue("asset-500b", new DownloadScheduler.Ticket(Priority.ASSET, 500), order));
+			threads.add(enqueue("unknown", new DownloadScheduler.Ticket(Priority.ASSET, -1), order));
+			raised.raise(Priority.CRITICAL);
+			raised.raise(Priority.ASSET); // lowering has no effect
+			check(raised.getPriority() == Priority.CRITICAL, "priority is only raised");
+			check(DownloadScheduler.getQueueDepth() == threads.size(), "all downloads are waiting");
+		}
+		for(Thread t : threads)
+			t.join();
+		check(order.equals(List.of("foreground-1", "critical-10", "raised", "asset-500a", "asset-500b", "asset-100", "unknown", "prefetch-1000")),
+				"downloads are admitted by priority, then largest first, then in order: " + order);
+		check(DownloadScheduler.getActive() == 0, "all permits are released");
+	}
+
+	private static void checkInterrupt() throws InterruptedException {
+		DownloadScheduler.setMaxActive(1);
+		AtomicReference<Throwable> result = new AtomicReference<>();
+		Thread waiting;
+		try(DownloadScheduler.Permit hold = DownloadScheduler.acquire(Priority.CRITICAL, 0)){
+			waiting = new Thread(() -> {
+				try{
+					DownloadScheduler.acquire(Priority.ASSET, 1).close();
+				}catch(InterruptedException e){
+					result.set(e);
+				}
+			});
+			waiting.start();
+			awaitQueueDepth(1);
+			waiting.interrupt();
+			waiting.join();
+			check(result.get() instanceof InterruptedException, "waiting is interruptible");
+			check(DownloadScheduler.getQueueDepth() == 0, "interrupted download leaves the queue");
+		}
+		check(DownloadScheduler.getActive() == 0, "permit of interrupted download is not taken");
+	}
+
+	private static void checkMaxActive() throws InterruptedException {
+		DownloadScheduler.setMaxActive(3);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<Thread> threads = new java.util.ArrayList<>();
+		for(int i = 0; i < 12; i++){
+			Thread t = new Thread(() -> {
+				try(DownloadScheduler.Permit permit = DownloadScheduler.acquire(Priority.ASSET, 1)){
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					Thread.sleep(20);
+					running.decrementAndGet();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for(Thread t : threads)
+			t.join();
+		check(maxRunning.get() == 3, "at most maxActive downloads run at the same time, got " + maxRunning.get());
+		check(DownloadScheduler.getActive() == 0 && DownloadScheduler.getQueueDepth() == 0, "scheduler is idle afterwards");
+	}
+
+
+	/**
+	 * Starts a thread waiting for a slot with the given <b>ticket</b>, which adds <b>name</b> to <b>order</b> when admitted, and waits until the ticket is queued, so that
+	 * tickets are queued in the order of calls.
+	 */
+	private static Thread enqueue(String name, DownloadScheduler.Ticket ticket, List<String> order) throws InterruptedException {
+		int depth = DownloadScheduler.getQueueDepth();
+		Thread t = new Thread(() -> {
+			try(DownloadScheduler.Permit permit = DownloadScheduler.acquire(ticket)){
+				order.add(name);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		});
+		t.start();
+		awaitQueueDepth(depth + 1);
+		return t;
+	}
+
+	private static void awaitQueueDepth(int depth) throws InterruptedException {
+		long deadline = System.nanoTime() + 5000000000L;
+		while(DownloadScheduler.getQueueDepth() < depth){
+			if(System.nanoTime() - deadline > 0)
+				throw new IllegalStateException("Timed out waiting for queue depth " + depth);
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import xyz.warp03.mc.launcher.Checks;
+import xyz.warp03.mc.launcher.Util;
+
+/**
+ * Executable checks for {@link Downloader}: resuming <code>.part</code> files, servers rejecting or ignoring range requests, and coalesced downloads.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.download.DownloaderCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails.
+ */
+public final class DownloaderCheck {
+
+	private static final int LENGTH = 300000;
+	private static final int PARTIAL = 120000;
+
+	private static final byte[] data = new byte[LENGTH];
+	private static final String sha1;
+	private static final List<String> requests = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
+	private static final CountDownLatch slowRelease = new CountDownLatch(1);
+
+	static{
+		new Random(3).nextBytes(data);
+		sha1 = Util.sha1Hex(data);
+	}
+
+
+	private DownloaderCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("DownloaderCheck");
+		HttpServer server = Checks.startServer(DownloaderCheck::handle);
+		String base = "http://127.0.0.1:" + server.getAddress().getPort();
+		try{
+			// a server supporting range requests resumes the partial download
+			Path dest = dir.resolve("resume");
+			writePart(dest, Arrays.copyOf(data, PARTIAL));
+			requests.clear();
+			long n = Downloader.download(base + "/range", dest, LENGTH, sha1);
+			check(Arrays.equals(Files.readAllBytes(dest), data), "resumed download is complete");
+			check(n == LENGTH - PARTIAL, "resumed download transfers only the remaining bytes");
+			check(requests.equals(List.of("/range bytes=" + PARTIAL + "-")), "resumed download sends a range request: " + requests);
+			check(!Files.exists(part(dest)), "part file is moved into place");
+
+			// 416: the partial download is discarded and downloaded again without a range
+			dest = dir.resolve("reject");
+			writePart(dest, Arrays.copyOf(data, PARTIAL));
+			requests.clear();
+			n = Downloader.download(base + "/reject", dest, LENGTH, sha1);
+			check(Arrays.equals(Files.readAllBytes(dest), data), "download after 416 is complete");
+			check(n == LENGTH, "download after 416 transfers everything");
+			check(requests.equals(List.of("/reject bytes=" + PARTIAL + "-", "/reject")), "download after 416 is restarted without a range: " + requests);
+
+			// 200 to a range request: the response is the entire file, which replaces the partial download
+			dest = dir.resolve("ignore");
+			writePart(dest, Arrays.copyOf(data, PARTIAL));
+			requests.clear();
+			n = Downloader.download(base + "/ignore", dest, LENGTH, sha1);
+			check(Arrays.equals(Files.readAllBytes(dest), data), "download after 200 to a range request is complete");
+			check(n == LENGTH, "download after 200 to a range request transfers everything");
+			check(requests.size() == 1, "download after 200 to a range request sends one request: " + requests);
+
+			// a complete and valid partial download is moved into place without a request
+			dest = dir.resolve("complete");
+			writePart(dest, data);
+			requests.clear();
+			n = Downloader.download(base + "/range", dest, LENGTH, sha1);
+			check(Arrays.equals(Files.readAllBytes(dest), data) && n == 0 && requests.isEmpty(), "complete partial download is used without a request");
+
+			// a complete but corrupt partial download is discarded
+			dest = dir.resolve("corrupt");
+			byte[] corrupt = data.clone();
+			corrupt[PARTIAL] ^= 1;
+			writePart(dest, corrupt);
+			requests.clear();
+			n = Downloader.download(base + "/range", dest, LENGTH, sha1);
+			check(Arrays.equals(Files.readAllBytes(dest), data) && n == LENGTH, "corrupt partial download is downloaded again");
+			check(requests.equals(List.of("/range")), "corrupt partial download is downloaded again without a range: " + requests);
+
+			// a caller joining a download it expects a different hash from must not receive it unverified
+			Path shared = dir.resolve("shared");
+			Thread first = new Thread(() -> {
+				try{
+					Downloader.download(base + "/slow", shared, LENGTH, sha1);
+				}catch(IOException e){
+					check(false, "first coalesced download failed: " + e);
+				}
+			});
+			first.start();
+			Thread.sleep(200);
+			Thread releaser = new Thread(() -> {
+				try{
+					Thread.sleep(300);
+				}catch(InterruptedException e){
+					return;
+				}
+				slowRelease.countDown();
+			});
+			releaser.start();
+			Checks.expectError(() -> Downloader.download(base + "/slow", shared, LENGTH, "0000000000000000000000000000000000000000"), "but concurrent download of");
+			first.join();
+			check(Arrays.equals(Files.readAllBytes(shared), data), "first coalesced download is complete");
+		}finally{
+			server.stop(0);
+			Checks.deleteRecursively(dir);
+		}
+		Checks.finish();
+	}
+
+
+	private static Path part(Path dest) {
+		return dest.resolveSibling(dest.getFileName() + ".part");
+	}
+
+	private static void writePart(Path dest, byte[] content) throws IOException {
+		Files.write(part(dest), content);
+	}
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		try{
+			String path = exchange.getRequestURI().getPath();
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			requests.add(range != null ? path + " " + range : path);
+			if(path.equals("/slow")){
+				try{
+					slowRelease.await(10, TimeUnit.SECONDS);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+			if(range != null && path.equals("/reject")){
+				exchange.sendResponseHeaders(416, -1);
+			}else if(range != null && path.equals("/range")){
+				int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (LENGTH - 1) + "/" + LENGTH);
+				exchange.sendResponseHeaders(206, LENGTH - start);
+				exchange.getResponseBody().write(data, start, LENGTH - start);
+			}else{
+				exchange.sendResponseHeaders(200, LENGTH);
+				exchange.getResponseBody().write(data);
+			}
+		}finally{
+			exchange.close();
+		}
+	}
+}
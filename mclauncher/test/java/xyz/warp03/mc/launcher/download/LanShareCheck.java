@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.download;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import xyz.warp03.mc.launcher.Checks;
+import xyz.warp03.mc.launcher.Util;
+
+/**
+ * Executable checks for {@link LanShareServer} and fetching artifacts from peers through {@link Mirrors}, entirely on the loopback interface.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.download.LanShareCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails.
+ */
+public final class LanShareCheck {
+
+	private LanShareCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("LanShareCheck");
+		HttpServer upstream = null;
+		LanShareServer server = null;
+		try{
+			Random random = new Random(21);
+			byte[] stored = randomBytes(random, 200000);
+			byte[] missing = randomBytes(random, 50000);
+			byte[] corrupt = randomBytes(random, 50000);
+			String storedSha1 = Util.sha1Hex(stored);
+			String missingSha1 = Util.sha1Hex(missing);
+			String corruptSha1 = Util.sha1Hex(corrupt);
+
+			ArtifactStore store = new ArtifactStore(dir.resolve("store"));
+			Path src = dir.resolve("src");
+			Files.write(src, stored);
+			store.add(storedSha1, src);
+			Path corruptObject = store.objectPath(corruptSha1);
+			Files.createDirectories(corruptObject.getParent());
+			Files.write(corruptObject, missing);
+
+			Map<String, byte[]> upstreamFiles = Map.of(storedSha1, stored, missingSha1, missing, corruptSha1, corrupt);
+			AtomicInteger upstreamRequests = new AtomicInteger();
+			upstream = Checks.startServer((exchange) -> {
+				upstreamRequests.incrementAndGet();
+				byte[] data = upstreamFiles.get(exchange.getRequestURI().getPath().substring("/res/".length()));
+				if(data != null){
+					exchange.sendResponseHeaders(200, data.length);
+					exchange.getResponseBody().write(data);
+				}else
+					exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+			});
+			String upstreamBase = "http://127.0.0.1:" + upstream.getAddress().getPort() + "/res/";
+
+			server = new LanShareServer(store, 0);
+			server.start();
+			String peer = "http://127.0.0.1:" + server.getPort();
+			Mirrors.addPeer(peer, 0);
+
+			check(status(peer + LanShareServer.OBJECTS_PATH + storedSha1) == 200, "stored object is served");
+			check(status(peer + LanShareServer.OBJECTS_PATH + missingSha1) == 404, "missing object is 404");
+			check(status(peer + LanShareServer.OBJECTS_PATH + corruptSha1) == 404, "corrupt object is 404");
+			check(status(peer + LanShareServer.OBJECTS_PATH + "hashcache.bin") == 404, "invalid object name is 404");
+
+			Path dest = dir.resolve("dest-stored");
+			Downloader.download(upstreamBase + storedSha1, dest, stored.length, storedSha1);
+			check(Arrays.equals(Files.readAllBytes(dest), stored), "stored object is fetched from the peer");
+			check(upstreamRequests.get() == 0, "stored object is not requested from upstream");
+
+			dest = dir.resolve("dest-missing");
+			Downloader.download(upstreamBase + missingSha1, dest, missing.length, missingSha1);
+			check(Arrays.equals(Files.readAllBytes(dest), missing), "missing object is fetched from upstream");
+			check(upstreamRequests.get() == 1, "missing object falls back to upstream");
+
+			dest = dir.resolve("dest-corrupt");
+			Downloader.download(upstreamBase + corruptSha1, dest, corrupt.length, corruptSha1);
+			check(Arrays.equals(Files.readAllBytes(dest), corrupt), "corrupt object is fetched from upstream");
+			check(upstreamRequests.get() == 2, "corrupt object falls back to upstream");
+
+			Mirrors.removePeer(peer);
+		}finally{
+			if(server != null)
+				server.stop();
+			if(upstream != null)
+				upstream.stop(0);
+			Checks.deleteRecursively(dir);
+		}
+		Checks.finish();
+	}
+
+
+	private static byte[] randomBytes(Random random, int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private static int status(String url) throws IOException, InterruptedException {
+		return SharedHttpClient.send(HttpRequest.newBuilder(URI.create(url)).GET().build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+}
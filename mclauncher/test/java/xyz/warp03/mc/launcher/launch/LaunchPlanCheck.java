@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.mc.launcher.launch;
+
+import static xyz.warp03.mc.launcher.Checks.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import xyz.warp03.mc.launcher.Checks;
+import xyz.warp03.mc.launcher.HashCache;
+
+/**
+ * Executable checks for {@link LaunchPlan}: a saved plan is used while its inputs are unchanged, and is not used after a change of the platform, a version JSON file
+ * or a library.
+ * <p>
+ * Run with the compiled launcher classes, JSON-java and omz-java-lib on the classpath:
+ *
+ * <pre>
+ * java -cp ... xyz.warp03.mc.launcher.launch.LaunchPlanCheck
+ * </pre>
+ *
+ * Exits with status <code>1</code> if any check fails.
+ */
+public final class LaunchPlanCheck {
+
+	private static final Platform platform = new Platform("linux", "6.1", "amd64", Set.of());
+
+
+	private LaunchPlanCheck() {
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Files.createTempDirectory("LaunchPlanCheck");
+		try{
+			Path installDir = dir.resolve("install");
+			Path libraryDir = installDir.resolve("libraries");
+			Path lib = write(libraryDir.resolve("a/a.jar"), "library a");
+			Path nativeLib = write(libraryDir.resolve("b/b-natives.jar"), "native library b");
+			Path json = write(installDir.resolve("versions/x/x.json"), "{\"id\":\"x\"}");
+			String[] files = { json.toString() };
+			HashCache hashCache = HashCache.forDirectory(installDir);
+			GameInstance gi = gameInstance(List.of(lib.toString()), List.of(nativeLib.toString()));
+
+			LaunchPlan plan = LaunchPlan.forInputs(libraryDir.toString(), files, platform, hashCache);
+			check(plan.load() == null, "no plan before saving");
+			plan.save(gi);
+			Path planFile;
+			try(java.util.stream.Stream<Path> s = Files.list(installDir.resolve(LaunchPlan.DIRECTORY_NAME))){
+				List<Path> planFiles = s.collect(java.util.stream.Collectors.toList());
+				check(planFiles.size() == 1, "plan is saved next to the library directory: " + planFiles);
+				planFile = planFiles.get(0);
+			}
+			GameInstance loaded = LaunchPlan.forInputs(libraryDir.toString(), files, platform, hashCache).load();
+			check(loaded != null, "unchanged plan is used");
+			check(loaded != null && loaded.getMainClass().equals(gi.getMainClass()) && Arrays.equals(loaded.getMinecraftArguments(), gi.getMinecraftArguments())
+					&& loaded.getLibraries().equals(gi.getLibraries()) && loaded.getNativeLibraries().equals(gi.getNativeLibraries()), "plan round-trips the game instance");
+			check(LaunchPlan.forInputs(installDir.resolve("../install/libraries").toString(), files, platform, hashCache).load() != null,
+					"plan is found through a non-normalized library path");
+
+			check(LaunchPlan.forInputs(libraryDir.toString(), files, new Platform("linux", "6.1", "aarch64", Set.of()), hashCache).load() == null,
+					"changed architecture invalidates the plan");
+			check(LaunchPlan.forInputs(libraryDir.toString(), files, platform.withFeatures(Set.of("is_demo_user")), hashCache).load() == null,
+					"changed features invalidate the plan");
+
+			write(json, "{\"id\":\"x\",\"type\":\"release\"}");
+			check(LaunchPlan.forInputs(libraryDir.toString(), files, platform, hashCache).load() == null, "changed version JSON file invalidates the plan");
+			plan = LaunchPlan.forInputs(libraryDir.toString(), files, platform, hashCache);
+			plan.save(gi);
+			check(plan.load() != null, "plan is used again after saving");
+
+			write(lib, "library a, changed");
+			check(plan.load() == null, "changed library size invalidates the plan");
+			plan.save(gi);
+			Files.delete(nativeLib);
+			check(plan.load() == null, "missing native library invalidates the plan");
+			write(nativeLib, "native library b");
+			check(plan.load() != null, "restored native library makes the plan valid");
+
+			Files.write(planFile, new byte[] { 1, 2, 3 });
+			check(plan.load() == null, "unreadable plan is not used");
+			plan.save(gi);
+			LaunchPlan.invalidate(libraryDir.toString(), files, "check");
+			check(!Files.exists(planFile), "invalidating removes the plan");
+			check(plan.load() == null, "no plan after invalidating");
+		}finally{
+			Checks.deleteRecursively(dir);
+		}
+		Checks.finish();
+	}
+
+
+	private static Path write(Path path, String content) throws IOException {
+		Files.createDirectories(path.getParent());
+		Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+		return path;
+	}
+
+	/**
+	 * Creates a game instance through its serialized form, in the order of {@link GameInstance#write(java.io.DataOutput)}.
+	 */
+	private static GameInstance gameInstance(List<String> libraries, List<String> nativeLibraries) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeStrings(out, List.of("--version", "${version_name}"));
+		writeStrings(out, List.of("-cp", "${classpath}"));
+		for(String str : new String[] { "net.minecraft.client.main.Main", "x", "release" }){
+			out.writeBoolean(true);
+			out.writeUTF(str);
+		}
+		writeStrings(out, libraries);
+		writeStrings(out, nativeLibraries);
+		return GameInstance.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strs) throws IOException {
+		out.writeInt(strs.size());
+		for(String str : strs)
+			out.writeUTF(str);
+	}
+}